@@ -0,0 +1,73 @@
+package gitlet;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Measures the throughput of adding and committing many files, first on a
+ * single thread and then on the worker pool. Each round rewrites every
+ * file with new text, so both timed rounds hash, delta-encode and compress
+ * the same amount of data. Must be run in an empty directory:
+ *
+ *     java gitlet.AddBenchmark [FILES] [FILE_SIZE]
+ *
+ * @author A_Words
+ */
+public class AddBenchmark {
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz     \n";
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        int poolThreads = Parallel.getThreads();
+        Random random = new Random(61);
+
+        writeFiles(files, fileSize, random);
+        addAndCommit("round 0");
+        System.out.printf("%d files of %d bytes%n", files, fileSize);
+        for (int threads : new int[]{1, poolThreads}) {
+            Parallel.setThreads(threads);
+            writeFiles(files, fileSize, random);
+            long start = System.nanoTime();
+            Repository.stagingFilesByName(List.of("."));
+            long added = System.nanoTime();
+            Repository.stagingToCommit("threads " + threads);
+            long committed = System.nanoTime();
+            Index.save();
+            report(threads, "add", files, fileSize, added - start);
+            report(threads, "commit", files, fileSize, committed - added);
+        }
+    }
+
+    private static void addAndCommit(String message) {
+        Repository.stagingFilesByName(List.of("."));
+        Repository.stagingToCommit(message);
+        Index.save();
+    }
+
+    private static void writeFiles(int files, int fileSize, Random random) {
+        byte[] contents = new byte[fileSize];
+        for (int i = 0; i < files; i += 1) {
+            for (int k = 0; k < fileSize; k += 1) {
+                contents[k] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+            writeContents(new File(CWD, String.format("file%06d.txt", i)), contents);
+        }
+    }
+
+    private static void report(int threads, String phase, int files, int fileSize, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%2d thread(s) %-8s %8.3f s %10.0f files/s %8.1f MB/s%n",
+                threads, phase, seconds, files / seconds, (double) files * fileSize / seconds / 1e6);
+    }
+}
@@ -0,0 +1,117 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Builds a synthetic commit graph of several interleaved lines of work
+ * that often merge each other, then compares answering "is A an ancestor
+ * of B" and "how many commits are ahead and behind" from the
+ * {@link CommitBitmaps} with walking the ancestry of both commits, which
+ * is what answering them without bitmaps takes. Every answer is checked
+ * against the walk. The first bitmap query builds the bitmaps and is
+ * timed on its own. Must be run in an empty directory:
+ *
+ *     java gitlet.AncestryBenchmark [COMMITS] [QUERIES]
+ *
+ * @author A_Words
+ */
+public class AncestryBenchmark {
+    private static final int LINES = 8;
+    private static final double MERGE_CHANCE = 0.05;
+
+    public static void main(String[] args) {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int queryCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        GITLET_DIR.mkdir();
+
+        Random random = new Random(22);
+        String[] heads = new String[LINES];
+        for (int i = 0; i < commits; i += 1) {
+            int line = random.nextInt(LINES);
+            String second = null;
+            if (i > LINES && random.nextDouble() < MERGE_CHANCE) {
+                int other = random.nextInt(LINES);
+                second = other != line ? heads[other] : null;
+            }
+            String id = sha1("commit", Integer.toString(i));
+            CommitGraph.append(id, heads[line], second, i);
+            heads[line] = id;
+        }
+        CommitGraph.sync();
+        List<int[]> queries = new ArrayList<>();
+        for (int i = 0; i < queryCount; i += 1) {
+            int first = commits / 2 + random.nextInt(commits / 2);
+            queries.add(new int[]{first, first + random.nextInt(commits - first)});
+        }
+        System.out.printf("%d commits, %d queries%n", commits, queryCount);
+
+        long start = System.nanoTime();
+        CommitBitmaps.reachable(commits - 1);
+        System.out.printf("%-24s %12.3f s%n", "build bitmaps", (System.nanoTime() - start) / 1e9);
+        System.out.printf("%-24s %12d bytes%n", "bitmap file", join(GITLET_DIR, "commit-bitmaps").length());
+
+        long[] bitmapTimes = new long[2];
+        long[] walkTimes = new long[2];
+        for (int[] query : queries) {
+            long t0 = System.nanoTime();
+            boolean ancestor = CommitBitmaps.isAncestor(query[0], query[1]);
+            long t1 = System.nanoTime();
+            int[] counts = CommitBitmaps.aheadBehind(query[0], query[1]);
+            long t2 = System.nanoTime();
+            BitSet first = ancestry(query[0]);
+            BitSet second = ancestry(query[1]);
+            boolean walkAncestor = second.get(query[0]);
+            long t3 = System.nanoTime();
+            BitSet ahead = (BitSet) first.clone();
+            ahead.andNot(second);
+            second.andNot(first);
+            long t4 = System.nanoTime();
+            if (ancestor != walkAncestor || counts[0] != ahead.cardinality()
+                    || counts[1] != second.cardinality()) {
+                throw error("Bitmaps disagree with the walk for rows %d and %d.",
+                        query[0], query[1]);
+            }
+            bitmapTimes[0] += t1 - t0;
+            bitmapTimes[1] += t2 - t1;
+            walkTimes[0] += t3 - t2;
+            walkTimes[1] += t4 - t2;
+        }
+        report("is-ancestor, bitmaps", bitmapTimes[0], queryCount);
+        report("is-ancestor, walk", walkTimes[0], queryCount);
+        report("ahead/behind, bitmaps", bitmapTimes[1], queryCount);
+        report("ahead/behind, walk", walkTimes[1], queryCount);
+    }
+
+    private static void report(String label, long nanos, int count) {
+        System.out.printf("%-24s %12.3f us/query%n", label, nanos / 1e3 / count);
+    }
+
+    /** Returns ROW and all its ancestors, found by walking the graph. */
+    private static BitSet ancestry(int row) {
+        BitSet seen = new BitSet();
+        Queue<Integer> queue = new ArrayDeque<>();
+        queue.add(row);
+        while (!queue.isEmpty()) {
+            int r = queue.poll();
+            if (r == CommitGraph.NONE || seen.get(r)) {
+                continue;
+            }
+            seen.set(r);
+            queue.add(CommitGraph.parent(r));
+            queue.add(CommitGraph.secondParent(r));
+        }
+        return seen;
+    }
+}
@@ -1,33 +1,67 @@
 package gitlet;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 
-import static gitlet.Repository.BLOB_DIR;
 import static gitlet.Utils.*;
 
 public class Blob {
+    /**
+     * Whether new blobs are stored as lists of content-defined chunks,
+     * which stores equal data in different files or versions once. Set
+     * with the gitlet.chunking system property.
+     */
+    private static final boolean CHUNKING = Boolean.getBoolean("gitlet.chunking");
+
     private final File file;
     private final String sha1;
 
     public Blob(File file) {
         this.file = file;
-        this.sha1 = sha1(readContentsAsString(file) + file.getName());
+        this.sha1 = Index.blobSha1(file);
+    }
+
+    public static byte[] load(String sha1) {
+        return ObjectStore.read(ObjectStore.BLOB, sha1);
     }
 
-    public static File load(String sha1) {
-        return join(BLOB_DIR, sha1);
+    /**
+     * Writes the contents of the blob SHA1 to FILE, replacing it. The
+     * contents are streamed, so even very large blobs take constant memory.
+     */
+    public static void writeTo(String sha1, File file) {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(sha1, out);
+        } catch (IOException e) {
+            throw error("Unable to write %s.", file.getName());
+        }
     }
 
-    public void save() {
-        File blobFile = join(BLOB_DIR, this.sha1);
-        if (blobFile.exists()) {
+    /** Writes the contents of the blob SHA1 to OUT. */
+    public static void writeTo(String sha1, WritableByteChannel out) {
+        if (!ObjectStore.writeTo(ObjectStore.BLOB, sha1, out)) {
+            throw error("Internal error reading blob file.");
+        }
+    }
+
+    /**
+     * Saves this blob, delta-encoded against the blob BASESHA1 if that is
+     * worthwhile. BASESHA1 is normally the previous version of the same
+     * file and may be null.
+     */
+    public void save(String baseSha1) {
+        if (ObjectStore.contains(ObjectStore.BLOB, sha1)) {
             return;
         }
-        try {
-            Files.copy(file.toPath(), blobFile.toPath());
-        } catch (IOException e) {
-            throw error("Internal error saving blob.");
+        if (CHUNKING && file.length() >= Chunker.MIN_FILE_SIZE) {
+            ObjectStore.writeChunked(sha1, file);
+        } else if (file.length() > ObjectStore.LARGE_BLOB_SIZE) {
+            ObjectStore.writeFile(ObjectStore.BLOB, sha1, file);
+        } else {
+            ObjectStore.write(ObjectStore.BLOB, sha1, readContents(file), baseSha1);
         }
     }
 
@@ -0,0 +1,107 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Compares checking out large blobs by streaming them from their pack
+ * with materializing them in memory first, as checkout used to. One file
+ * is random, so its blob is stored raw and copied with transferTo; the
+ * other is text, so its blob is deflated and inflated from mapped windows
+ * of the pack. Must be run in an empty directory:
+ *
+ *     java gitlet.CheckoutBenchmark [SIZE_IN_MB]
+ *
+ * The in-memory path needs a heap of about three times the file size.
+ *
+ * @author A_Words
+ */
+public class CheckoutBenchmark {
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    public static void main(String[] args) throws IOException {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) << 20;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        File random = join(CWD, "random.bin");
+        File text = join(CWD, "text.txt");
+        writeRandom(random, size);
+        writeText(text, size);
+        Repository.stagingFilesByName(List.of(random.getName(), text.getName()));
+        Repository.stagingToCommit("large files");
+        Index.save();
+
+        System.out.printf("files of %d MB, max heap %d MB%n", size >> 20,
+                Runtime.getRuntime().maxMemory() >> 20);
+        for (File file : new File[]{random, text}) {
+            String blobSha1 = Index.blobSha1(file);
+            time(file, "streamed", () -> Blob.writeTo(blobSha1, file));
+            time(file, "in memory", () -> writeContents(file, Blob.load(blobSha1)));
+        }
+    }
+
+    private static void time(File file, String method, Runnable checkout) throws IOException {
+        Files.delete(file.toPath());
+        System.gc();
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        pools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        long start = System.nanoTime();
+        try {
+            checkout.run();
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%-12s %-10s out of memory%n", file.getName(), method);
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf("%-12s %-10s %8.3f s %8.1f MB/s   peak heap %6d MB   %s%n",
+                file.getName(), method, seconds, file.length() / seconds / 1e6, peak >> 20,
+                file.length() == 0 ? "EMPTY" : "");
+    }
+
+    private static void writeRandom(File file, long size) throws IOException {
+        Random random = new Random(61);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static void writeText(File file, long size) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(file.toPath()), CHUNK_SIZE)) {
+            long written = 0;
+            for (long line = 0; written < size; line += 1) {
+                byte[] bytes = String.format("line %012d of a large text file%n", line)
+                        .getBytes(StandardCharsets.UTF_8);
+                int n = (int) Math.min(bytes.length, size - written);
+                out.write(bytes, 0, n);
+                written += n;
+            }
+        }
+    }
+}
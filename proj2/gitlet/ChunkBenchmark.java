@@ -0,0 +1,95 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Repository.PACK_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Commits a large, append-heavy data file: the first version, several
+ * versions that each append a few percent more lines, and finally a copy
+ * of the file under another name. Reports the bytes committed and the
+ * bytes the packs take. Run it once as is and once with chunking on to
+ * compare, each time in an empty directory:
+ *
+ *     java gitlet.ChunkBenchmark [SIZE_IN_MB] [VERSIONS] [APPEND_PERCENT]
+ *     java -Dgitlet.chunking=true gitlet.ChunkBenchmark ...
+ *
+ * @author A_Words
+ */
+public class ChunkBenchmark {
+    public static void main(String[] args) throws IOException {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 128) << 20;
+        int versions = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int appendPercent = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        File data = join(CWD, "data.csv");
+        File copy = join(CWD, "data-copy.csv");
+
+        long start = System.nanoTime();
+        long line = append(data, 0, size);
+        long committed = commit(data, "version 1");
+        for (int v = 2; v <= versions; v += 1) {
+            line = append(data, line, size * appendPercent / 100);
+            committed += commit(data, "version " + v);
+        }
+        Files.copy(data.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        committed += commit(copy, "copy");
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long packed = 0;
+        for (String name : plainFilenamesIn(PACK_DIR)) {
+            packed += join(PACK_DIR, name).length();
+        }
+        System.out.printf("chunking %s, %d versions of a %d MB file, then a copy%n",
+                Boolean.getBoolean("gitlet.chunking") ? "on" : "off", versions, size >> 20);
+        System.out.printf("%-20s %10.3f s%n", "add and commit", seconds);
+        System.out.printf("%-20s %10.1f MB%n", "committed", committed / 1e6);
+        System.out.printf("%-20s %10.1f MB%n", "packs", packed / 1e6);
+        Chunker.Stats stats = ObjectStore.chunkStats();
+        if (stats.blobs > 0) {
+            System.out.printf("%-20s %10d (%.1f KB on average)%n", "distinct chunks",
+                    stats.chunks, stats.chunkSize / 1e3 / stats.chunks);
+            System.out.printf("%-20s %10.2f%n", "dedup ratio", stats.dedupRatio());
+        }
+    }
+
+    /** Adds and commits FILE and returns its size. */
+    private static long commit(File file, String message) {
+        Repository.stagingFilesByName(List.of(file.getName()));
+        Repository.stagingToCommit(message);
+        Index.save();
+        return file.length();
+    }
+
+    /** Appends about BYTES bytes of records to FILE, numbering them from
+     *  FIRSTLINE, and returns the number of the next record. */
+    private static long append(File file, long firstLine, long bytes) throws IOException {
+        long line = firstLine;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 20)) {
+            for (long written = 0; written < bytes; line += 1) {
+                byte[] record = String.format("%d,sensor-%d,%d.%03d,ok%n",
+                        line, line % 97, (line * 7919) % 100000, line % 1000)
+                        .getBytes(StandardCharsets.UTF_8);
+                out.write(record);
+                written += record.length;
+            }
+        }
+        return line;
+    }
+}
@@ -0,0 +1,132 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static gitlet.Utils.*;
+
+/**
+ * Splits files into content-defined chunks with FastCDC, so that equal runs
+ * of bytes in different files, or in different versions of one file, are
+ * cut into equal chunks and stored once.
+ * <p>
+ * A gear hash rolls over the bytes of the current chunk, and a chunk ends
+ * where the high bits of the hash are all zero. Since the hash only
+ * depends on the last 64 bytes, boundaries follow the contents rather
+ * than offsets: inserting or appending bytes moves the boundaries near the
+ * change and leaves the others where they were. No chunk is cut before
+ * MIN_SIZE bytes or allowed past MAX_SIZE, and, as in FastCDC's normalized
+ * chunking, a stricter mask applies before AVG_SIZE bytes and a looser one
+ * after, which keeps most chunks close to the average.
+ *
+ * @author A_Words
+ */
+class Chunker {
+    static final int MIN_SIZE = 2 * 1024;
+    static final int AVG_SIZE = 8 * 1024;
+    static final int MAX_SIZE = 64 * 1024;
+    /** Files smaller than this are stored whole even in chunked mode. */
+    static final int MIN_FILE_SIZE = 2 * AVG_SIZE;
+    /** Fifteen high bits: a cut is four times less likely than on average. */
+    private static final long MASK_SMALL = -1L << (64 - 15);
+    /** Eleven high bits: a cut is four times more likely than on average. */
+    private static final long MASK_LARGE = -1L << (64 - 11);
+    private static final int READ_SIZE = 1 << 20;
+
+    /** Random values for each byte, fixed so that every run and every
+     *  repository cuts the same contents the same way. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Receives the chunks of a file in order. */
+    interface Consumer {
+        /** Called with the chunk of LENGTH bytes at OFFSET of DATA, which is
+         *  reused once this returns. */
+        void chunk(byte[] data, int offset, int length);
+    }
+
+    /** Passes the chunks of FILE to CONSUMER, reading the file through a
+     *  fixed buffer. */
+    static void split(File file, Consumer consumer) {
+        byte[] data = new byte[READ_SIZE + MAX_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                if (!eof && end - start < MAX_SIZE) {
+                    System.arraycopy(data, start, data, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    ByteBuffer buffer = ByteBuffer.wrap(data, end, data.length - end);
+                    while (buffer.hasRemaining() && !eof) {
+                        eof = in.read(buffer) < 0;
+                    }
+                    end = buffer.position();
+                }
+                if (start == end) {
+                    return;
+                }
+                int length = cut(data, start, Math.min(end, start + MAX_SIZE));
+                consumer.chunk(data, start, length);
+                start += length;
+            }
+        } catch (IOException e) {
+            throw error("Unable to read %s.", file.getName());
+        }
+    }
+
+    /** Returns the length of the chunk that starts at START of DATA, whose
+     *  bytes up to END are available. END is at most MAX_SIZE past START
+     *  and, unless the file ends there, exactly MAX_SIZE past it. */
+    static int cut(byte[] data, int start, int end) {
+        int length = end - start;
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int normal = start + Math.min(length, AVG_SIZE);
+        long hash = 0;
+        int i = start + MIN_SIZE;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1 - start;
+            }
+        }
+        for (; i < end; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1 - start;
+            }
+        }
+        return length;
+    }
+
+    /** Totals over the chunked blobs of a repository. */
+    static class Stats {
+        /** Number of chunked blobs. */
+        long blobs;
+        /** Their total size, counting every blob in full. */
+        long size;
+        /** Number of distinct chunks among them. */
+        long chunks;
+        /** Total size of the distinct chunks, which is what is stored. */
+        long chunkSize;
+
+        /** Returns how many times smaller the distinct chunks are than the
+         *  blobs made from them. */
+        double dedupRatio() {
+            return chunkSize == 0 ? 1 : (double) size / chunkSize;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package gitlet;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs a gitlet command through the {@link Daemon} of the repository in
+ * the current directory, copying its output here as it arrives and
+ * exiting with its status. Without a running daemon the command runs in
+ * this process instead, as do commands that read standard input, which
+ * the daemon cannot see, so the client can stand in for Main anywhere:
+ *
+ *     java gitlet.Client ARGS
+ *
+ * @author A_Words
+ */
+public class Client {
+    public static void main(String[] args) throws IOException {
+        // 守护进程收不到客户端的标准输入, 读标准输入的命令在本进程中运行
+        SocketChannel daemon = readsStandardInput(args) ? null : connect();
+        if (daemon == null) {
+            Main.main(args);
+            return;
+        }
+        int status;
+        try (daemon) {
+            status = run(daemon, args);
+        }
+        System.exit(status);
+    }
+
+    /** Runs the command ARGS on DAEMON, copying its output to standard
+     *  output and error, and returns its exit status. */
+    static int run(SocketChannel daemon, String[] args) throws IOException {
+        int length = 4;
+        byte[][] encoded = new byte[args.length][];
+        for (int i = 0; i < args.length; i += 1) {
+            encoded[i] = args[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer request = ByteBuffer.allocate(length).putInt(args.length);
+        for (byte[] arg : encoded) {
+            request.putInt(arg.length).put(arg);
+        }
+        Daemon.writeFully(daemon, request.flip());
+        return copyOutput(daemon);
+    }
+
+    /** Copies the output frames from DAEMON to standard output and error
+     *  and returns the exit status that ends them. */
+    private static int copyOutput(SocketChannel daemon) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        byte[] data = new byte[0];
+        while (true) {
+            header.clear();
+            Daemon.readFully(daemon, header);
+            byte kind = header.get(0);
+            int length = header.getInt(1);
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            ByteBuffer frame = ByteBuffer.wrap(data, 0, length);
+            Daemon.readFully(daemon, frame);
+            if (kind == Daemon.STDOUT) {
+                System.out.write(data, 0, length);
+            } else if (kind == Daemon.STDERR) {
+                System.err.write(data, 0, length);
+            } else if (kind == Daemon.EXIT) {
+                System.out.flush();
+                System.err.flush();
+                return ByteBuffer.wrap(data, 0, length).getInt();
+            }
+        }
+    }
+
+    /** Returns whether the command ARGS reads standard input, which is
+     *  not passed to the daemon. */
+    private static boolean readsStandardInput(String[] args) {
+        return args.length > 0 && args[0].equals("fast-import");
+    }
+
+    /** Returns a connection to the daemon, or null if none is running. */
+    static SocketChannel connect() {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(Daemon.SOCKET));
+            return channel;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closing) {
+                    // Nothing was sent on it.
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Asks the daemon to stop and returns whether one was running. */
+    static boolean stop() throws IOException {
+        SocketChannel daemon = connect();
+        if (daemon == null) {
+            return false;
+        }
+        try (daemon) {
+            Daemon.writeFully(daemon, ByteBuffer.allocate(4).putInt(Daemon.STOP).flip());
+        }
+        return true;
+    }
+}
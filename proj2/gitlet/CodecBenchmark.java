@@ -0,0 +1,85 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * Compares the binary commit encoding with Java serialization, which
+ * commits used before: encode and decode time per commit and the stored
+ * size. One commit in ten is a merge. Each method runs a few untimed
+ * rounds first so that both are compiled before they are measured:
+ *
+ *     java gitlet.CodecBenchmark [COMMITS]
+ *
+ * @author A_Words
+ */
+public class CodecBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final int MERGE_EVERY = 10;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        List<Commit> commits = new ArrayList<>(count);
+        String parent = sha1("root");
+        for (int i = 0; i < count; i += 1) {
+            String tree = sha1("tree", Integer.toString(i));
+            String message = "Fix the parser for case " + i;
+            Commit commit = i % MERGE_EVERY == 0
+                    ? new Commit(message, tree, parent, sha1("side", Integer.toString(i)))
+                    : new Commit(message, tree, parent);
+            commits.add(commit);
+            parent = commit.getSha1();
+        }
+        System.out.printf("%d commits%n", count);
+        System.out.printf("%-22s %12s %12s %12s%n", "", "encode", "decode", "size");
+        report("java serialization", commits, Utils::serialize,
+                (sha1, bytes) -> deserialize(bytes, Commit.class));
+        report("binary", commits, Commit::encode, Commit::decode);
+    }
+
+    private static void report(String name, List<Commit> commits, Encoder encoder,
+                               Decoder decoder) {
+        List<byte[]> encoded = new ArrayList<>(commits.size());
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        long size = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            encoded.clear();
+            long start = System.nanoTime();
+            for (Commit commit : commits) {
+                encoded.add(encoder.encode(commit));
+            }
+            long encodedAt = System.nanoTime();
+            int i = 0;
+            for (byte[] bytes : encoded) {
+                Commit commit = decoder.decode(commits.get(i).getSha1(), bytes);
+                if (!commit.getMessage().equals(commits.get(i).getMessage())) {
+                    throw error("Commit %d did not survive a round trip.", i);
+                }
+                i += 1;
+            }
+            long decodedAt = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                encodeNanos += encodedAt - start;
+                decodeNanos += decodedAt - encodedAt;
+            }
+        }
+        for (byte[] bytes : encoded) {
+            size += bytes.length;
+        }
+        long ops = (long) ROUNDS * commits.size();
+        System.out.printf("%-22s %9.0f ns %9.0f ns %8d B%n", name,
+                (double) encodeNanos / ops, (double) decodeNanos / ops, size / commits.size());
+    }
+
+    private interface Encoder {
+        byte[] encode(Commit commit);
+    }
+
+    private interface Decoder {
+        Commit decode(String sha1, byte[] bytes);
+    }
+}
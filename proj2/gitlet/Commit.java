@@ -1,14 +1,18 @@
 package gitlet;
 
-import java.io.File;
-import java.io.IOException;
 import java.io.Serializable;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
-import static gitlet.Repository.COMMIT_DIR;
 import static gitlet.Utils.*;
 
 /**
@@ -17,6 +21,37 @@ import static gitlet.Utils.*;
  * @author A_Words
  */
 public class Commit implements Serializable {
+    /**
+     * Pinned to the value of the original class so that commits written
+     * before packs existed still deserialize.
+     */
+    private static final long serialVersionUID = -8876791047746797774L;
+
+    /**
+     * Leading bytes of an encoded commit. Commits from before the encoding
+     * existed are Java-serialized and start with the stream magic 0xACED.
+     * <p>
+     * After the magic come a version byte, a flag byte saying which of the
+     * optional parts follow, the commit time in epoch milliseconds and its
+     * zone offset in seconds, the 20-byte ids of the tree, the parent and
+     * the second parent, the message as a length and UTF-8 bytes and, for
+     * commits from before trees existed, the number of files followed by
+     * each file's name, as a length and UTF-8 bytes, and blob id.
+     */
+    private static final byte[] MAGIC = {'G', 'C', 'M', 'T'};
+    private static final int VERSION = 1;
+    private static final int HAS_TREE = 1;
+    private static final int HAS_PARENT = 2;
+    private static final int HAS_SECOND_PARENT = 4;
+    private static final int HAS_FILES = 8;
+
+    /**
+     * Recently loaded commits. Its size in bytes may be set with the
+     * gitlet.commitCacheSize system property.
+     */
+    static final ObjectCache<Commit> CACHE = new ObjectCache<>("commit",
+            Long.getLong("gitlet.commitCacheSize", 8L << 20), Commit::estimatedSize);
+
     /**
      * List all instance variables of the Commit class here with a useful
      * comment above them describing what that variable represents and how that
@@ -28,49 +63,83 @@ public class Commit implements Serializable {
      */
     private final String message;
     private final ZonedDateTime timestamp;
+    /**
+     * The files of commits made before trees existed, by name. Null for
+     * newer commits, which have a tree instead.
+     */
     private final TreeMap<String, String> filesMappingBlobs;
+    /** The id of the root tree, or null for the initial commit and for
+     *  commits made before trees existed. */
+    private final String treeSha1;
     private String parentSha1;
     private String secondParentSha1;
     private final String sha1;
+    /** The tree built in memory from filesMappingBlobs. */
+    private transient Tree legacyTree;
+
+    /** Creates a commit read from storage. */
+    private Commit(String sha1, String message, ZonedDateTime timestamp,
+                   TreeMap<String, String> filesMappingBlobs, String treeSha1,
+                   String parentSha1, String secondParentSha1) {
+        this.sha1 = sha1;
+        this.message = message;
+        this.timestamp = timestamp;
+        this.filesMappingBlobs = filesMappingBlobs;
+        this.treeSha1 = treeSha1;
+        this.parentSha1 = parentSha1;
+        this.secondParentSha1 = secondParentSha1;
+    }
 
     public Commit(String message, ZonedDateTime timestamp) {
         this.message = message;
         this.timestamp = timestamp;
-        filesMappingBlobs = new TreeMap<>();
+        filesMappingBlobs = null;
+        treeSha1 = null;
         sha1 = sha1(message + timestamp.toString());
     }
 
-    public Commit(String message, TreeMap<String, String> filesMappingBlobs, String parentSha1) {
-        this.message = message;
-        this.filesMappingBlobs = filesMappingBlobs;
-        this.parentSha1 = parentSha1;
-        timestamp = ZonedDateTime.now();
-        sha1 = sha1(message + timestamp + filesMappingBlobs.toString() + parentSha1);
+    public Commit(String message, String treeSha1, String parentSha1) {
+        this(message, treeSha1, parentSha1, null);
     }
 
     public Commit(
             String message,
-            TreeMap<String, String> filesMappingBlobs,
+            String treeSha1,
             String parentSha1,
             String secondParentSha1) {
+        this(message, ZonedDateTime.now().truncatedTo(ChronoUnit.MILLIS),
+                treeSha1, parentSha1, secondParentSha1);
+    }
+
+    /** Creates a commit made at TIMESTAMP, such as one imported from
+     *  another system's history. */
+    Commit(String message, ZonedDateTime timestamp, String treeSha1,
+           String parentSha1, String secondParentSha1) {
         this.message = message;
-        this.filesMappingBlobs = filesMappingBlobs;
+        this.filesMappingBlobs = null;
+        this.treeSha1 = treeSha1;
         this.parentSha1 = parentSha1;
         this.secondParentSha1 = secondParentSha1;
-        timestamp = ZonedDateTime.now();
+        this.timestamp = timestamp;
         sha1 = sha1(message
                 + timestamp
-                + filesMappingBlobs.toString()
+                + treeSha1
                 + parentSha1
-                + secondParentSha1);
+                + (secondParentSha1 == null ? "" : secondParentSha1));
     }
 
     public static Commit load(String sha1) {
-        File file = join(COMMIT_DIR, sha1);
-        if (!file.exists()) {
+        Commit commit = CACHE.get(sha1);
+        if (commit != null) {
+            return commit;
+        }
+        byte[] contents = ObjectStore.read(ObjectStore.COMMIT, sha1);
+        if (contents == null) {
             return null;
         }
-        return readObject(file, Commit.class);
+        commit = decode(sha1, contents);
+        CACHE.put(sha1, commit);
+        return commit;
     }
 
     public Commit parent() {
@@ -108,32 +177,136 @@ public class Commit implements Serializable {
     }
 
     public void save() {
-        File file = join(COMMIT_DIR, sha1);
-        writeObject(file, this);
+        ObjectStore.write(ObjectStore.COMMIT, sha1, encode());
+        CACHE.put(sha1, this);
     }
 
-    public File findFile(String fileName) {
-        String blobSha1 = findFileSha1(fileName);
-        if (blobSha1 == null) {
-            return null;
+    /** Returns the blob id of the file at PATH, or null if this commit
+     *  does not track it. */
+    public String findFileSha1(String path) {
+        return getTree().findFile(path);
+    }
+
+    public TreeSet<String> getTrackedFiles() {
+        return new TreeSet<>(getTree().files().keySet());
+    }
+
+    /** Marks this commit's tree and everything under it that MARKS has
+     *  not marked before. */
+    void markTree(ObjectStore.Marks marks) {
+        // Commits from before trees existed have trees built in memory.
+        if (treeSha1 == null || marks.mark(ObjectStore.TREE, treeSha1)) {
+            getTree().mark(marks);
         }
-        File blobFile = Blob.load(blobSha1);
-        try {
-            if (Files.size(blobFile.toPath()) == 0) {
-                return null;
-            } else {
-                return blobFile;
+    }
+
+    /** Returns the root tree of this commit. */
+    Tree getTree() {
+        if (treeSha1 != null) {
+            Tree tree = Tree.load(treeSha1);
+            if (tree == null) {
+                throw error("Missing tree %s.", treeSha1);
             }
-        } catch (IOException e) {
-            throw error("Internal error reading blob file.");
+            return tree;
+        }
+        if (filesMappingBlobs == null) {
+            return Tree.EMPTY;
         }
+        if (legacyTree == null) {
+            legacyTree = Tree.EMPTY.update(filesMappingBlobs);
+        }
+        return legacyTree;
     }
 
-    public String findFileSha1(String fileName) {
-        return filesMappingBlobs.get(fileName);
+    /** Returns the stored form of this commit. */
+    byte[] encode() {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int flags = (treeSha1 != null ? HAS_TREE : 0)
+                | (parentSha1 != null ? HAS_PARENT : 0)
+                | (secondParentSha1 != null ? HAS_SECOND_PARENT : 0)
+                | (filesMappingBlobs != null ? HAS_FILES : 0);
+        int size = MAGIC.length + 2 + 8 + 4 + 3 * Pack.ID_SIZE + 4 + messageBytes.length;
+        List<byte[]> names = new ArrayList<>();
+        if (filesMappingBlobs != null) {
+            size += 4;
+            for (String name : filesMappingBlobs.keySet()) {
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                names.add(nameBytes);
+                size += 4 + nameBytes.length + Pack.ID_SIZE;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC).put((byte) VERSION).put((byte) flags)
+                .putLong(timestamp.toInstant().toEpochMilli())
+                .putInt(timestamp.getOffset().getTotalSeconds());
+        for (String id : new String[]{treeSha1, parentSha1, secondParentSha1}) {
+            if (id != null) {
+                out.put(fromHex(id));
+            }
+        }
+        out.putInt(messageBytes.length).put(messageBytes);
+        if (filesMappingBlobs != null) {
+            out.putInt(names.size());
+            int i = 0;
+            for (String blobSha1 : filesMappingBlobs.values()) {
+                out.putInt(names.get(i).length).put(names.get(i)).put(fromHex(blobSha1));
+                i += 1;
+            }
+        }
+        return Arrays.copyOf(out.array(), out.position());
     }
 
-    public TreeSet<String> getTrackedFiles() {
-        return new TreeSet<>(filesMappingBlobs.keySet());
+    /** Returns the commit SHA1 stored as CONTENTS, which may be encoded or,
+     *  for commits made before the encoding existed, Java-serialized. */
+    static Commit decode(String sha1, byte[] contents) {
+        if (contents.length < MAGIC.length
+                || !Arrays.equals(contents, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            return deserialize(contents, Commit.class);
+        }
+        ByteBuffer in = ByteBuffer.wrap(contents, MAGIC.length, contents.length - MAGIC.length);
+        if (in.get() != VERSION) {
+            throw error("Commit %s has an unknown format.", sha1);
+        }
+        int flags = in.get();
+        long millis = in.getLong();
+        ZoneOffset offset = ZoneOffset.ofTotalSeconds(in.getInt());
+        ZonedDateTime timestamp = ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), offset);
+        String treeSha1 = (flags & HAS_TREE) != 0 ? readId(in) : null;
+        String parentSha1 = (flags & HAS_PARENT) != 0 ? readId(in) : null;
+        String secondParentSha1 = (flags & HAS_SECOND_PARENT) != 0 ? readId(in) : null;
+        String message = readString(in);
+        TreeMap<String, String> files = null;
+        if ((flags & HAS_FILES) != 0) {
+            files = new TreeMap<>();
+            for (int n = in.getInt(); n > 0; n -= 1) {
+                files.put(readString(in), readId(in));
+            }
+        }
+        return new Commit(sha1, message, timestamp, files, treeSha1,
+                parentSha1, secondParentSha1);
+    }
+
+    private static String readId(ByteBuffer in) {
+        byte[] id = new byte[Pack.ID_SIZE];
+        in.get(id);
+        return toHex(id);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /** Returns a rough estimate of the memory this commit takes. */
+    private long estimatedSize() {
+        long size = 256 + 2L * message.length();
+        if (filesMappingBlobs != null) {
+            for (String fileName : filesMappingBlobs.keySet()) {
+                size += 160 + 2L * fileName.length();
+            }
+        }
+        return size;
     }
 }
@@ -0,0 +1,242 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Reachability bitmaps over the rows of the {@link CommitGraph}, so that
+ * asking whether one commit is an ancestor of another, or how many
+ * commits two branches do not share, reads a few stored bitmaps instead
+ * of walking the history.
+ * <p>
+ * Every commit whose generation is a multiple of {@link #INTERVAL} has a
+ * bitmap of itself and all its ancestors, compressed with {@link Ewah}.
+ * The commits reachable from any other commit are found by walking down
+ * from it until every path reaches a commit with a bitmap, at most
+ * INTERVAL generations on each path, and adding those bitmaps in. The
+ * bitmaps are made when a walk first needs them: a walk that passes a
+ * commit that should have one but does not goes on below it, and then
+ * the missing bitmaps are built lowest first, each from the ones below
+ * it, and appended to the file.
+ * <p>
+ * The file is "GBMP", a version and the number of bitmaps, then each
+ * bitmap: its row, the 20-byte commit id, the number of compressed words
+ * and the words. Like the commit graph, a bitmap only counts once the
+ * header's count covers it. The bitmaps only cache what the graph says,
+ * so a file that no longer matches the graph's rows, or is in another
+ * format, is started over.
+ *
+ * @author A_Words
+ */
+class CommitBitmaps {
+    private static final File BITMAP_FILE = join(GITLET_DIR, "commit-bitmaps");
+    private static final byte[] MAGIC = {'G', 'B', 'M', 'P'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int COUNT = 8;
+    /** Generations between commits that have a bitmap. */
+    static final int INTERVAL = 64;
+
+    /** The stored bitmaps by row, or null before they are read. */
+    private static Map<Integer, long[]> bitmaps;
+    /** Bitmaps built by this command and not yet written. */
+    private static final List<Integer> UNWRITTEN = new ArrayList<>();
+
+    /** Returns whether the row ANCESTOR is the row DESCENDANT or one of
+     *  its ancestors. */
+    static boolean isAncestor(int ancestor, int descendant) {
+        if (ancestor == CommitGraph.NONE || descendant == CommitGraph.NONE) {
+            return false;
+        }
+        if (ancestor == descendant) {
+            return true;
+        }
+        if (CommitGraph.generation(ancestor) >= CommitGraph.generation(descendant)) {
+            return false;
+        }
+        long[] reachable = reachable(descendant);
+        return (reachable[ancestor >>> 6] & 1L << ancestor) != 0;
+    }
+
+    /** Returns the number of commits reachable from the row FIRST but not
+     *  from SECOND, and the number reachable from SECOND but not FIRST. */
+    static int[] aheadBehind(int first, int second) {
+        long[] fromFirst = reachable(first);
+        long[] fromSecond = reachable(second);
+        int ahead = 0;
+        int behind = 0;
+        for (int i = 0; i < fromFirst.length; i += 1) {
+            ahead += Long.bitCount(fromFirst[i] & ~fromSecond[i]);
+            behind += Long.bitCount(fromSecond[i] & ~fromFirst[i]);
+        }
+        return new int[]{ahead, behind};
+    }
+
+    /** Returns the bitmap, one bit per row, of ROW and its ancestors. */
+    static long[] reachable(int row) {
+        load();
+        List<Integer> missing = new ArrayList<>();
+        long[] words = walk(row, missing);
+        if (!missing.isEmpty()) {
+            missing.sort(null);
+            for (int selected : missing) {
+                long[] own = walk(selected, null);
+                bitmaps.put(selected, Ewah.compress(own, (selected >>> 6) + 1));
+                UNWRITTEN.add(selected);
+            }
+            write();
+        }
+        return words;
+    }
+
+    /** Forgets the bitmaps read so far, for a daemon. */
+    static void reset() {
+        bitmaps = null;
+        UNWRITTEN.clear();
+    }
+
+    /** Deletes the bitmaps along with the commit graph they index. */
+    static void discard() {
+        reset();
+        if (BITMAP_FILE.exists() && !BITMAP_FILE.delete()) {
+            throw error("Unable to delete commit bitmaps.");
+        }
+    }
+
+    /** Returns the bitmap of ROW and its ancestors, adding the stored
+     *  bitmaps of the commits that have one. Commits that should have one
+     *  but do not are walked through and, unless MISSING is null, added to
+     *  MISSING. */
+    private static long[] walk(int row, List<Integer> missing) {
+        long[] words = new long[(CommitGraph.size() + 63) >>> 6];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(row);
+        while (!stack.isEmpty()) {
+            int r = stack.pop();
+            if (r == CommitGraph.NONE || (words[r >>> 6] & 1L << r) != 0) {
+                continue;
+            }
+            if (isSelected(r)) {
+                long[] stored = bitmaps.get(r);
+                if (stored != null) {
+                    Ewah.orInto(stored, words);
+                    continue;
+                }
+                if (missing != null) {
+                    missing.add(r);
+                }
+            }
+            words[r >>> 6] |= 1L << r;
+            stack.push(CommitGraph.parent(r));
+            stack.push(CommitGraph.secondParent(r));
+        }
+        return words;
+    }
+
+    private static boolean isSelected(int row) {
+        return CommitGraph.generation(row) % INTERVAL == 0;
+    }
+
+    /** Reads the stored bitmaps, starting the file over if it does not
+     *  match the commit graph. */
+    private static void load() {
+        if (bitmaps != null) {
+            return;
+        }
+        bitmaps = new HashMap<>();
+        if (!BITMAP_FILE.isFile()) {
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(readContents(BITMAP_FILE));
+        if (in.remaining() < HEADER_SIZE || !Arrays.equals(readMagic(in), MAGIC)
+                || in.getInt() != VERSION) {
+            BITMAP_FILE.delete();
+            return;
+        }
+        int count = in.getInt();
+        byte[] id = new byte[Pack.ID_SIZE];
+        try {
+            for (int i = 0; i < count; i += 1) {
+                int row = in.getInt();
+                in.get(id);
+                long[] compressed = new long[in.getInt()];
+                in.asLongBuffer().get(compressed);
+                in.position(in.position() + compressed.length * 8);
+                if (row < 0 || row >= CommitGraph.size()
+                        || !CommitGraph.sha1(row).equals(toHex(id))) {
+                    // The graph was started over since the bitmaps were made.
+                    bitmaps.clear();
+                    BITMAP_FILE.delete();
+                    return;
+                }
+                bitmaps.put(row, compressed);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            bitmaps.clear();
+            BITMAP_FILE.delete();
+        }
+    }
+
+    private static byte[] readMagic(ByteBuffer in) {
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        return magic;
+    }
+
+    /** Appends the unwritten bitmaps and makes them durable, bitmaps
+     *  before the count that covers them. Anything after the last counted
+     *  bitmap, left by an interrupted append, is overwritten. */
+    private static void write() {
+        try (RandomAccessFile file = new RandomAccessFile(BITMAP_FILE, "rw")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            int count = header.getInt(COUNT);
+            long end = HEADER_SIZE;
+            if (channel.size() < HEADER_SIZE) {
+                header.clear();
+                header.put(MAGIC).putInt(VERSION).putInt(0).flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+            }
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (int i = 0; i < count; i += 1) {
+                length.clear();
+                channel.read(length, end + 4 + Pack.ID_SIZE);
+                end += 4 + Pack.ID_SIZE + 4 + 8L * length.getInt(0);
+            }
+            for (int row : UNWRITTEN) {
+                long[] compressed = bitmaps.get(row);
+                ByteBuffer entry = ByteBuffer.allocate(4 + Pack.ID_SIZE + 4 + compressed.length * 8);
+                entry.putInt(row).put(fromHex(CommitGraph.sha1(row))).putInt(compressed.length);
+                entry.asLongBuffer().put(compressed);
+                entry.rewind();
+                while (entry.hasRemaining()) {
+                    end += channel.write(entry, end);
+                }
+                count += 1;
+            }
+            channel.truncate(end);
+            channel.force(false);
+            channel.write(ByteBuffer.allocate(4).putInt(count).flip(), COUNT);
+            channel.force(false);
+        } catch (IOException e) {
+            throw error("Unable to write commit bitmaps.");
+        }
+        UNWRITTEN.clear();
+    }
+}
@@ -0,0 +1,475 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * A compact, append-only table of the commit graph, so that ancestry
+ * walks read fixed-width rows instead of deserializing commits.
+ * <p>
+ * The file is "GCGR", a version and the number of rows, then one row per
+ * commit, parents always before their children: the 20-byte commit id,
+ * the row of the first and second parent (-1 if absent), the generation
+ * number (1 for a root, else one more than the largest generation of its
+ * parents) and the commit time in epoch milliseconds. The file is mapped
+ * with room to spare for new rows; a row only counts once the header's
+ * row count covers it, so an interrupted append leaves the graph as it
+ * was. Rows are synced before the count that covers them, unless the
+ * {@link Journal} covers them. Commits missing from the file, such as
+ * those of repositories created before it existed, are added on first
+ * lookup.
+ * <p>
+ * Rows are written into the shared mapping, so commands that append, even
+ * in different processes, take turns through a lock on commit-graph.lock:
+ * a command takes it at its first append, takes in the rows appended by
+ * the command before it so that its own go after them, and holds it until
+ * {@link #sync()} counts them. The lock goes away with the process.
+ *
+ * @author A_Words
+ */
+class CommitGraph {
+    private static final File GRAPH_FILE = join(GITLET_DIR, "commit-graph");
+    private static final File LOCK_FILE = join(GITLET_DIR, "commit-graph.lock");
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int COUNT = 8;
+    private static final int MIN_CAPACITY = 64;
+    private static final int ROW_SIZE = 40;
+    private static final int PARENT = 20;
+    private static final int SECOND_PARENT = 24;
+    private static final int GENERATION = 28;
+    private static final int TIMESTAMP = 32;
+    static final int NONE = -1;
+    private static final int FROM_FIRST = 1;
+    private static final int FROM_SECOND = 2;
+
+    private static FileChannel channel;
+    private static MappedByteBuffer rows;
+    private static int count;
+    private static int capacity;
+    /** Open-addressing table from the first bytes of an id to its row + 1. */
+    private static int[] table;
+    /** The writers' lock while this command appends rows, or null. */
+    private static FileLock lock;
+
+    /** Takes in the rows other processes have appended since the graph was
+     *  opened, keeping the rows and the lookup table already built. A graph
+     *  file that was started over is opened again, as is one this command
+     *  appended to without syncing, whose rows are dropped. */
+    static void refresh() {
+        if (lock != null) {
+            // 上一个命令追加了行却没能同步
+            try {
+                if (channel != null) {
+                    close();
+                }
+            } catch (IOException e) {
+                throw error("Unable to close commit graph.");
+            }
+            unlock();
+        }
+        takeInNewRows();
+    }
+
+    /** Takes in the rows other processes have appended since the graph was
+     *  opened, or closes a graph file that was started over. */
+    private static void takeInNewRows() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            int latest = hasValidHeader() ? rows.getInt(COUNT) : NONE;
+            if (latest < count) {
+                close();
+                return;
+            }
+            long fileRows = (channel.size() - HEADER_SIZE) / ROW_SIZE;
+            if (fileRows > capacity) {
+                map((int) fileRows);
+            }
+        } catch (IOException e) {
+            throw error("Unable to read commit graph.");
+        }
+        while (count < rows.getInt(COUNT)) {
+            count += 1;
+            insert(count - 1);
+        }
+    }
+
+    /** Returns the row of the commit SHA1, adding it and any missing
+     *  ancestors first. Returns NONE if there is no such commit. */
+    static int indexOf(String sha1) {
+        open();
+        byte[] id = sha1 == null ? null : fromHex(sha1);
+        if (id == null || id.length != Pack.ID_SIZE) {
+            return NONE;
+        }
+        int row = find(id);
+        if (row != NONE) {
+            return row;
+        }
+        row = importCommits(sha1);
+        sync();
+        return row;
+    }
+
+    /** Records COMMIT durably. */
+    static void add(Commit commit) {
+        indexOf(commit.getSha1());
+    }
+
+    /** Returns whether the commit SHA1 has a row, without adding it. */
+    static boolean contains(String sha1) {
+        open();
+        return find(fromHex(sha1)) != NONE;
+    }
+
+    static int size() {
+        open();
+        return count;
+    }
+
+    static String sha1(int row) {
+        byte[] id = new byte[Pack.ID_SIZE];
+        rows.get(HEADER_SIZE + row * ROW_SIZE, id);
+        return toHex(id);
+    }
+
+    static int parent(int row) {
+        return rows.getInt(HEADER_SIZE + row * ROW_SIZE + PARENT);
+    }
+
+    static int secondParent(int row) {
+        return rows.getInt(HEADER_SIZE + row * ROW_SIZE + SECOND_PARENT);
+    }
+
+    static int generation(int row) {
+        return rows.getInt(HEADER_SIZE + row * ROW_SIZE + GENERATION);
+    }
+
+    static long timestamp(int row) {
+        return rows.getLong(HEADER_SIZE + row * ROW_SIZE + TIMESTAMP);
+    }
+
+    /** Returns the row of a best common ancestor of the rows FIRST and
+     *  SECOND, one that is not an ancestor of any other common ancestor, or
+     *  NONE if they have no common ancestor.
+     *  <p>
+     *  Walks down from both sides at once, always expanding the row with
+     *  the highest generation. A row's flags are final when it is removed
+     *  from the queue, because everything above it has been expanded, so
+     *  the first row reached from both sides is the answer and the walk
+     *  never goes below it. */
+    static int mergeBase(int first, int second) {
+        if (first == NONE || second == NONE) {
+            return NONE;
+        }
+        Map<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Integer.compare(generation(b), generation(a));
+            return cmp != 0 ? cmp : Long.compare(timestamp(b), timestamp(a));
+        });
+        flags.put(first, FROM_FIRST);
+        flags.merge(second, FROM_SECOND, (x, y) -> x | y);
+        queue.add(first);
+        if (second != first) {
+            queue.add(second);
+        }
+        while (!queue.isEmpty()) {
+            int row = queue.poll();
+            int rowFlags = flags.get(row);
+            if (rowFlags == (FROM_FIRST | FROM_SECOND)) {
+                return row;
+            }
+            for (int parent : new int[]{parent(row), secondParent(row)}) {
+                if (parent == NONE) {
+                    continue;
+                }
+                int parentFlags = flags.getOrDefault(parent, 0);
+                if ((parentFlags | rowFlags) != parentFlags) {
+                    if (parentFlags == 0) {
+                        queue.add(parent);
+                    }
+                    flags.put(parent, parentFlags | rowFlags);
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /** Appends rows for SHA1 and all of its ancestors not yet stored,
+     *  parents first, and returns the row of SHA1. */
+    private static int importCommits(String sha1) {
+        Map<String, Commit> loaded = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(sha1);
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            if (find(fromHex(id)) != NONE) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = loaded.computeIfAbsent(id, Commit::load);
+            if (commit == null) {
+                return NONE;
+            }
+            boolean ready = true;
+            for (String parentSha1 : new String[]{
+                    commit.getParentSha1(), commit.getSecondParentSha1()}) {
+                if (parentSha1 != null && find(fromHex(parentSha1)) == NONE) {
+                    stack.push(parentSha1);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                append(commit);
+            }
+        }
+        return find(fromHex(sha1));
+    }
+
+    private static void append(Commit commit) {
+        append(commit.getSha1(), commit.getParentSha1(), commit.getSecondParentSha1(),
+                commit.getTimestamp().toInstant().toEpochMilli());
+    }
+
+    /** Appends a row for the commit SHA1 with the given parents, which must
+     *  already be stored or be null, and commit time TIMESTAMP. Besides
+     *  recording real commits, this lets benchmarks build large synthetic
+     *  graphs without creating commit objects. The row is not durable until
+     *  the next {@link #sync()}, and the commit is skipped if another
+     *  command has added it. */
+    static void append(String sha1, String parentSha1, String secondParentSha1, long timestamp) {
+        open();
+        if (lock == null) {
+            lock();
+            // 其他命令可能已追加了行, 新行要接在它们之后
+            takeInNewRows();
+            open();
+        }
+        if (find(fromHex(sha1)) != NONE) {
+            return;
+        }
+        int parent = rowOf(parentSha1);
+        int secondParent = rowOf(secondParentSha1);
+        int generation = 1;
+        if (parent != NONE) {
+            generation = Math.max(generation, generation(parent) + 1);
+        }
+        if (secondParent != NONE) {
+            generation = Math.max(generation, generation(secondParent) + 1);
+        }
+        if (count == capacity) {
+            map(capacity * 2);
+        }
+        int base = HEADER_SIZE + count * ROW_SIZE;
+        rows.put(base, fromHex(sha1))
+                .putInt(base + PARENT, parent)
+                .putInt(base + SECOND_PARENT, secondParent)
+                .putInt(base + GENERATION, generation)
+                .putLong(base + TIMESTAMP, timestamp);
+        count += 1;
+        insert(count - 1);
+    }
+
+    /** Makes every appended row count, durably, rows before the row count,
+     *  unless the {@link Journal} covers them, and lets other commands
+     *  append. */
+    static void sync() {
+        if (rows != null && rows.getInt(COUNT) != count) {
+            boolean synced = !Journal.covers();
+            if (synced) {
+                rows.force();
+            }
+            rows.putInt(COUNT, count);
+            if (synced) {
+                rows.force();
+            }
+        }
+        unlock();
+    }
+
+    /** Makes the rows that count, whoever appended them, durable. */
+    static void force() {
+        if (!GRAPH_FILE.isFile()) {
+            return;
+        }
+        try (FileChannel file = FileChannel.open(GRAPH_FILE.toPath(), StandardOpenOption.WRITE)) {
+            file.force(false);
+        } catch (IOException e) {
+            throw error("Unable to sync commit graph.");
+        }
+    }
+
+    /** Closes and deletes the graph, whose rows may not all have survived
+     *  a crash of the machine. It is rebuilt from the commits as they are
+     *  looked up. */
+    static void discard() {
+        try {
+            if (channel != null) {
+                close();
+            }
+            unlock();
+            Files.deleteIfExists(GRAPH_FILE.toPath());
+        } catch (IOException e) {
+            throw error("Unable to delete commit graph.");
+        }
+    }
+
+    /** Takes the lock that writers of the graph share, waiting for a
+     *  command that holds it, unless this command holds it already. */
+    private static void lock() {
+        if (lock != null) {
+            return;
+        }
+        try {
+            FileChannel lockChannel = FileChannel.open(LOCK_FILE.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.lock();
+        } catch (IOException e) {
+            throw error("Unable to lock commit graph.");
+        }
+    }
+
+    private static void unlock() {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            throw error("Unable to unlock commit graph.");
+        }
+        lock = null;
+    }
+
+    /** Maps room for at least MINCAPACITY rows, growing the file. */
+    private static void map(int minCapacity) {
+        capacity = Math.max(MIN_CAPACITY, minCapacity);
+        try {
+            rows = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * ROW_SIZE);
+        } catch (IOException e) {
+            throw error("Unable to map commit graph.");
+        }
+    }
+
+    private static int rowOf(String sha1) {
+        return sha1 == null ? NONE : find(fromHex(sha1));
+    }
+
+    private static int find(byte[] id) {
+        int mask = table.length - 1;
+        for (int s = slot(id) & mask; table[s] != 0; s = (s + 1) & mask) {
+            int row = table[s] - 1;
+            if (idEquals(row, id)) {
+                return row;
+            }
+        }
+        return NONE;
+    }
+
+    private static void insert(int row) {
+        if ((count + 1) * 2 > table.length) {
+            table = new int[table.length * 2];
+            for (int r = 0; r < count; r += 1) {
+                place(r);
+            }
+        } else {
+            place(row);
+        }
+    }
+
+    private static void place(int row) {
+        int mask = table.length - 1;
+        int s = rows.getInt(HEADER_SIZE + row * ROW_SIZE) & mask;
+        while (table[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        table[s] = row + 1;
+    }
+
+    private static int slot(byte[] id) {
+        return ByteBuffer.wrap(id).getInt();
+    }
+
+    private static boolean idEquals(int row, byte[] id) {
+        int base = HEADER_SIZE + row * ROW_SIZE;
+        for (int k = 0; k < id.length; k += 1) {
+            if (rows.get(base + k) != id[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Maps the graph file, creating it if needed. The graph only caches
+     *  what the commits already say, so a file in another format is simply
+     *  started over. */
+    private static void open() {
+        if (channel != null) {
+            return;
+        }
+        try {
+            channel = new RandomAccessFile(GRAPH_FILE, "rw").getChannel();
+            if (!hasValidHeader()) {
+                boolean locked = lock != null;
+                lock();
+                // 持锁后再看一次, 别的命令可能刚刚写好了文件
+                if (!hasValidHeader()) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.put(MAGIC).putInt(VERSION).putInt(0).flip();
+                    channel.truncate(0);
+                    channel.write(header, 0);
+                }
+                if (!locked) {
+                    unlock();
+                }
+            }
+            map((int) ((channel.size() - HEADER_SIZE) / ROW_SIZE));
+        } catch (IOException e) {
+            throw error("Unable to open commit graph.");
+        }
+        count = rows.getInt(COUNT);
+        table = new int[Math.max(16, Integer.highestOneBit(Math.max(1, count)) << 2)];
+        for (int r = 0; r < count; r += 1) {
+            place(r);
+        }
+    }
+
+    private static void close() throws IOException {
+        channel.close();
+        channel = null;
+        rows = null;
+    }
+
+    private static boolean hasValidHeader() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(0, magic);
+        return Arrays.equals(magic, MAGIC) && header.getInt(MAGIC.length) == VERSION;
+    }
+}
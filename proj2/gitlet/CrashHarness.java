@@ -0,0 +1,185 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Kills commit commands partway and checks that the next command finds
+ * the repository consistent: either the commit never happened, the
+ * branch is unchanged and its files are still staged, or it did, the
+ * branch points at it and nothing is staged. First each step that
+ * {@link Journal#crashPoint} names is crashed at once, checking the
+ * outcome each must have; then a commit is crashed and the next command
+ * recovers as if after a reboot, which must rebuild the commit graph and
+ * message index the journal covered; then ROUNDS commits are killed at
+ * random times. Each command runs in a new JVM. Must be run in an empty
+ * directory:
+ *
+ *     java gitlet.CrashHarness [ROUNDS]
+ *
+ * @author A_Words
+ */
+public class CrashHarness {
+    /** The crash points, in order, and whether the commit survives a
+     *  crash at each. */
+    private static final String[] STEPS = {"saved", "journaled", "ref-updated", "staging-cleared"};
+    private static final boolean[] COMMITTED = {false, true, true, true};
+    private static final String FILE_NAME = "file.txt";
+    private static final File LOCK_FILE = join(GITLET_DIR, "refs.lock");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the harness in an empty directory.");
+            return;
+        }
+        gitlet("init");
+        String last = "initial commit";
+        for (int i = 0; i < STEPS.length; i += 1) {
+            String message = "crash at " + STEPS[i];
+            stage(message);
+            int status = start(gitletCommand(STEPS[i], null, "commit", message)).waitFor();
+            check(status == Journal.CRASH_STATUS, "commit did not crash at %s", STEPS[i]);
+            verify(last, message, COMMITTED[i] ? message : last);
+            last = message;
+            System.out.printf("%-16s %s%n", STEPS[i], COMMITTED[i] ? "committed" : "rolled back");
+        }
+
+        String rebootMessage = "crash before reboot";
+        stage(rebootMessage);
+        int status = start(gitletCommand("journaled", null, "commit", rebootMessage)).waitFor();
+        check(status == Journal.CRASH_STATUS, "commit did not crash before the reboot");
+        String found = gitlet(gitletCommand(null, "rebooted", "find", rebootMessage));
+        check(found.matches("[0-9a-f]{40}\n"), "find printed \"%s\" after the reboot", found);
+        verify(last, rebootMessage, rebootMessage);
+        last = rebootMessage;
+        System.out.printf("%-16s %s%n", "reboot", "committed");
+
+        Random random = new Random(61);
+        long commitMillis = timeCommit(last);
+        last = "timed commit";
+        int committed = 0;
+        int staleLocks = 0;
+        for (int i = 0; i < rounds; i += 1) {
+            String message = "round " + i;
+            stage(message);
+            Process commit = start(gitletCommand(null, null, "commit", message));
+            // Most of a commit's time is starting the JVM, so aim past it.
+            Thread.sleep(commitMillis / 2 + random.nextInt((int) commitMillis + 1));
+            commit.destroyForcibly().waitFor();
+            if (LOCK_FILE.exists() && !gitlet("status").contains("=== Branches ===")) {
+                // A command killed while writing the refs leaves their
+                // lock behind, and the next one says so rather than guess.
+                staleLocks += 1;
+                LOCK_FILE.delete();
+            }
+            committed += verify(last, message, null) ? 1 : 0;
+            last = message;
+        }
+        System.out.printf("%d killed commits: %d committed, %d rolled back, "
+                + "%d stale ref locks%n", rounds, committed, rounds - committed, staleLocks);
+    }
+
+    /** Writes MESSAGE into the file and stages it. */
+    private static void stage(String message) throws IOException, InterruptedException {
+        writeContents(join(CWD, FILE_NAME), message + "\n");
+        gitlet("add", FILE_NAME);
+    }
+
+    /**
+     * Checks that after a commit of MESSAGE on top of LAST was killed,
+     * the head commit is EXPECTED, or either if EXPECTED is null, with the
+     * staging area to match. If the commit was rolled back, makes it again
+     * and checks that it takes. Returns whether it survived the kill.
+     */
+    private static boolean verify(String last, String message, String expected)
+            throws IOException, InterruptedException {
+        String status = gitlet("status");
+        String head = headMessage();
+        boolean staged = status.contains("=== Staged Files ===\n" + FILE_NAME + "\n");
+        check(head.equals(last) || head.equals(message),
+                "head is \"%s\" after committing \"%s\" on \"%s\"", head, message, last);
+        check(expected == null || head.equals(expected),
+                "head is \"%s\", not \"%s\"", head, expected);
+        if (head.equals(message)) {
+            check(!staged, "\"%s\" was committed but its file is still staged", message);
+            return true;
+        }
+        check(staged, "\"%s\" was rolled back but its file is no longer staged", message);
+        gitlet("commit", message);
+        check(headMessage().equals(message), "retrying \"%s\" failed", message);
+        return false;
+    }
+
+    /** Commits once on top of LAST and returns how long it took. */
+    private static long timeCommit(String last) throws IOException, InterruptedException {
+        stage("timed commit");
+        long start = System.nanoTime();
+        gitlet("commit", "timed commit");
+        long millis = (System.nanoTime() - start) / 1000000;
+        check(headMessage().equals("timed commit"), "commit on \"%s\" failed", last);
+        return millis;
+    }
+
+    private static String headMessage() throws IOException, InterruptedException {
+        String[] lines = gitlet("log", "-n", "1").split("\n");
+        check(lines.length >= 4, "log printed no commit");
+        return lines[lines.length - 1];
+    }
+
+    /** Runs gitlet with ARGS and returns its output. */
+    private static String gitlet(String... args) throws IOException, InterruptedException {
+        return gitlet(gitletCommand(null, null, args));
+    }
+
+    /** Runs COMMAND and returns its output. */
+    private static String gitlet(List<String> command) throws IOException, InterruptedException {
+        Process process = start(command);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            in.transferTo(output);
+        }
+        process.waitFor();
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Returns the command that runs gitlet with ARGS in a new JVM,
+     *  crashing at CRASHAT unless it is null, and seeing the boot BOOTID
+     *  unless it is null. */
+    private static List<String> gitletCommand(String crashAt, String bootId, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(join(new File(System.getProperty("java.home")), "bin", "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        if (crashAt != null) {
+            command.add("-Dgitlet.crashAt=" + crashAt);
+        }
+        if (bootId != null) {
+            command.add("-Dgitlet.bootId=" + bootId);
+        }
+        command.add("gitlet.Main");
+        command.addAll(List.of(args));
+        return command;
+    }
+
+    /** Starts COMMAND with its output and error together on one pipe. */
+    private static Process start(List<String> command) throws IOException {
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    private static void check(boolean condition, String msg, Object... args) {
+        if (!condition) {
+            throw error(msg, args);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static gitlet.Repository.GITLET_DIR;
+
+/**
+ * Runs gitlet commands for {@link Client}s in one long-lived process, so
+ * that commands skip JVM startup and find classes loaded, code compiled
+ * and the object caches, packs and commit graph already in memory. Start
+ * it in the repository directory and stop it from there:
+ *
+ *     java gitlet.Daemon
+ *     java gitlet.Daemon stop
+ * <p>
+ * The daemon listens on the Unix-domain socket .gitlet/daemon.sock and
+ * runs one command at a time, exactly as {@link Main#main} would: its
+ * standard output and error go to the client as they are written, and
+ * where the command would exit the process, see {@link Utils#exit}, only
+ * the command ends. Before each command the daemon drops what could have
+ * changed since the last one, the refs, the stat index, the pending pack,
+ * the message index and the commit bitmaps, recovers the journal again,
+ * and picks up packs and commit graph rows other processes added; objects
+ * themselves never change, so they stay cached.
+ * <p>
+ * A request is the number of arguments followed by each argument, as an
+ * int length and UTF-8 bytes; a count of -1 stops the daemon. The reply
+ * is a series of frames, each a kind byte and an int length followed by
+ * that many bytes: standard output, standard error, and finally the exit
+ * status as an int.
+ *
+ * @author A_Words
+ */
+public class Daemon {
+    /** The socket path, relative to the repository directory, so that it
+     *  stays short of the limit on socket path lengths. */
+    static final Path SOCKET = Path.of(".gitlet", "daemon.sock");
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+    static final int STOP = -1;
+    private static final int FRAME_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile boolean serving;
+
+    /** Thrown by {@link Utils#exit} under the daemon to end a command. */
+    static class Exit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        Exit(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    static boolean isServing() {
+        return serving;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("stop")) {
+            if (!Client.stop()) {
+                System.out.println("No gitlet daemon is running.");
+            }
+            return;
+        }
+        if (args.length != 0) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        if (!GITLET_DIR.isDirectory()) {
+            System.out.println("Not in an initialized Gitlet directory.");
+            return;
+        }
+        ServerSocketChannel server = bind();
+        if (server == null) {
+            System.out.println("A gitlet daemon is already running.");
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> SOCKET.toFile().delete()));
+        serving = true;
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        try (server) {
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    String[] request = readRequest(client);
+                    if (request == null) {
+                        break;
+                    }
+                    serve(client, request);
+                } catch (IOException e) {
+                    // The client went away; serve the next one.
+                } finally {
+                    System.setOut(out);
+                    System.setErr(err);
+                }
+            }
+        } finally {
+            serving = false;
+            Files.deleteIfExists(SOCKET);
+        }
+    }
+
+    /** Binds the socket, replacing one left behind by a daemon that is no
+     *  longer running. Returns null if a daemon is running. */
+    private static ServerSocketChannel bind() throws IOException {
+        if (Files.exists(SOCKET)) {
+            if (Client.connect() != null) {
+                return null;
+            }
+            Files.delete(SOCKET);
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(SOCKET));
+        return server;
+    }
+
+    /** Reads the arguments of a request from CLIENT, or returns null for a
+     *  request to stop. */
+    private static String[] readRequest(SocketChannel client) throws IOException {
+        int count = readInt(client);
+        if (count == STOP) {
+            return null;
+        }
+        if (count < 0) {
+            throw new IOException("Bad request.");
+        }
+        String[] args = new String[count];
+        for (int i = 0; i < count; i += 1) {
+            int length = readInt(client);
+            if (length < 0) {
+                throw new IOException("Bad request.");
+            }
+            ByteBuffer arg = ByteBuffer.allocate(length);
+            readFully(client, arg);
+            args[i] = new String(arg.array(), StandardCharsets.UTF_8);
+        }
+        return args;
+    }
+
+    /** Runs the command ARGS with its output going to CLIENT. */
+    private static void serve(SocketChannel client, String[] args) throws IOException {
+        refresh();
+        PrintStream out = new PrintStream(new BufferedOutputStream(
+                new FrameStream(client, STDOUT), FRAME_BUFFER_SIZE));
+        PrintStream err = new PrintStream(new BufferedOutputStream(
+                new FrameStream(client, STDERR), FRAME_BUFFER_SIZE), true);
+        System.setOut(out);
+        System.setErr(err);
+        int status = 0;
+        try {
+            Main.main(args);
+        } catch (Exit e) {
+            status = e.status;
+        } catch (Throwable e) {
+            // What the JVM prints for an exception that escapes main.
+            err.print("Exception in thread \"main\" ");
+            e.printStackTrace(err);
+            status = 1;
+        }
+        out.flush();
+        err.flush();
+        if (out.checkError() || err.checkError()) {
+            throw new IOException("Unable to write to the client.");
+        }
+        ByteBuffer exit = ByteBuffer.allocate(9).put(EXIT).putInt(4).putInt(status).flip();
+        writeFully(client, exit);
+    }
+
+    /** Drops the state that other commands may have made stale. */
+    private static void refresh() {
+        RefStore.reset();
+        Index.reset();
+        StagingArea.reset();
+        WorkingTree.reset();
+        MessageIndex.reset();
+        CommitGraph.refresh();
+        CommitBitmaps.reset();
+        ObjectStore.refresh();
+        Journal.reset();
+    }
+
+    /** Writes everything written to it as frames of one KIND. */
+    private static class FrameStream extends OutputStream {
+        private final SocketChannel channel;
+        private final byte kind;
+
+        FrameStream(SocketChannel channel, byte kind) {
+            this.channel = channel;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(5).put(kind).putInt(len).flip();
+            // Output and error share the channel, so frames must not interleave.
+            synchronized (channel) {
+                writeFully(channel, header);
+                writeFully(channel, ByteBuffer.wrap(b, off, len));
+            }
+        }
+    }
+
+    static int readInt(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(channel, buffer);
+        return buffer.getInt(0);
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed.");
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
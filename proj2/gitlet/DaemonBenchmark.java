@@ -0,0 +1,109 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Times running the same read-only commands, status and log, as a fresh
+ * Main process each, as a fresh Client process each talking to a
+ * {@link Daemon}, and as requests to the daemon from this process, which
+ * is what a client that stays running pays. Builds a history of COMMITS
+ * commits first. Must be run in an empty directory:
+ *
+ *     java gitlet.DaemonBenchmark [COMMANDS] [COMMITS]
+ *
+ * @author A_Words
+ */
+public class DaemonBenchmark {
+    private static final String[][] COMMANDS = {{"status"}, {"log", "-n", "20"}};
+    /** Standard output, which the daemon requests replace while timed. */
+    private static final PrintStream REPORT = System.out;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        File file = join(CWD, "file.txt");
+        for (int i = 0; i < commits; i += 1) {
+            writeContents(file, "version " + i + "\n");
+            Repository.stagingFilesByName(List.of(file.getName()));
+            Repository.stagingToCommit("commit " + i);
+        }
+        Index.save();
+
+        Process daemon = start("gitlet.Daemon");
+        while (!Files.exists(Daemon.SOCKET)) {
+            Thread.sleep(10);
+        }
+        System.out.printf("%d commands each, %d commits%n", count, commits);
+        try {
+            time("Main process", count, command -> run("gitlet.Main", command));
+            time("Client process", count, command -> run("gitlet.Client", command));
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                time("daemon request", count, command -> {
+                    try (SocketChannel channel = Client.connect()) {
+                        Client.run(channel, command);
+                    }
+                });
+            } finally {
+                System.setOut(REPORT);
+            }
+        } finally {
+            Client.stop();
+            daemon.waitFor();
+        }
+    }
+
+    private static void time(String label, int count, Command command)
+            throws IOException, InterruptedException {
+        for (String[] args : COMMANDS) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i += 1) {
+                command.run(args);
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / count;
+            REPORT.printf("%-16s %-8s %8.2f ms%n", label, args[0], millis);
+        }
+    }
+
+    private static void run(String mainClass, String[] args)
+            throws IOException, InterruptedException {
+        if (start(mainClass, args).waitFor() != 0) {
+            throw error("%s %s failed.", mainClass, args[0]);
+        }
+    }
+
+    /** Starts MAINCLASS with ARGS in a new JVM with this one's class path,
+     *  discarding its output. */
+    private static Process start(String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(join(new File(System.getProperty("java.home")), "bin", "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private interface Command {
+        void run(String[] args) throws IOException, InterruptedException;
+    }
+}
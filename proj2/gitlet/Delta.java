@@ -0,0 +1,180 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/**
+ * Creates and applies xdelta-style binary deltas. A delta starts with the
+ * base and result lengths, followed by instructions that either copy a
+ * range of the base or insert literal bytes.
+ * <p>
+ * An instruction byte with the high bit set is a copy and is followed by
+ * the offset and length in the base. Otherwise the byte is the number
+ * (1 to 127) of literal bytes that follow it.
+ *
+ * @author A_Words
+ */
+class Delta {
+    /** Size of the base blocks that are indexed for matching. */
+    private static final int BLOCK = 16;
+    private static final int COPY = 0x80;
+    private static final int MAX_INSERT = 0x7f;
+    /** 31 to the power BLOCK - 1, for removing a byte from the rolling hash. */
+    private static final int OUT_FACTOR = power(31, BLOCK - 1);
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int[] table = indexBlocks(base);
+        int mask = table.length - 1;
+        int literalStart = 0;
+        int i = 0;
+        int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            int candidate = table.length == 0 ? -1 : table[slot(hash) & mask] - 1;
+            if (candidate >= 0 && matches(base, candidate, target, i)) {
+                int start = i;
+                int baseStart = candidate;
+                while (start > literalStart && baseStart > 0
+                        && base[baseStart - 1] == target[start - 1]) {
+                    start -= 1;
+                    baseStart -= 1;
+                }
+                int end = i + BLOCK;
+                int baseEnd = candidate + BLOCK;
+                while (end < target.length && baseEnd < base.length
+                        && base[baseEnd] == target[end]) {
+                    end += 1;
+                    baseEnd += 1;
+                }
+                writeInsert(out, target, literalStart, start);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+                i = end;
+                literalStart = end;
+                if (i + BLOCK <= target.length) {
+                    hash = hash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    hash = (hash - (target[i] & 0xff) * OUT_FACTOR) * 31
+                            + (target[i + BLOCK] & 0xff);
+                }
+                i += 1;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        long baseLength = readVarint(delta, pos);
+        long resultLength = readVarint(delta, pos);
+        if (baseLength != base.length) {
+            throw error("Delta does not match its base.");
+        }
+        byte[] result = new byte[(int) resultLength];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]] & 0xff;
+            pos[0] += 1;
+            if ((op & COPY) != 0) {
+                int offset = (int) readVarint(delta, pos);
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(base, offset, result, written, length);
+                written += length;
+            } else {
+                System.arraycopy(delta, pos[0], result, written, op);
+                pos[0] += op;
+                written += op;
+            }
+        }
+        if (written != result.length) {
+            throw error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    /** Returns a hash table from the hash of each aligned block of BASE to
+     *  one more than the block's offset. */
+    private static int[] indexBlocks(byte[] base) {
+        int blocks = base.length / BLOCK;
+        if (blocks == 0) {
+            return new int[0];
+        }
+        int size = Integer.highestOneBit(blocks) << 1;
+        int[] table = new int[size];
+        for (int off = 0; off + BLOCK <= base.length; off += BLOCK) {
+            int s = slot(hash(base, off)) & (size - 1);
+            if (table[s] == 0) {
+                table[s] = off + 1;
+            }
+        }
+        return table;
+    }
+
+    private static int hash(byte[] data, int off) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            h = h * 31 + (data[off + k] & 0xff);
+        }
+        return h;
+    }
+
+    private static int slot(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(byte[] base, int baseOff, byte[] target, int targetOff) {
+        return Arrays.equals(base, baseOff, baseOff + BLOCK,
+                target, targetOff, targetOff + BLOCK);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(data, from, n);
+            from += n;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[pos[0]] & 0xff;
+            pos[0] += 1;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int k = 0; k < exponent; k += 1) {
+            result *= base;
+        }
+        return result;
+    }
+}
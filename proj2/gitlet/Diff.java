@@ -0,0 +1,443 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * Line diffs, printed as unified diffs, and three-way line merges.
+ * <p>
+ * Lines are compared as numbers, equal lines getting equal numbers, and
+ * the shortest edit script is found with Myers' algorithm in its linear
+ * space form: search forward from the start and backward from the end at
+ * once until the two searches meet in a middle snake, then solve the parts
+ * before and after it the same way. That takes O((N+M)D) time for texts
+ * of N and M lines that differ in D lines, and besides the texts only two
+ * arrays of N+M+2 entries and the edits themselves.
+ * <p>
+ * A merge diffs the base against both sides and walks the two edit lists
+ * together. Edits of one side are taken as they are; edits of both sides
+ * that overlap or touch form one region, which is taken if both sides made
+ * it the same and is otherwise written between conflict markers.
+ *
+ * @author A_Words
+ */
+class Diff {
+    static final String CONFLICT_START = "<<<<<<< HEAD\n";
+    static final String CONFLICT_SEPARATOR = "=======\n";
+    static final String CONFLICT_END = ">>>>>>>\n";
+    /** Lines of unchanged context around each hunk of a unified diff. */
+    private static final int CONTEXT = 3;
+    /** Git's test for binary files: a zero byte among the first 8000. */
+    private static final int BINARY_CHECK_SIZE = 8000;
+
+    /** Lines BEGINA to ENDA of the old text replaced by lines BEGINB to
+     *  ENDB of the new one, the ends exclusive. */
+    static class Edit {
+        final int beginA;
+        final int endA;
+        final int beginB;
+        final int endB;
+
+        Edit(int beginA, int endA, int beginB, int endB) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+        }
+    }
+
+    /** The lines of a text. Each line keeps its "\n", and only the last
+     *  one may lack it. */
+    static class Text {
+        final byte[] bytes;
+        /** Where each line starts, followed by the length of the text. */
+        private final int[] starts;
+
+        Text(byte[] bytes) {
+            this.bytes = bytes;
+            int count = 0;
+            for (byte b : bytes) {
+                if (b == '\n') {
+                    count += 1;
+                }
+            }
+            boolean unterminated = bytes.length > 0 && bytes[bytes.length - 1] != '\n';
+            starts = new int[count + (unterminated ? 1 : 0) + 1];
+            int line = 1;
+            for (int i = 0; i < bytes.length; i += 1) {
+                if (bytes[i] == '\n' && i + 1 < bytes.length) {
+                    starts[line] = i + 1;
+                    line += 1;
+                }
+            }
+            starts[starts.length - 1] = bytes.length;
+        }
+
+        int size() {
+            return starts.length - 1;
+        }
+
+        /** Returns whether the text looks binary, so that it should not be
+         *  diffed or merged by lines. */
+        boolean isBinary() {
+            for (int i = 0; i < Math.min(bytes.length, BINARY_CHECK_SIZE); i += 1) {
+                if (bytes[i] == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean endsWithNewline(int line) {
+            return bytes[starts[line + 1] - 1] == '\n';
+        }
+
+        /** Writes lines FROM to TO, TO exclusive, to OUT. */
+        private void write(OutputStream out, int from, int to) throws IOException {
+            out.write(bytes, starts[from], starts[to] - starts[from]);
+        }
+
+        private int hash(int line) {
+            int hash = 0;
+            for (int i = starts[line]; i < starts[line + 1]; i += 1) {
+                hash = 31 * hash + bytes[i];
+            }
+            hash *= 0x9e3779b9;
+            return hash ^ (hash >>> 16);
+        }
+
+        private boolean sameLine(int line, Text other, int otherLine) {
+            return Arrays.equals(bytes, starts[line], starts[line + 1],
+                    other.bytes, other.starts[otherLine], other.starts[otherLine + 1]);
+        }
+    }
+
+    /** Returns the edits that turn A into B, in order. */
+    static List<Edit> diff(Text a, Text b) {
+        int[][] numbers = number(a, b);
+        return new Myers(numbers[0], numbers[1]).edits;
+    }
+
+    /**
+     * Returns a number for each line of A and of B, equal for equal lines.
+     * Lines go into an open addressing table of their positions, hashed
+     * and compared in place, and a line's number is its slot in the table.
+     */
+    private static int[][] number(Text a, Text b) {
+        int lines = a.size() + b.size();
+        int[] slots = new int[Math.max(2, Integer.highestOneBit(Math.max(1, lines)) << 2)];
+        int mask = slots.length - 1;
+        int[][] numbers = {new int[a.size()], new int[b.size()]};
+        Text[] texts = {a, b};
+        for (int t = 0; t < texts.length; t += 1) {
+            Text text = texts[t];
+            for (int line = 0; line < text.size(); line += 1) {
+                int slot = text.hash(line) & mask;
+                while (slots[slot] != 0) {
+                    // Slots hold a line's position in A, or in B after A, plus one.
+                    int other = slots[slot] - 1;
+                    boolean inA = other < a.size();
+                    if (text.sameLine(line, inA ? a : b, inA ? other : other - a.size())) {
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (slots[slot] == 0) {
+                    slots[slot] = (t == 0 ? line : a.size() + line) + 1;
+                }
+                numbers[t][line] = slot;
+            }
+        }
+        return numbers;
+    }
+
+    /** Myers' linear space diff of two arrays of line numbers. */
+    private static class Myers {
+        private final int[] a;
+        private final int[] b;
+        /** The furthest x reached on each diagonal by the forward and the
+         *  backward search, reused by every middle snake search. */
+        private final int[] forward;
+        private final int[] backward;
+        private final List<Edit> edits = new ArrayList<>();
+
+        Myers(int[] a, int[] b) {
+            this.a = a;
+            this.b = b;
+            forward = new int[a.length + b.length + 3];
+            backward = new int[a.length + b.length + 3];
+            compare(0, a.length, 0, b.length);
+        }
+
+        private void compare(int aBegin, int aEnd, int bBegin, int bEnd) {
+            while (aBegin < aEnd && bBegin < bEnd && a[aBegin] == b[bBegin]) {
+                aBegin += 1;
+                bBegin += 1;
+            }
+            while (aBegin < aEnd && bBegin < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+                aEnd -= 1;
+                bEnd -= 1;
+            }
+            if (aBegin == aEnd || bBegin == bEnd) {
+                if (aBegin < aEnd || bBegin < bEnd) {
+                    add(aBegin, aEnd, bBegin, bEnd);
+                }
+                return;
+            }
+            long split = middleSnake(aBegin, aEnd, bBegin, bEnd);
+            if (split < 0) {
+                add(aBegin, aEnd, bBegin, bEnd);
+                return;
+            }
+            int x = (int) (split >>> 32);
+            int y = (int) split;
+            compare(aBegin, aBegin + x, bBegin, bBegin + y);
+            compare(aBegin + x, aEnd, bBegin + y, bEnd);
+        }
+
+        /**
+         * Returns the point, relative to the start of both ranges and
+         * packed as x in the high and y in the low half of a long, where
+         * the forward and backward searches over the ranges first overlap,
+         * or -1 if the ranges have no line in common.
+         */
+        private long middleSnake(int aBegin, int aEnd, int bBegin, int bEnd) {
+            int n = aEnd - aBegin;
+            int m = bEnd - bBegin;
+            int maxD = (n + m + 1) / 2;
+            int offset = maxD;
+            int length = 2 * maxD + 2;
+            Arrays.fill(forward, 0, length, -1);
+            Arrays.fill(backward, 0, length, -1);
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+            int delta = n - m;
+            // With an odd delta the forward search reaches the overlap
+            // first, with an even one the backward search does.
+            boolean front = (delta & 1) != 0;
+            // Diagonals that ran off the edge need not be searched again.
+            int forwardStart = 0;
+            int forwardEnd = 0;
+            int backwardStart = 0;
+            int backwardEnd = 0;
+            for (int d = 0; d < maxD; d += 1) {
+                for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                    int i = offset + k;
+                    int x = k == -d || (k != d && forward[i - 1] < forward[i + 1])
+                            ? forward[i + 1] : forward[i - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[aBegin + x] == b[bBegin + y]) {
+                        x += 1;
+                        y += 1;
+                    }
+                    forward[i] = x;
+                    if (x > n) {
+                        forwardEnd += 2;
+                    } else if (y > m) {
+                        forwardStart += 2;
+                    } else if (front) {
+                        int j = offset + delta - k;
+                        if (j >= 0 && j < length && backward[j] != -1 && x >= n - backward[j]) {
+                            return (long) x << 32 | y;
+                        }
+                    }
+                }
+                for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                    int i = offset + k;
+                    int x = k == -d || (k != d && backward[i - 1] < backward[i + 1])
+                            ? backward[i + 1] : backward[i - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m
+                            && a[aEnd - x - 1] == b[bEnd - y - 1]) {
+                        x += 1;
+                        y += 1;
+                    }
+                    backward[i] = x;
+                    if (x > n) {
+                        backwardEnd += 2;
+                    } else if (y > m) {
+                        backwardStart += 2;
+                    } else if (!front) {
+                        int j = offset + delta - k;
+                        if (j >= 0 && j < length && forward[j] != -1) {
+                            int forwardX = forward[j];
+                            int forwardY = offset + forwardX - j;
+                            if (forwardX >= n - x) {
+                                return (long) forwardX << 32 | forwardY;
+                            }
+                        }
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /** Adds an edit, joining it to the previous one if they touch. */
+        private void add(int beginA, int endA, int beginB, int endB) {
+            if (!edits.isEmpty()) {
+                Edit last = edits.get(edits.size() - 1);
+                if (last.endA == beginA && last.endB == beginB) {
+                    edits.set(edits.size() - 1, new Edit(last.beginA, endA, last.beginB, endB));
+                    return;
+                }
+            }
+            edits.add(new Edit(beginA, endA, beginB, endB));
+        }
+    }
+
+    /**
+     * Writes a unified diff from A, the file PATHA, to B, the file PATHB,
+     * to OUT. A null path stands for a file that does not exist, and a
+     * null text for one that is not compared by lines.
+     */
+    static void writeUnified(OutputStream out, String pathA, String pathB, Text a, Text b)
+            throws IOException {
+        String path = pathA != null ? pathA : pathB;
+        writeAscii(out, "diff --git a/" + path + " b/" + path + "\n");
+        if (a == null || b == null || a.isBinary() || b.isBinary()) {
+            writeAscii(out, "Binary files " + (pathA == null ? "/dev/null" : "a/" + pathA)
+                    + " and " + (pathB == null ? "/dev/null" : "b/" + pathB) + " differ\n");
+            return;
+        }
+        writeAscii(out, "--- " + (pathA == null ? "/dev/null" : "a/" + pathA) + "\n");
+        writeAscii(out, "+++ " + (pathB == null ? "/dev/null" : "b/" + pathB) + "\n");
+        List<Edit> edits = diff(a, b);
+        for (int first = 0; first < edits.size(); ) {
+            // A hunk takes every following edit whose context would overlap.
+            int last = first;
+            while (last + 1 < edits.size()
+                    && edits.get(last + 1).beginA - edits.get(last).endA <= 2 * CONTEXT) {
+                last += 1;
+            }
+            int aStart = Math.max(0, edits.get(first).beginA - CONTEXT);
+            int bStart = edits.get(first).beginB - (edits.get(first).beginA - aStart);
+            int aEnd = Math.min(a.size(), edits.get(last).endA + CONTEXT);
+            int bEnd = edits.get(last).endB + (aEnd - edits.get(last).endA);
+            writeAscii(out, "@@ -" + range(aStart, aEnd - aStart)
+                    + " +" + range(bStart, bEnd - bStart) + " @@\n");
+            int line = aStart;
+            for (int i = first; i <= last; i += 1) {
+                Edit edit = edits.get(i);
+                writeLines(out, ' ', a, line, edit.beginA);
+                writeLines(out, '-', a, edit.beginA, edit.endA);
+                writeLines(out, '+', b, edit.beginB, edit.endB);
+                line = edit.endA;
+            }
+            writeLines(out, ' ', a, line, aEnd);
+            first = last + 1;
+        }
+    }
+
+    /** Returns a hunk header range of LENGTH lines from line START. */
+    private static String range(int start, int length) {
+        if (length == 1) {
+            return Integer.toString(start + 1);
+        }
+        return (length == 0 ? start : start + 1) + "," + length;
+    }
+
+    private static void writeLines(OutputStream out, char prefix, Text text, int from, int to)
+            throws IOException {
+        for (int line = from; line < to; line += 1) {
+            out.write(prefix);
+            text.write(out, line, line + 1);
+            if (!text.endsWithNewline(line)) {
+                writeAscii(out, "\n\\ No newline at end of file\n");
+            }
+        }
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The contents of a merged file and whether they contain conflicts. */
+    static class MergeResult {
+        final byte[] contents;
+        final boolean conflict;
+
+        MergeResult(byte[] contents, boolean conflict) {
+            this.contents = contents;
+            this.conflict = conflict;
+        }
+    }
+
+    /** Merges the changes from BASE to CURRENT and from BASE to GIVEN. */
+    static MergeResult merge(Text base, Text current, Text given) {
+        List<Edit> ours = diff(base, current);
+        List<Edit> theirs = diff(base, given);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                Math.max(current.bytes.length, given.bytes.length));
+        boolean conflict = false;
+        int line = 0;
+        // Lines of each side minus lines of the base, over the edits so far.
+        int oursShift = 0;
+        int theirsShift = 0;
+        int i = 0;
+        int j = 0;
+        try {
+            while (i < ours.size() || j < theirs.size()) {
+                // The region starts with the next edit of either side and
+                // grows while an edit of either side overlaps or touches it.
+                boolean oursFirst = j == theirs.size()
+                        || i < ours.size() && ours.get(i).beginA <= theirs.get(j).beginA;
+                int begin = oursFirst ? ours.get(i).beginA : theirs.get(j).beginA;
+                int end = begin;
+                int oursBegin = i;
+                int theirsBegin = j;
+                int oursShiftBefore = oursShift;
+                int theirsShiftBefore = theirsShift;
+                while (true) {
+                    if (i < ours.size() && ours.get(i).beginA <= end) {
+                        Edit edit = ours.get(i);
+                        end = Math.max(end, edit.endA);
+                        oursShift += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+                        i += 1;
+                    } else if (j < theirs.size() && theirs.get(j).beginA <= end) {
+                        Edit edit = theirs.get(j);
+                        end = Math.max(end, edit.endA);
+                        theirsShift += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+                        j += 1;
+                    } else {
+                        break;
+                    }
+                }
+                base.write(out, line, begin);
+                line = end;
+                int oursFrom = begin + oursShiftBefore;
+                int oursTo = end + oursShift;
+                int theirsFrom = begin + theirsShiftBefore;
+                int theirsTo = end + theirsShift;
+                if (j == theirsBegin) {
+                    current.write(out, oursFrom, oursTo);
+                } else if (i == oursBegin || sameLines(current, oursFrom, oursTo,
+                        given, theirsFrom, theirsTo)) {
+                    given.write(out, theirsFrom, theirsTo);
+                } else {
+                    conflict = true;
+                    writeAscii(out, CONFLICT_START);
+                    current.write(out, oursFrom, oursTo);
+                    writeAscii(out, CONFLICT_SEPARATOR);
+                    given.write(out, theirsFrom, theirsTo);
+                    writeAscii(out, CONFLICT_END);
+                }
+            }
+            base.write(out, line, base.size());
+        } catch (IOException e) {
+            throw error("Unable to merge.");
+        }
+        return new MergeResult(out.toByteArray(), conflict);
+    }
+
+    private static boolean sameLines(Text a, int aFrom, int aTo, Text b, int bFrom, int bTo) {
+        return Arrays.equals(a.bytes, a.starts[aFrom], a.starts[aTo],
+                b.bytes, b.starts[bFrom], b.starts[bTo]);
+    }
+}
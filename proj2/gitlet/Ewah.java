@@ -0,0 +1,74 @@
+package gitlet;
+
+import java.util.Arrays;
+
+/**
+ * Compresses bitmaps held as arrays of 64-bit words with the EWAH scheme
+ * (Lemire et al., "Sorting improves word-aligned bitmap indexes"): runs
+ * of words that are all zeros or all ones are stored as a count, and
+ * other words are stored as they are. A compressed bitmap is a series of
+ * marker words, each followed by the literal words it announces. A
+ * marker's lowest bit is the bit of its run, the next 32 bits the number
+ * of words in the run, and the top 31 bits the number of literal words
+ * that follow the run.
+ * <p>
+ * Bitmaps of commits over the rows of the commit graph compress well,
+ * since parents come before their children: the ancestors of a commit
+ * are mostly long runs of rows.
+ *
+ * @author A_Words
+ */
+class Ewah {
+    private static final long MAX_RUN = (1L << 32) - 1;
+    private static final long MAX_LITERALS = (1L << 31) - 1;
+    private static final int RUN_SHIFT = 1;
+    private static final int LITERAL_SHIFT = 33;
+
+    /** Returns the compressed form of the first LENGTH words of WORDS. */
+    static long[] compress(long[] words, int length) {
+        long[] out = new long[8];
+        int size = 0;
+        int i = 0;
+        while (i < length) {
+            long runWord = words[i] == -1L ? -1L : 0L;
+            long run = 0;
+            while (i < length && words[i] == runWord && run < MAX_RUN) {
+                run += 1;
+                i += 1;
+            }
+            int literalStart = i;
+            while (i < length && words[i] != 0L && words[i] != -1L
+                    && i - literalStart < MAX_LITERALS) {
+                i += 1;
+            }
+            int literals = i - literalStart;
+            if (size + 1 + literals > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, size + 1 + literals));
+            }
+            out[size] = (runWord & 1L) | run << RUN_SHIFT | (long) literals << LITERAL_SHIFT;
+            System.arraycopy(words, literalStart, out, size + 1, literals);
+            size += 1 + literals;
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    /** Sets in WORDS every bit set in the compressed bitmap COMPRESSED. */
+    static void orInto(long[] compressed, long[] words) {
+        int position = 0;
+        int at = 0;
+        while (at < compressed.length) {
+            long marker = compressed[at];
+            int run = (int) (marker >>> RUN_SHIFT & MAX_RUN);
+            int literals = (int) (marker >>> LITERAL_SHIFT);
+            if ((marker & 1L) != 0) {
+                Arrays.fill(words, position, position + run, -1L);
+            }
+            position += run;
+            for (int i = 1; i <= literals; i += 1) {
+                words[position] |= compressed[at + i];
+                position += 1;
+            }
+            at += 1 + literals;
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Repository.PACK_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Loads history from a stream in the format of git fast-import, so that
+ * the output of git fast-export can be read straight in. Commits are
+ * written into packs and branches moved without going through the
+ * working directory or the staging area, and the work of making them
+ * durable is shared by a whole batch: at each checkpoint, every
+ * {@link #CHECKPOINT_COMMITS} commits and at the end, the messages of the
+ * batch go into the {@link MessageIndex} at once, its objects are written
+ * as one pack, its rows are added to the {@link CommitGraph} with one
+ * sync, and every branch it moved is moved in one {@link Journal}
+ * transaction. A stream cut short leaves the branches at the last
+ * checkpoint.
+ * <p>
+ * The commands understood are blob, commit, reset, checkpoint, progress,
+ * done, and feature and option, which are skipped, as are tags, which
+ * gitlet does not have. A commit may name its parents with from and one
+ * merge, by mark, branch or commit id, and change files with M, D and
+ * deleteall. The date of a commit is that of
+ * its committer line, or of its author line if it has none, in the raw
+ * form of seconds since the epoch and a zone offset; gitlet commits keep
+ * no author. Branches are named as refs/heads/NAME or as NAME.
+ * <p>
+ * A blob's id depends on the name of the file it is stored under, so a
+ * blob given by a mark is only stored once a commit puts it at a path.
+ * Until then its data waits in a temporary file in the pack directory,
+ * which bounds the memory an import needs by the largest blob.
+ *
+ * @author A_Words
+ */
+class FastImport {
+    /** Commits between checkpoints. */
+    private static final int CHECKPOINT_COMMITS = 10000;
+    private static final String HEADS = "refs/heads/";
+    private static final String TAGS = "refs/tags/";
+
+    private final InputStream in;
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    /** A line read ahead and given back, or null. */
+    private String pushedBack;
+    private int lineNumber;
+
+    /** Temporary file holding the data of marked blobs. */
+    private final FileChannel marked;
+    private long markedSize;
+    /** The offset and length in the temporary file of each blob mark. */
+    private final Map<Integer, long[]> blobMarks = new HashMap<>();
+    private final Map<Integer, String> commitMarks = new HashMap<>();
+
+    /** The branches this import has touched, by name. */
+    private final Map<String, Branch> branches = new LinkedHashMap<>();
+    /** The commits since the last checkpoint, parents before children. */
+    private final List<Commit> batch = new ArrayList<>();
+    private int commits;
+    private int blobs;
+
+    /** What an import did. */
+    static class Stats {
+        int commits;
+        int blobs;
+    }
+
+    /** The tip of a branch as this import has left it. */
+    private static class Branch {
+        String tip;
+        Tree tree;
+
+        Branch(String tip, Tree tree) {
+            this.tip = tip;
+            this.tree = tree;
+        }
+    }
+
+    private FastImport(InputStream in, FileChannel marked) {
+        this.in = in;
+        this.marked = marked;
+    }
+
+    /** Imports the stream IN and returns what it did. */
+    static Stats run(InputStream in) {
+        File markedFile;
+        FileChannel marked;
+        try {
+            PACK_DIR.mkdir();
+            markedFile = File.createTempFile("tmp-", ".import", PACK_DIR);
+            marked = FileChannel.open(markedFile.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            throw error("Unable to create temporary file.");
+        }
+        FastImport importer = new FastImport(new BufferedInputStream(in, 1 << 16), marked);
+        try (marked) {
+            importer.readCommands();
+            importer.checkpoint();
+        } catch (IOException e) {
+            throw error("Unable to read the import stream.");
+        } catch (BadStream e) {
+            // 临时文件已随 marked 关闭而删除
+            message(e.getMessage());
+            exit(0);
+        }
+        Stats stats = new Stats();
+        stats.commits = importer.commits;
+        stats.blobs = importer.blobs;
+        return stats;
+    }
+
+    private void readCommands() throws IOException {
+        for (String line = nextLine(); line != null; line = nextLine()) {
+            if (line.equals("blob")) {
+                readBlob();
+            } else if (line.startsWith("commit ")) {
+                readCommit(branchName(line.substring("commit ".length())));
+            } else if (line.startsWith("reset " + TAGS)) {
+                skipReset();
+            } else if (line.startsWith("reset ")) {
+                readReset(branchName(line.substring("reset ".length())));
+            } else if (line.startsWith("tag ")) {
+                skipTag();
+            } else if (line.equals("checkpoint")) {
+                checkpoint();
+            } else if (line.startsWith("progress ")) {
+                message(line.substring("progress ".length()));
+            } else if (line.equals("done")) {
+                return;
+            } else if (!line.startsWith("feature ") && !line.startsWith("option ")) {
+                fail("unknown command \"%s\"", line);
+            }
+        }
+    }
+
+    private void readBlob() throws IOException {
+        int mark = readMark();
+        String line = nextLine();
+        while (line != null && line.startsWith("original-oid ")) {
+            line = nextLine();
+        }
+        byte[] data = readData(line);
+        if (mark >= 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                marked.write(buffer, markedSize + buffer.position());
+            }
+            blobMarks.put(mark, new long[]{markedSize, data.length});
+            markedSize += data.length;
+        }
+    }
+
+    private void readCommit(String branchName) throws IOException {
+        int mark = readMark();
+        String line = nextLine();
+        String author = null;
+        String committer = null;
+        while (line != null && !line.startsWith("data ")) {
+            if (line.startsWith("author ")) {
+                author = line;
+            } else if (line.startsWith("committer ")) {
+                committer = line;
+            } else if (!line.startsWith("encoding ") && !line.startsWith("original-oid ")) {
+                fail("expected the data of a commit message");
+            }
+            line = nextLine();
+        }
+        if (committer == null && author == null) {
+            fail("commit without a committer");
+        }
+        ZonedDateTime timestamp = parseDate(committer != null ? committer : author);
+        String message = new String(readData(line), StandardCharsets.UTF_8);
+        while (message.endsWith("\n")) {
+            message = message.substring(0, message.length() - 1);
+        }
+
+        Branch branch = branch(branchName);
+        String parent = branch.tip;
+        Tree tree = branch.tree;
+        String secondParent = null;
+        line = nextLine();
+        if (line != null && line.startsWith("from ")) {
+            parent = resolveCommit(line.substring("from ".length()));
+            tree = treeOf(parent);
+            line = nextLine();
+        }
+        if (line != null && line.startsWith("merge ")) {
+            secondParent = resolveCommit(line.substring("merge ".length()));
+            line = nextLine();
+        }
+        if (line != null && line.startsWith("merge ")) {
+            fail("merges of more than two parents are not supported");
+        }
+
+        TreeMap<String, String> changes = new TreeMap<>();
+        for (; line != null; line = nextLine()) {
+            if (line.startsWith("M ")) {
+                modify(line, tree, changes);
+            } else if (line.startsWith("D ")) {
+                tree = delete(parsePath(line.substring(2)), tree, changes);
+            } else if (line.equals("deleteall")) {
+                tree = Tree.EMPTY;
+                changes.clear();
+            } else {
+                pushedBack = line;
+                break;
+            }
+        }
+
+        Tree newTree = tree.update(changes);
+        Commit commit = new Commit(message, timestamp, newTree.save(), parent, secondParent);
+        commit.save();
+        batch.add(commit);
+        commits += 1;
+        branch.tip = commit.getSha1();
+        branch.tree = newTree;
+        if (mark >= 0) {
+            commitMarks.put(mark, commit.getSha1());
+        }
+        if (batch.size() >= CHECKPOINT_COMMITS) {
+            checkpoint();
+        }
+    }
+
+    /** Adds the D command for PATH, which names a file or a whole
+     *  directory, to the CHANGES to TREE, and returns the tree that later
+     *  commands of the commit change. A directory is deleted as the files
+     *  under it once the changes so far are applied, so that an M command
+     *  may then put a file or a new directory at its path. */
+    private Tree delete(String path, Tree tree, TreeMap<String, String> changes) {
+        Tree current = tree.update(changes);
+        Tree dir = current;
+        for (String name : path.split("/")) {
+            dir = dir.subtree(name);
+        }
+        if (dir.isEmpty()) {
+            changes.put(path, null);
+            return tree;
+        }
+        changes.clear();
+        for (String file : dir.files().keySet()) {
+            changes.put(path + "/" + file, null);
+        }
+        return current;
+    }
+
+    /** Stores the file that the M command LINE gives, against the version
+     *  in TREE, and adds it to CHANGES. */
+    private void modify(String line, Tree tree, TreeMap<String, String> changes)
+            throws IOException {
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 4) {
+            fail("bad file command");
+        }
+        if (parts[1].equals("040000") || parts[1].equals("160000")) {
+            fail("directories and submodules are not supported");
+        }
+        String path = parsePath(parts[3]);
+        byte[] data;
+        if (parts[2].equals("inline")) {
+            data = readData(nextLine());
+        } else if (parts[2].startsWith(":")) {
+            long[] location = blobMarks.get(parseMark(parts[2]));
+            if (location == null) {
+                fail("no blob with mark %s", parts[2]);
+            }
+            data = readMarked(location);
+        } else {
+            fail("blobs must be given inline or by mark");
+            return;
+        }
+        // Blob ids hash the file name too, as Index#blobSha1 does.
+        String blobSha1 = sha1(data, path.substring(path.lastIndexOf('/') + 1));
+        if (!ObjectStore.contains(ObjectStore.BLOB, blobSha1)) {
+            ObjectStore.write(ObjectStore.BLOB, blobSha1, data, tree.findFile(path));
+            blobs += 1;
+        }
+        changes.put(path, blobSha1);
+    }
+
+    private void readReset(String branchName) throws IOException {
+        String line = nextLine();
+        if (line != null && line.startsWith("from ")) {
+            String tip = resolveCommit(line.substring("from ".length()));
+            branches.put(branchName, new Branch(tip, treeOf(tip)));
+        } else {
+            pushedBack = line;
+            branches.put(branchName, new Branch(null, Tree.EMPTY));
+        }
+    }
+
+    /** Skips a reset of a tag, which gitlet does not have. */
+    private void skipReset() throws IOException {
+        String line = nextLine();
+        if (line == null || !line.startsWith("from ")) {
+            pushedBack = line;
+        }
+    }
+
+    private void skipTag() throws IOException {
+        String line = nextLine();
+        while (line != null && !line.startsWith("data ")) {
+            line = nextLine();
+        }
+        readData(line);
+    }
+
+    /**
+     * Makes the commits so far durable and moves their branches to them:
+     * message postings first, then the pack, then the graph rows, then
+     * the refs, so that nothing points at what is not yet written. The
+     * postings and rows are left for the {@link Journal} to cover.
+     */
+    private void checkpoint() {
+        Journal.cover();
+        MessageIndex.addAll(batch);
+        ObjectStore.flush();
+        for (Commit commit : batch) {
+            if (!CommitGraph.contains(commit.getSha1())) {
+                CommitGraph.append(commit.getSha1(), commit.getParentSha1(),
+                        commit.getSecondParentSha1(),
+                        commit.getTimestamp().toInstant().toEpochMilli());
+            }
+        }
+        CommitGraph.sync();
+        batch.clear();
+
+        Map<String, String> moves = new LinkedHashMap<>();
+        for (Map.Entry<String, Branch> e : branches.entrySet()) {
+            String tip = e.getValue().tip;
+            if (tip != null && !tip.equals(RefStore.branch(e.getKey()))) {
+                moves.put(e.getKey(), tip);
+            }
+        }
+        if (moves.isEmpty()) {
+            return;
+        }
+        RefStore.Transaction update = RefStore.update();
+        for (Map.Entry<String, String> move : moves.entrySet()) {
+            Journal.begin(move.getKey(), RefStore.branch(move.getKey()), move.getValue());
+            update.setBranch(move.getKey(), move.getValue());
+        }
+        Journal.sync();
+        update.commit();
+        for (String tip : moves.values()) {
+            Journal.end(tip);
+        }
+    }
+
+    /** Returns the branch NAME as this import has left it, reading its
+     *  tip from the refs the first time. */
+    private Branch branch(String name) {
+        Branch branch = branches.get(name);
+        if (branch == null) {
+            String tip = RefStore.branch(name);
+            if (tip != null) {
+                // 分支原有的提交可能还不在 commit graph 中, 新行要接在它后面
+                CommitGraph.indexOf(tip);
+            }
+            branch = new Branch(tip, tip == null ? Tree.EMPTY : treeOf(tip));
+            branches.put(name, branch);
+        }
+        return branch;
+    }
+
+    /** Returns the id of the commit that REF names: a mark, a branch or a
+     *  commit id. */
+    private String resolveCommit(String ref) {
+        if (ref.endsWith("^0")) {
+            ref = ref.substring(0, ref.length() - 2);
+        }
+        if (ref.startsWith(":")) {
+            String sha1 = commitMarks.get(parseMark(ref));
+            if (sha1 == null) {
+                fail("no commit with mark %s", ref);
+            }
+            return sha1;
+        }
+        String name = branchName(ref);
+        if (branches.containsKey(name) || RefStore.branch(name) != null) {
+            String tip = branch(name).tip;
+            if (tip == null) {
+                fail("branch %s has no commits", name);
+            }
+            return tip;
+        }
+        if (CommitGraph.indexOf(ref) == CommitGraph.NONE) {
+            fail("no commit %s", ref);
+        }
+        return ref;
+    }
+
+    private static Tree treeOf(String commitSha1) {
+        return Commit.load(commitSha1).getTree();
+    }
+
+    private String branchName(String ref) {
+        if (ref.startsWith(HEADS)) {
+            return ref.substring(HEADS.length());
+        }
+        if (ref.startsWith("refs/")) {
+            fail("only branches can be imported, not %s", ref);
+        }
+        return ref;
+    }
+
+    /** Reads a "mark :N" line if one comes next and returns N, or -1. */
+    private int readMark() throws IOException {
+        String line = nextLine();
+        if (line != null && line.startsWith("mark ")) {
+            return parseMark(line.substring("mark ".length()));
+        }
+        pushedBack = line;
+        return -1;
+    }
+
+    private int parseMark(String mark) {
+        try {
+            return Integer.parseInt(mark.substring(1));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            fail("bad mark %s", mark);
+            return -1;
+        }
+    }
+
+    /** Returns the time in the raw form "SECONDS +HHMM" that ends LINE. */
+    private ZonedDateTime parseDate(String line) {
+        String[] parts = line.substring(line.lastIndexOf('>') + 1).trim().split(" ");
+        try {
+            return ZonedDateTime.ofInstant(Instant.ofEpochSecond(Long.parseLong(parts[0])),
+                    ZoneOffset.of(parts[1]));
+        } catch (RuntimeException e) {
+            fail("dates must be in the raw format");
+            return null;
+        }
+    }
+
+    /** Returns PATH, unquoting it if it is quoted as Git quotes paths. */
+    private String parsePath(String path) {
+        if (!path.startsWith("\"")) {
+            return path;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 1; i < path.length(); i += 1) {
+            char c = path.charAt(i);
+            if (c == '"') {
+                return bytes.toString(StandardCharsets.UTF_8);
+            } else if (c != '\\') {
+                bytes.writeBytes(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            i += 1;
+            c = i < path.length() ? path.charAt(i) : '"';
+            if (c >= '0' && c <= '7' && i + 2 < path.length()) {
+                bytes.write(Integer.parseInt(path.substring(i, i + 3), 8));
+                i += 2;
+            } else {
+                bytes.write(c == 'n' ? '\n' : c == 't' ? '\t' : c);
+            }
+        }
+        fail("unterminated path %s", path);
+        return null;
+    }
+
+    /** Reads the data that the command LINE announces: "data N" followed
+     *  by N bytes, or "data <<DELIM" followed by lines up to DELIM. */
+    private byte[] readData(String line) throws IOException {
+        if (line == null || !line.startsWith("data ")) {
+            fail("expected data");
+        }
+        String size = line.substring("data ".length());
+        if (size.startsWith("<<")) {
+            String delimiter = size.substring(2);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            for (String l = readLine(); !delimiter.equals(l); l = readLine()) {
+                if (l == null) {
+                    fail("missing %s", delimiter);
+                }
+                data.writeBytes((l + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return data.toByteArray();
+        }
+        int length;
+        try {
+            length = Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            fail("bad data length %s", size);
+            return null;
+        }
+        byte[] data = in.readNBytes(length);
+        if (data.length < length) {
+            fail("the stream ends inside data");
+        }
+        for (int i = 0; i < length; i += 1) {
+            if (data[i] == '\n') {
+                lineNumber += 1;
+            }
+        }
+        return data;
+    }
+
+    private byte[] readMarked(long[] location) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) location[1]);
+        while (data.hasRemaining()) {
+            marked.read(data, location[0] + data.position());
+        }
+        return data.array();
+    }
+
+    /** Returns the next line that is not empty, or null at the end. */
+    private String nextLine() throws IOException {
+        if (pushedBack != null) {
+            String line = pushedBack;
+            pushedBack = null;
+            return line;
+        }
+        String line = readLine();
+        while (line != null && line.isEmpty()) {
+            line = readLine();
+        }
+        return line;
+    }
+
+    private String readLine() throws IOException {
+        lineBuffer.reset();
+        int b = in.read();
+        if (b < 0) {
+            return null;
+        }
+        while (b >= 0 && b != '\n') {
+            lineBuffer.write(b);
+            b = in.read();
+        }
+        lineNumber += 1;
+        return lineBuffer.toString(StandardCharsets.UTF_8);
+    }
+
+    /** A malformed stream, reported once the import has cleaned up. */
+    private static class BadStream extends GitletException {
+        private static final long serialVersionUID = 1L;
+
+        BadStream(String msg) {
+            super(msg);
+        }
+    }
+
+    /** Reports that the stream is malformed by throwing, so that RUN
+     *  removes the temporary file before exiting. Branches stay at the
+     *  last checkpoint. */
+    private void fail(String format, Object... args) {
+        throw new BadStream(String.format("Bad import stream at line %d: %s.",
+                lineNumber, String.format(format, args)));
+    }
+}
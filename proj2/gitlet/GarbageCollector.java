@@ -0,0 +1,81 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Removes the objects that no branch can reach. The mark phase walks the
+ * history of every branch over the rows of the {@link CommitGraph},
+ * keeping the commits it has reached in a bitmap over the rows, and
+ * marks each commit's trees and blobs in bitmaps over the pack entries,
+ * skipping every tree it has marked before; it takes time in proportion
+ * to the reachable objects. The blobs staged for the next commit are
+ * reachable however old they are. Objects written within the grace period
+ * are treated as reachable too, along with everything they refer to,
+ * since a command may be about to point a branch at them. The sweep is
+ * {@link ObjectStore#prune}.
+ *
+ * @author A_Words
+ */
+class GarbageCollector {
+    private final ObjectStore.Marks marks = new ObjectStore.Marks();
+    private final BitSet reached = new BitSet();
+
+    /** Removes the unreachable objects written before CUTOFF, in epoch
+     *  milliseconds, and returns what was removed. */
+    static ObjectStore.Pruned collect(long cutoff) {
+        ObjectStore.flush();
+        GarbageCollector collector = new GarbageCollector();
+        for (String branchName : RefStore.branchNames()) {
+            collector.markCommit(RefStore.branch(branchName));
+        }
+        for (String blobSha1 : StagingArea.entries().values()) {
+            if (blobSha1 != null) {
+                collector.marks.mark(ObjectStore.BLOB, blobSha1);
+            }
+        }
+        ObjectStore.forEachRecent(cutoff, (type, id) -> {
+            if (type == ObjectStore.COMMIT) {
+                collector.markCommit(id);
+            } else if (type == ObjectStore.TREE) {
+                if (collector.marks.mark(type, id)) {
+                    Tree.load(id).mark(collector.marks);
+                }
+            } else {
+                collector.marks.mark(type, id);
+            }
+        });
+        return ObjectStore.prune(collector.marks, cutoff);
+    }
+
+    /** Marks the commit SHA1, its ancestors and their trees. */
+    private void markCommit(String sha1) {
+        int row = CommitGraph.indexOf(sha1);
+        if (row == CommitGraph.NONE) {
+            // A recent commit whose history is already gone.
+            Commit commit = Commit.load(sha1);
+            if (commit != null && marks.mark(ObjectStore.COMMIT, sha1)) {
+                commit.markTree(marks);
+            }
+            return;
+        }
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(row);
+        while (!stack.isEmpty()) {
+            row = stack.pop();
+            if (row == CommitGraph.NONE || reached.get(row)) {
+                continue;
+            }
+            reached.set(row);
+            String commitSha1 = CommitGraph.sha1(row);
+            Commit commit = Commit.load(commitSha1);
+            if (commit != null) {
+                marks.mark(ObjectStore.COMMIT, commitSha1);
+                commit.markTree(marks);
+            }
+            stack.push(CommitGraph.parent(row));
+            stack.push(CommitGraph.secondParent(row));
+        }
+    }
+}
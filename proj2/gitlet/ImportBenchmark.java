@@ -0,0 +1,126 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Measures the commit rate of fast-import on a synthetic history of two
+ * branches that merge now and then, each commit changing a few lines of
+ * a few files of a fixed set, against committing through add and commit,
+ * in this same process so that starting a JVM per command is not counted
+ * against the latter. Must be run in an empty directory:
+ *
+ *     java gitlet.ImportBenchmark [COMMITS] [FILES] [CHANGES_PER_COMMIT]
+ *
+ * @author A_Words
+ */
+public class ImportBenchmark {
+    private static final int LINES_PER_FILE = 40;
+    private static final int MERGE_INTERVAL = 50;
+    private static final int COMMITTED_COMMITS = 200;
+
+    public static void main(String[] args) throws IOException {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int changes = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        File stream = File.createTempFile("import-", ".fi");
+        stream.deleteOnExit();
+        writeStream(stream, commits, files, changes);
+        System.out.printf("%d commits of %d changed files out of %d, stream of %d MB%n",
+                commits, changes, files, stream.length() >> 20);
+
+        long start = System.nanoTime();
+        try (InputStream in = Files.newInputStream(stream.toPath())) {
+            FastImport.run(in);
+        }
+        report("fast-import", commits, System.nanoTime() - start);
+        if (CommitGraph.size() < commits) {
+            throw error("Only %d of %d commits were imported.", CommitGraph.size(), commits);
+        }
+
+        Random random = new Random(25);
+        start = System.nanoTime();
+        for (int i = 0; i < COMMITTED_COMMITS; i += 1) {
+            for (int c = 0; c < changes; c += 1) {
+                File file = join(CWD, "file" + random.nextInt(files) + ".txt");
+                writeContents(file, "commit " + i + " change " + c + "\n");
+                Repository.stagingFileByName(file.getName());
+            }
+            Repository.stagingToCommit("commit " + i);
+        }
+        report("add and commit", COMMITTED_COMMITS, System.nanoTime() - start);
+    }
+
+    private static void report(String label, int commits, long nanos) {
+        System.out.printf("%-16s %8d commits %10.3f s %12.0f commits/s%n",
+                label, commits, nanos / 1e9, commits / (nanos / 1e9));
+    }
+
+    /** Writes a stream of COMMITS commits, each changing CHANGES of FILES
+     *  files, in the fast-import format. */
+    private static void writeStream(File stream, int commits, int files, int changes)
+            throws IOException {
+        Random random = new Random(23);
+        String[][] lines = new String[files][LINES_PER_FILE];
+        for (String[] fileLines : lines) {
+            for (int l = 0; l < LINES_PER_FILE; l += 1) {
+                fileLines[l] = "line " + l + " " + random.nextInt();
+            }
+        }
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(stream.toPath()), 1 << 16)) {
+            long time = 1500000000L;
+            int mark = 1;
+            int[] tips = new int[2];
+            for (int i = 0; i < commits; i += 1) {
+                int branch = i % 2;
+                StringBuilder fileCommands = new StringBuilder();
+                for (int c = 0; c < changes; c += 1) {
+                    int f = random.nextInt(files);
+                    lines[f][random.nextInt(LINES_PER_FILE)] = "changed by " + i;
+                    byte[] data = (String.join("\n", lines[f]) + "\n")
+                            .getBytes(StandardCharsets.UTF_8);
+                    write(out, "blob\nmark :" + mark + "\ndata " + data.length + "\n");
+                    out.write(data);
+                    fileCommands.append("M 100644 :").append(mark).append(" dir")
+                            .append(f % 10).append("/file").append(f).append(".txt\n");
+                    mark += 1;
+                }
+                String message = "Change " + changes + " files in commit " + i + "\n";
+                write(out, "commit refs/heads/" + (branch == 0 ? "master" : "topic") + "\n"
+                        + "mark :" + mark + "\n"
+                        + "author A Words <a@words> " + time + " +0800\n"
+                        + "committer A Words <a@words> " + time + " +0800\n"
+                        + "data " + message.length() + "\n" + message);
+                if (i == 1) {
+                    write(out, "from :" + tips[0] + "\n");
+                } else if (i % MERGE_INTERVAL == 0 && i > 0) {
+                    write(out, "merge :" + tips[1] + "\n");
+                }
+                write(out, fileCommands.toString());
+                tips[branch] = mark;
+                mark += 1;
+                time += 60;
+            }
+        }
+    }
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,201 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Remembers the size, modification time, inode and blob id of files in the
+ * working directory and the staging area, so that a file whose stat data
+ * has not changed need not be read and hashed again.
+ * <p>
+ * An entry whose modification time is not older than the index file
+ * itself is "racily clean": the file may have changed again within the
+ * file system's timestamp granularity after it was hashed, so such an
+ * entry is never trusted and the file is hashed again. Entries made by the
+ * running command are not trusted either until the index has been saved.
+ * <p>
+ * The file is "GSTC", a version, the number of entries, then for each
+ * entry its path relative to the working directory, size, modification
+ * time in nanoseconds, inode and 20-byte blob id.
+ * <p>
+ * Files may be looked up from several threads; hashing itself happens
+ * outside the lock.
+ *
+ * @author A_Words
+ */
+class Index {
+    private static final File INDEX_FILE = join(GITLET_DIR, "index");
+    private static final byte[] MAGIC = {'G', 'S', 'T', 'C'};
+    private static final int VERSION = 1;
+
+    private static TreeMap<String, Entry> entries;
+    /** Modification time of the index file when it was read. */
+    private static long indexTime;
+    private static boolean dirty;
+
+    /** Returns the blob id of FILE, hashing it only if its stat data
+     *  differs from the recorded one. */
+    static String blobSha1(File file) {
+        String path = pathOf(file);
+        Entry stat = stat(file);
+        synchronized (Index.class) {
+            load();
+            Entry entry = entries.get(path);
+            if (entry != null && stat != null && entry.sameStat(stat) && entry.mtime < indexTime) {
+                return entry.blobSha1;
+            }
+        }
+        String blobSha1 = sha1File(file, file.getName());
+        if (stat != null) {
+            stat.blobSha1 = blobSha1;
+            put(path, stat);
+        }
+        return blobSha1;
+    }
+
+    /** Records that FILE, just written, has the blob id BLOBSHA1. */
+    static void record(File file, String blobSha1) {
+        Entry stat = stat(file);
+        if (stat != null) {
+            stat.blobSha1 = blobSha1;
+            put(pathOf(file), stat);
+        }
+    }
+
+    private static synchronized void put(String path, Entry entry) {
+        load();
+        entries.put(path, entry);
+        dirty = true;
+    }
+
+    /** Writes the index if it changed, dropping entries for files that no
+     *  longer exist. */
+    static synchronized void save() {
+        if (!dirty || !GITLET_DIR.isDirectory()) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!join(CWD, it.next().getKey()).isFile()) {
+                it.remove();
+            }
+        }
+        File tmpFile = join(GITLET_DIR, "index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmpFile.toPath())))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+                out.write(fromHex(entry.blobSha1));
+            }
+        } catch (IOException e) {
+            throw error("Unable to write index.");
+        }
+        try {
+            Files.move(tmpFile.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw error("Unable to write index.");
+        }
+        dirty = false;
+    }
+
+    /** Forgets the index read so far and any unsaved changes to it. */
+    static synchronized void reset() {
+        entries = null;
+        dirty = false;
+    }
+
+    private static void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new TreeMap<>();
+        if (!INDEX_FILE.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(INDEX_FILE.toPath())))) {
+            indexTime = Files.getLastModifiedTime(INDEX_FILE.toPath()).to(TimeUnit.NANOSECONDS);
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                String path = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readLong());
+                byte[] id = new byte[Pack.ID_SIZE];
+                in.readFully(id);
+                entry.blobSha1 = toHex(id);
+                entries.put(path, entry);
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    private static String pathOf(File file) {
+        return CWD.toPath().relativize(file.toPath().normalize()).toString();
+    }
+
+    /** Returns the stat data of FILE, or null if it cannot be read. */
+    private static Entry stat(File file) {
+        Path path = file.toPath();
+        try {
+            Map<String, Object> attrs;
+            try {
+                attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                attrs = Files.readAttributes(path, "size,lastModifiedTime");
+            }
+            Object inode = attrs.get("ino");
+            return new Entry((Long) attrs.get("size"),
+                    ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                    inode == null ? 0 : ((Number) inode).longValue());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final long inode;
+        String blobSha1;
+
+        Entry(long size, long mtime, long inode) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+}
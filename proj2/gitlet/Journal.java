@@ -0,0 +1,396 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * An append-only write-ahead journal for the steps of a commit that come
+ * after its objects are saved: moving the branch and clearing the staging
+ * area. Before taking them, a command appends a record of the branch, its
+ * old commit and its new one and syncs the journal; that sync is the
+ * point at which the commit happens. Once the steps are done it appends a
+ * record that ends the transaction, without syncing.
+ * <p>
+ * The journal also stands in for syncing the commit graph and the message
+ * index, which only cache what the commits say. A command that commits
+ * first calls {@link #cover()}, which makes sure the journal starts with a
+ * synced record of the machine's current boot. Until the command ends its
+ * last transaction, those files skip their syncs: a killed process loses
+ * nothing the operating system has already taken, so only a crash of the
+ * machine can lose such writes. The journal keeps its records until it
+ * grows past {@link #CHECKPOINT_SIZE}. Then the command that ends the last
+ * transaction syncs both files and empties the journal. A command that
+ * finds a journal from an earlier boot throws both files away, and they
+ * are rebuilt from the commits. Where the boot cannot be told, the files
+ * are synced as they are written, and the journal is emptied whenever no
+ * transaction is open. Either way, a commit's objects and the refs are
+ * still synced on their own.
+ * <p>
+ * The first command that finds a transaction that was begun but never
+ * ended, because the command that began it died, completes it: it moves
+ * the branch if it still points at the old commit and clears the staging
+ * area, then empties the journal. A command holds a lock on the journal
+ * from its first record to its last, so a live command's transaction is
+ * never taken for a dead one, and the lock goes away with the process.
+ * <p>
+ * Records are appended to a buffer and written and synced together by
+ * {@link #sync()}, so a command that commits many times, like an import,
+ * pays for one sync per batch rather than one per commit. Each record is
+ * its length, a CRC-32 of its body and the body, a kind byte and its
+ * fields; a torn last record fails its check and is ignored.
+ * <p>
+ * For testing recovery, the gitlet.crashAt system property names a step,
+ * see {@link #crashPoint}, at which the process halts as if killed.
+ *
+ * @author A_Words
+ */
+class Journal {
+    private static final File JOURNAL_FILE = join(GITLET_DIR, "journal");
+    private static final byte BEGIN = 1;
+    private static final byte END = 2;
+    private static final byte BOOT = 3;
+    /** Size of the journal at which the files it covers are synced and it
+     *  is emptied. */
+    private static final long CHECKPOINT_SIZE = 64 * 1024;
+    private static final File BOOT_ID_FILE = new File("/proc/sys/kernel/random/boot_id");
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** Records longer than this can only be torn or corrupt. */
+    private static final int MAX_RECORD_SIZE = 1 << 16;
+    /** Exit status of a process halted at a crash point. */
+    static final int CRASH_STATUS = 137;
+    private static final String CRASH_AT = System.getProperty("gitlet.crashAt");
+
+    private static FileChannel channel;
+    private static FileLock lock;
+    private static final ByteArrayOutputStream BUFFER = new ByteArrayOutputStream();
+    /** Transactions this command began and has not ended. */
+    private static int open;
+    private static boolean recovered;
+    /** Whether this command holds the lock on a journal that records the
+     *  current boot, so that the files it covers need not be synced. */
+    private static boolean covered;
+    private static String bootId;
+
+    /** Records that BRANCH is about to move from OLDSHA1, which may be
+     *  null, to NEWSHA1. Takes effect at the next {@link #sync()}. */
+    static synchronized void begin(String branch, String oldSha1, String newSha1) {
+        lock();
+        append(BEGIN, branch, oldSha1 == null ? "" : oldSha1, newSha1);
+        open += 1;
+    }
+
+    /** Records that the transaction that moves a branch to NEWSHA1 is
+     *  done. It is written at the next sync and never synced on its own;
+     *  once no transaction remains open the journal is emptied instead. */
+    static synchronized void end(String newSha1) {
+        append(END, newSha1);
+        open -= 1;
+        if (open == 0) {
+            try {
+                if (covered && channel.size() + BUFFER.size() < CHECKPOINT_SIZE) {
+                    write();
+                } else {
+                    checkpoint();
+                }
+            } catch (IOException e) {
+                throw error("Unable to write journal.");
+            }
+            unlock();
+        }
+    }
+
+    /** Lets the commit graph and the message index skip syncing what this
+     *  command writes to them until it ends its last transaction, and
+     *  returns true; or returns false if the boot of the machine cannot be
+     *  told, and they must sync as before. Must be called before the
+     *  first of those writes. */
+    static synchronized boolean cover() {
+        if (covered) {
+            return true;
+        }
+        String boot = bootId();
+        if (boot == null) {
+            return false;
+        }
+        lock();
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer record = ByteBuffer.wrap(record(BOOT, boot));
+                while (record.hasRemaining()) {
+                    channel.write(record, record.position());
+                }
+                channel.force(false);
+            } else if (!boot.equals(firstBoot())) {
+                return false;
+            }
+        } catch (IOException e) {
+            throw error("Unable to write journal.");
+        }
+        covered = true;
+        return true;
+    }
+
+    /** Returns whether this command may leave what it writes to the files
+     *  the journal covers unsynced; see {@link #cover()}. */
+    static synchronized boolean covers() {
+        return covered;
+    }
+
+    /** Returns an id of the machine's current boot, or null if it cannot
+     *  be told. The gitlet.bootId system property overrides it, so that
+     *  tests can recover as if after a reboot. */
+    static synchronized String bootId() {
+        if (bootId == null) {
+            bootId = System.getProperty("gitlet.bootId");
+        }
+        if (bootId == null && BOOT_ID_FILE.canRead()) {
+            try {
+                bootId = new String(Files.readAllBytes(BOOT_ID_FILE.toPath()),
+                        StandardCharsets.UTF_8).trim();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return bootId;
+    }
+
+    /** Syncs the files the journal covers, if it covers them, and then
+     *  empties it. */
+    private static void checkpoint() throws IOException {
+        if (covered || firstBoot() != null) {
+            CommitGraph.force();
+            MessageIndex.force();
+        }
+        BUFFER.reset();
+        channel.truncate(0);
+    }
+
+    /** Returns the boot the journal records, or null if it records none. */
+    private static String firstBoot() throws IOException {
+        ByteBuffer first = ByteBuffer.allocate((int) Math.min(channel.size(),
+                RECORD_HEADER_SIZE + MAX_RECORD_SIZE));
+        while (first.hasRemaining() && channel.read(first, first.position()) >= 0) {
+            continue;
+        }
+        first.flip();
+        String[] record = read(first);
+        return record != null && record[0].equals(Byte.toString(BOOT)) ? record[1] : null;
+    }
+
+    /** Writes the records appended since the last sync and makes them
+     *  durable. */
+    static synchronized void sync() {
+        if (write()) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw error("Unable to sync journal.");
+            }
+        }
+    }
+
+    /** Halts the process, as a crash would, if the gitlet.crashAt system
+     *  property names STEP. */
+    static void crashPoint(String step) {
+        if (step.equals(CRASH_AT)) {
+            System.out.flush();
+            Runtime.getRuntime().halt(CRASH_STATUS);
+        }
+    }
+
+    /** Completes the transactions of commands that died before ending
+     *  them. Runs once per command; see {@link #reset()}. */
+    static synchronized void recover() {
+        if (recovered || JOURNAL_FILE.length() == 0) {
+            recovered = true;
+            return;
+        }
+        recovered = true;
+        lock();
+        try {
+            Map<String, String[]> unfinished = new LinkedHashMap<>();
+            ByteBuffer records = ByteBuffer.allocate((int) channel.size());
+            while (records.hasRemaining() && channel.read(records, records.position()) >= 0) {
+                continue;
+            }
+            records.flip();
+            String boot = null;
+            for (String[] record = read(records); record != null; record = read(records)) {
+                if (record[0].equals(Byte.toString(BEGIN))) {
+                    unfinished.put(record[3], record);
+                } else if (record[0].equals(Byte.toString(END))) {
+                    unfinished.remove(record[1]);
+                } else {
+                    boot = record[1];
+                }
+            }
+            boolean rebooted = boot != null && !boot.equals(bootId());
+            if (rebooted) {
+                // 重启前未同步的写入可能已丢失, 丢掉这些缓存, 之后从提交重建
+                CommitGraph.discard();
+                CommitBitmaps.discard();
+                MessageIndex.discard();
+            }
+            for (String[] begun : unfinished.values()) {
+                complete(begun[1], begun[2].isEmpty() ? null : begun[2], begun[3]);
+                append(END, begun[3]);
+            }
+            if (boot != null && !rebooted) {
+                write();
+            } else {
+                BUFFER.reset();
+                channel.truncate(0);
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw error("Unable to read journal.");
+        } finally {
+            unlock();
+        }
+    }
+
+    /** Lets the next command recover again, for a daemon. */
+    static synchronized void reset() {
+        recovered = false;
+        BUFFER.reset();
+        open = 0;
+        unlock();
+    }
+
+    /** Finishes moving BRANCH from OLDSHA1 to NEWSHA1 for a command that
+     *  died partway. The commit was saved before the transaction began. */
+    private static void complete(String branch, String oldSha1, String newSha1) {
+        if (Commit.load(newSha1) == null) {
+            return;
+        }
+        String current = RefStore.branch(branch);
+        if (Objects.equals(current, oldSha1)) {
+            RefStore.update().setBranch(branch, newSha1).commit();
+            current = newSha1;
+        }
+        // 只有当前分支的提交会清空暂存区; 导入等移动其他分支的事务不会
+        if (newSha1.equals(current) && branch.equals(RefStore.currentBranch())) {
+            Repository.clearStagingArea();
+        }
+    }
+
+    private static void append(byte kind, String... fields) {
+        BUFFER.writeBytes(record(kind, fields));
+    }
+
+    /** Returns the record of KIND with FIELDS, headed by its length and
+     *  checksum. */
+    private static byte[] record(byte kind, String... fields) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeByte(kind);
+            for (String field : fields) {
+                out.writeUTF(field);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.toByteArray());
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            record.write(ByteBuffer.allocate(RECORD_HEADER_SIZE)
+                    .putInt(body.size()).putInt((int) crc.getValue()).array());
+            body.writeTo(record);
+            return record.toByteArray();
+        } catch (IOException e) {
+            throw error("Unable to write journal.");
+        }
+    }
+
+    /** Returns the kind and fields of the next record in RECORDS, or null
+     *  at the end or at a torn or corrupt record. */
+    private static String[] read(ByteBuffer records) {
+        if (records.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int length = records.getInt();
+        int checksum = records.getInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE || length > records.remaining()) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        records.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(body);
+        byte kind = in.get();
+        int fieldCount = kind == BEGIN ? 3 : 1;
+        String[] record = new String[fieldCount + 1];
+        record[0] = Byte.toString(kind);
+        for (int i = 1; i <= fieldCount; i += 1) {
+            byte[] field = new byte[in.getShort() & 0xffff];
+            in.get(field);
+            record[i] = new String(field, StandardCharsets.UTF_8);
+        }
+        return record;
+    }
+
+    /** Writes the buffered records and returns whether there were any. */
+    private static boolean write() {
+        if (BUFFER.size() == 0) {
+            return false;
+        }
+        lock();
+        try {
+            ByteBuffer records = ByteBuffer.wrap(BUFFER.toByteArray());
+            while (records.hasRemaining()) {
+                channel.write(records, channel.size());
+            }
+        } catch (IOException e) {
+            throw error("Unable to write journal.");
+        }
+        BUFFER.reset();
+        return true;
+    }
+
+    /** Opens the journal and takes its lock, waiting for a command that
+     *  holds it. */
+    private static void lock() {
+        if (lock != null) {
+            return;
+        }
+        try {
+            channel = FileChannel.open(JOURNAL_FILE.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            lock = channel.lock();
+        } catch (IOException e) {
+            throw error("Unable to lock journal.");
+        }
+    }
+
+    private static void unlock() {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            throw error("Unable to unlock journal.");
+        }
+        lock = null;
+        channel = null;
+        covered = false;
+    }
+}
@@ -0,0 +1,123 @@
+package gitlet;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Builds a long linear history and times printing it with log: in full,
+ * limited with -n and limited with --since, and in full the way log used
+ * to print, with a new date formatter per commit and unbuffered output.
+ * Output goes to a stream that only counts bytes. Run it in an empty
+ * directory with a small heap to check that log needs the same memory
+ * however long the history is:
+ *
+ *     java -Xmx64m gitlet.LogBenchmark [COMMITS]
+ *
+ * @author A_Words
+ */
+public class LogBenchmark {
+    private static final int LIMIT = 20;
+    /** Commits per pack, which keeps the pending pack's index small. */
+    private static final int FLUSH_EVERY = 50000;
+
+    public static void main(String[] args) {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+
+        long start = System.nanoTime();
+        String head = CommitGraph.sha1(0);
+        for (int i = 1; i <= commits; i += 1) {
+            Commit commit = new Commit("commit " + i, null, head);
+            commit.save();
+            CommitGraph.append(commit.getSha1(), head, null,
+                    commit.getTimestamp().toInstant().toEpochMilli());
+            head = commit.getSha1();
+            if (i % FLUSH_EVERY == 0) {
+                ObjectStore.flush();
+            }
+        }
+        ObjectStore.flush();
+        CommitGraph.sync();
+        Repository.reset(head);
+        System.out.printf("%d commits, max heap %d MB%n", commits,
+                Runtime.getRuntime().maxMemory() >> 20);
+        System.out.printf("%-24s %10.3f s%n", "build history", (System.nanoTime() - start) / 1e9);
+
+        long middle = CommitGraph.timestamp(CommitGraph.size() / 2);
+        String tip = head;
+        time("old log", () -> oldLog(tip));
+        time("log", () -> Repository.log(Integer.MAX_VALUE, Long.MIN_VALUE));
+        time("log -n " + LIMIT, () -> Repository.log(LIMIT, Long.MIN_VALUE));
+        time("log --since (half)", () -> Repository.log(Integer.MAX_VALUE, middle));
+    }
+
+    private static void time(String name, Runnable log) {
+        PrintStream stdout = System.out;
+        CountingStream counter = new CountingStream();
+        System.gc();
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        pools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        long start = System.nanoTime();
+        System.setOut(new PrintStream(counter, true));
+        try {
+            log.run();
+        } finally {
+            System.out.flush();
+            System.setOut(stdout);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf("%-24s %10.3f s %10.1f MB out   peak heap %5d MB%n",
+                name, seconds, counter.count / 1e6, peak >> 20);
+    }
+
+    /** Prints the history of SHA1 as log used to. */
+    private static void oldLog(String sha1) {
+        int row = CommitGraph.indexOf(sha1);
+        while (row != CommitGraph.NONE) {
+            Commit commit = Commit.load(CommitGraph.sha1(row));
+            message("===");
+            message("commit " + commit.getSha1());
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern(
+                    "E MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
+            message("Date: " + commit.getTimestamp()
+                    .withZoneSameInstant(ZoneId.systemDefault()).format(formatter));
+            message(commit.getMessage());
+            message("");
+            row = CommitGraph.parent(row);
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
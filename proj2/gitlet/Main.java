@@ -1,11 +1,22 @@
 package gitlet;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+import static gitlet.Utils.exit;
 import static gitlet.Utils.message;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author TODO
  */
 public class Main {
+    /** How old an unreachable object must be before gc removes it, as in
+     *  Git: two weeks. */
+    private static final long DEFAULT_GC_GRACE_SECONDS = 14 * 24 * 60 * 60;
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ...
@@ -13,7 +24,7 @@ public class Main {
     public static void main(String[] args) {
         if (args.length == 0) {
             System.out.println("Please enter a command.");
-            System.exit(0);
+            exit(0);
         }
 
         String firstArg = args[0];
@@ -23,8 +34,10 @@ public class Main {
                 Repository.init();
                 break;
             case "add":
-                checkOperands(args, 2);
-                Repository.stagingFileByName(args[1]);
+                if (args.length < 2) {
+                    incorrectOperands();
+                }
+                Repository.stagingFilesByName(Arrays.asList(args).subList(1, args.length));
                 break;
             case "commit":
                 checkOperands(args, 2);
@@ -37,14 +50,30 @@ public class Main {
                 Repository.rmFileByName(fileName);
                 break;
             case "log":
-                checkOperands(args, 1);
-                Repository.log();
+                int maxCount = Integer.MAX_VALUE;
+                long since = Long.MIN_VALUE;
+                for (int i = 1; i < args.length; i += 2) {
+                    if (i + 1 == args.length) {
+                        incorrectOperands();
+                    } else if (args[i].equals("-n")) {
+                        maxCount = parseCount(args[i + 1]);
+                    } else if (args[i].equals("--since")) {
+                        since = parseDate(args[i + 1]);
+                    } else {
+                        incorrectOperands();
+                    }
+                }
+                Repository.log(maxCount, since);
                 break;
             case "global-log":
                 checkOperands(args, 1);
                 Repository.globalLog();
                 break;
             case "find":
+                if (args.length == 3 && args[1].equals("--contains")) {
+                    Repository.findContaining(args[2]);
+                    break;
+                }
                 checkOperands(args, 2);
                 String commitMessage = args[1];
                 Repository.find(commitMessage);
@@ -69,8 +98,14 @@ public class Main {
                 }
                 break;
             case "branch":
-                checkOperands(args, 2);
-                Repository.createBranch(args[1]);
+                if (args.length == 3 && args[1].equals("--set-upstream-to")) {
+                    Repository.setUpstream(args[2]);
+                } else if (args.length == 2 && args[1].equals("--unset-upstream")) {
+                    Repository.setUpstream(null);
+                } else {
+                    checkOperands(args, 2);
+                    Repository.createBranch(args[1]);
+                }
                 break;
             case "rm-branch":
                 checkOperands(args, 2);
@@ -84,10 +119,43 @@ public class Main {
                 checkOperands(args, 2);
                 Repository.merge(args[1]);
                 break;
+            case "merge-base":
+                checkOperands(args, 3);
+                Repository.mergeBase(args[1], args[2]);
+                break;
+            case "diff":
+                if (args.length > 3) {
+                    incorrectOperands();
+                }
+                Repository.diff(args.length > 1 ? args[1] : null, args.length > 2 ? args[2] : null);
+                break;
+            case "gc":
+                long graceSeconds = DEFAULT_GC_GRACE_SECONDS;
+                if (args.length == 3 && args[1].equals("--grace")) {
+                    graceSeconds = parseCount(args[2]);
+                } else {
+                    checkOperands(args, 1);
+                }
+                Repository.gc(graceSeconds);
+                break;
+            case "fast-import":
+                checkOperands(args, 1);
+                Repository.fastImport();
+                break;
+            case "chunk-stats":
+                checkOperands(args, 1);
+                Repository.chunkStats();
+                break;
             default:
                 message("No command with that name exists.");
                 break;
         }
+        Index.save();
+        WorkingTree.save();
+        if (Boolean.getBoolean("gitlet.cacheStats")) {
+            System.err.println(Commit.CACHE);
+            System.err.println(ObjectStore.BLOB_CACHE);
+        }
     }
 
     private static void checkOperands(String[] args, int num) {
@@ -96,8 +164,43 @@ public class Main {
         }
     }
 
+    /** Returns the non-negative count ARG, or exits if it is not one. */
+    private static int parseCount(String arg) {
+        try {
+            int count = Integer.parseInt(arg);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        incorrectOperands();
+        return 0;
+    }
+
+    /** Returns the time ARG in epoch milliseconds, or exits if it is not a
+     *  date such as 2021-03-01, a local time such as 2021-03-01T12:30, or a
+     *  time with an offset such as 2021-03-01T12:30:00+08:00. Dates and
+     *  local times are in the system time zone. */
+    private static long parseDate(String arg) {
+        try {
+            return OffsetDateTime.parse(arg).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Not a time with an offset; try the local forms.
+        }
+        try {
+            LocalDateTime time = arg.contains("T")
+                    ? LocalDateTime.parse(arg)
+                    : LocalDate.parse(arg).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            incorrectOperands();
+            return 0;
+        }
+    }
+
     private static void incorrectOperands() {
         message("Incorrect operands.");
-        System.exit(0);
+        exit(0);
     }
 }
@@ -0,0 +1,116 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Builds a synthetic commit graph (a long linear history with a short
+ * topic branch every few hundred commits) and compares the
+ * generation-pruned merge base with a walk of the whole ancestry. Must be
+ * run in an empty directory:
+ *
+ *     java gitlet.MergeBaseBenchmark [COMMITS]
+ *
+ * @author A_Words
+ */
+public class MergeBaseBenchmark {
+    private static final int TOPIC_EVERY = 500;
+    private static final int TOPIC_LENGTH = 5;
+    /** Number of queries timed for the full walk, which is slow. */
+    private static final int FULL_WALK_QUERIES = 20;
+
+    public static void main(String[] args) {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        GITLET_DIR.mkdir();
+
+        long start = System.nanoTime();
+        List<int[]> queries = new ArrayList<>();
+        String head = null;
+        long time = 0;
+        int made = 0;
+        while (made < commits) {
+            String id = sha1("main", Integer.toString(made));
+            CommitGraph.append(id, head, null, time++);
+            head = id;
+            made += 1;
+            if (made % TOPIC_EVERY == 0) {
+                String fork = head;
+                String topic = fork;
+                for (int k = 0; k < TOPIC_LENGTH; k += 1) {
+                    String topicId = sha1("topic", Integer.toString(made), Integer.toString(k));
+                    CommitGraph.append(topicId, topic, null, time++);
+                    topic = topicId;
+                    id = sha1("main", Integer.toString(made));
+                    CommitGraph.append(id, head, null, time++);
+                    head = id;
+                    made += 1;
+                }
+                queries.add(new int[]{CommitGraph.indexOf(topic), CommitGraph.indexOf(head),
+                    CommitGraph.indexOf(fork)});
+            }
+        }
+        CommitGraph.sync();
+        System.out.printf("%d commits, %d topic branches%n", CommitGraph.size(), queries.size());
+        System.out.printf("%-24s %12.3f s%n", "build graph", (System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        for (int[] query : queries) {
+            if (CommitGraph.mergeBase(query[0], query[1]) != query[2]) {
+                throw error("Wrong merge base.");
+            }
+        }
+        System.out.printf("%-24s %12.3f us/query%n", "generation-pruned",
+                (System.nanoTime() - start) / 1e3 / queries.size());
+
+        List<int[]> sample = queries.subList(
+                Math.max(0, queries.size() - FULL_WALK_QUERIES), queries.size());
+        start = System.nanoTime();
+        for (int[] query : sample) {
+            if (fullWalkMergeBase(query[0], query[1]) != query[2]) {
+                throw error("Wrong merge base.");
+            }
+        }
+        System.out.printf("%-24s %12.3f us/query%n", "full ancestor walk",
+                (System.nanoTime() - start) / 1e3 / sample.size());
+    }
+
+    /** The merge base as merge used to find it: collect every ancestor of
+     *  FIRST, then search breadth-first from SECOND. */
+    private static int fullWalkMergeBase(int first, int second) {
+        BitSet ancestors = new BitSet();
+        Queue<Integer> queue = new ArrayDeque<>();
+        queue.add(first);
+        while (!queue.isEmpty()) {
+            int row = queue.poll();
+            if (row == CommitGraph.NONE || ancestors.get(row)) {
+                continue;
+            }
+            ancestors.set(row);
+            queue.add(CommitGraph.parent(row));
+            queue.add(CommitGraph.secondParent(row));
+        }
+        queue.add(second);
+        while (!queue.isEmpty()) {
+            int row = queue.poll();
+            if (row == CommitGraph.NONE) {
+                continue;
+            }
+            if (ancestors.get(row)) {
+                return row;
+            }
+            queue.add(CommitGraph.parent(row));
+            queue.add(CommitGraph.secondParent(row));
+        }
+        return CommitGraph.NONE;
+    }
+}
@@ -0,0 +1,93 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Times merging two branches that between them touch every one of FILES
+ * files: the current branch changes a quarter of them, and the given
+ * branch changes most of the rest, removes some and changes an eighth of
+ * them differently from the current branch, which conflict. The merge
+ * runs once on one thread and, after a reset, once on the default number
+ * of threads. Must be run in an empty directory:
+ *
+ *     java gitlet.MergeBenchmark [FILES]
+ *
+ * @author A_Words
+ */
+public class MergeBenchmark {
+    private static final int FILES_PER_DIRECTORY = 200;
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+        for (int i = 0; i < count; i += 1) {
+            write(i, "base");
+        }
+        commit("base");
+        Repository.createBranch("other");
+
+        for (int i = 0; i < count; i += 4) {
+            write(i, "current");
+        }
+        commit("current");
+        String mergedInto = RefStore.branch("master");
+
+        Repository.checkoutBranch("other");
+        Index.save();
+        for (int i = 0; i < count; i += 1) {
+            if (i % 8 == 3) {
+                Repository.rmFileByName(path(i));
+            } else if (i % 4 != 0 || i % 8 == 0) {
+                write(i, "given");
+            }
+        }
+        commit("given");
+        Repository.checkoutBranch("master");
+        Index.save();
+
+        int threads = Parallel.getThreads();
+        System.out.printf("%d files, %d conflicts%n", count, (count + 7) / 8);
+        Parallel.setThreads(1);
+        time("1 thread", mergedInto);
+        Repository.reset(mergedInto);
+        Index.save();
+        Parallel.setThreads(threads);
+        time(threads + " threads", mergedInto);
+    }
+
+    private static void time(String label, String mergedInto) {
+        long start = System.nanoTime();
+        Repository.merge("other");
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (RefStore.branch("master").equals(mergedInto)) {
+            throw error("The merge did not commit.");
+        }
+        System.out.printf("%-12s %8.3f s%n", label, seconds);
+    }
+
+    private static String path(int i) {
+        return "src/d" + (i / FILES_PER_DIRECTORY) + "/f" + i + ".txt";
+    }
+
+    private static void write(int i, String version) {
+        File file = join(CWD, path(i));
+        file.getParentFile().mkdirs();
+        writeContents(file, "file " + i + "\n", version + "\n");
+    }
+
+    private static void commit(String message) {
+        Repository.stagingFilesByName(List.of("src"));
+        Repository.stagingToCommit(message);
+        Index.save();
+    }
+}
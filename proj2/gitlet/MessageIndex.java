@@ -0,0 +1,487 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * An on-disk hash table from commit messages, and from the words in them,
+ * to commit ids, so that find reads a handful of entries instead of every
+ * commit in the repository.
+ * <p>
+ * Each commit adds one posting for its whole message and one for every
+ * distinct word in it, a word being a run of letters and digits compared
+ * without case. A posting is keyed by a 64-bit hash of its text; since
+ * different texts may share a hash, every candidate is checked against the
+ * commit itself before it is returned.
+ * <p>
+ * The file is "GMSG", a version and the number of buckets, then for each
+ * bucket the number of the last posting in its chain plus one (0 for an
+ * empty chain), then the postings in the order they were added: the
+ * number plus one of the previous posting in the same chain, the key and
+ * the 20-byte commit id. Postings are appended and made durable before the
+ * buckets point at them, unless the {@link Journal} covers them, so an
+ * interrupted update at worst loses the postings of a commit that was
+ * never stored either. When the chains grow
+ * long the file is rewritten with twice the buckets. A missing file or one
+ * in another format is rebuilt from the commits in the object store.
+ * <p>
+ * Commands that write the index, even in different processes, take turns
+ * through a lock on message-index.lock, and each reopens the index under
+ * the lock, so it appends after the postings of the command before it
+ * and into the file that command may have rewritten. Readers need no
+ * lock, since a bucket never points at a posting not yet written.
+ *
+ * @author A_Words
+ */
+class MessageIndex {
+    private static final File INDEX_FILE = join(GITLET_DIR, "message-index");
+    private static final File LOCK_FILE = join(GITLET_DIR, "message-index.lock");
+    private static final byte[] MAGIC = {'G', 'M', 'S', 'G'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int BUCKETS = 8;
+    private static final int MIN_BUCKETS = 1024;
+    /** The average chain length at which the table is rewritten. */
+    private static final int MAX_LOAD = 4;
+    private static final int POSTING_SIZE = 32;
+    private static final int KEY = 4;
+    private static final int ID = 12;
+    private static final byte MESSAGE = 1;
+    private static final byte WORD = 2;
+
+    private static FileChannel channel;
+    private static int buckets;
+    private static long postings;
+
+    /** Closes the index file, so that the next use reads it as it is now. */
+    static void reset() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw error("Unable to close message index.");
+        }
+        channel = null;
+    }
+
+    /** Records the message of COMMIT durably. Must be called before the
+     *  commit itself is flushed to the object store. */
+    static void add(Commit commit) {
+        addAll(List.of(commit));
+    }
+
+    /** Records the messages of COMMITS durably, syncing the file twice
+     *  however many there are, or not at all if the journal covers them.
+     *  Must be called before the commits themselves are flushed to the
+     *  object store. */
+    static synchronized void addAll(List<Commit> commits) {
+        if (commits.isEmpty()) {
+            return;
+        }
+        FileLock lock = lock();
+        try {
+            // 另一个命令可能已追加了 posting 或重写了文件
+            reset();
+            if (!openExisting()) {
+                rebuild();
+            }
+            append(commits);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /** Appends the postings of COMMITS to the open index. */
+    private static void append(List<Commit> commits) {
+        List<long[]> keysOfCommits = new ArrayList<>(commits.size());
+        long added = 0;
+        for (Commit commit : commits) {
+            long[] keys = keysOf(commit.getMessage());
+            keysOfCommits.add(keys);
+            added += keys.length;
+        }
+        if (postings + added > (long) buckets * MAX_LOAD) {
+            rehash(Math.max(buckets * 2, Integer.highestOneBit(
+                    (int) ((postings + added) / MAX_LOAD)) << 1));
+        }
+        // 新的链头先记在内存里, 同一批中后加的 posting 接在先加的后面
+        Map<Integer, Integer> heads = new TreeMap<>();
+        ByteBuffer out = ByteBuffer.allocate((int) Math.min(added, 1 << 12) * POSTING_SIZE);
+        long start = postings;
+        long next = postings;
+        try {
+            for (int c = 0; c < commits.size(); c += 1) {
+                byte[] id = fromHex(commits.get(c).getSha1());
+                for (long key : keysOfCommits.get(c)) {
+                    int bucket = bucketOf(key);
+                    Integer head = heads.get(bucket);
+                    if (!out.hasRemaining()) {
+                        out.flip();
+                        writeFully(out, postingOffset(start));
+                        start = next;
+                        out.clear();
+                    }
+                    out.putInt(head != null ? head : readHead(bucket)).putLong(key).put(id);
+                    next += 1;
+                    heads.put(bucket, (int) next);
+                }
+            }
+            out.flip();
+            writeFully(out, postingOffset(start));
+            boolean synced = !Journal.covers();
+            if (synced) {
+                channel.force(false);
+            }
+            ByteBuffer head = ByteBuffer.allocate(4);
+            for (Map.Entry<Integer, Integer> e : heads.entrySet()) {
+                head.clear();
+                head.putInt(e.getValue()).flip();
+                writeFully(head, HEADER_SIZE + 4L * e.getKey());
+            }
+            if (synced) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw error("Unable to update message index.");
+        }
+        postings = next;
+    }
+
+    /** Makes every posting added so far, by any command, durable. */
+    static void force() {
+        if (!INDEX_FILE.isFile()) {
+            return;
+        }
+        try (FileChannel file = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.WRITE)) {
+            file.force(false);
+        } catch (IOException e) {
+            throw error("Unable to sync message index.");
+        }
+    }
+
+    /** Closes and deletes the index, whose postings may not all have
+     *  survived a crash of the machine. It is rebuilt on its next use. */
+    static synchronized void discard() {
+        reset();
+        try {
+            Files.deleteIfExists(INDEX_FILE.toPath());
+        } catch (IOException e) {
+            throw error("Unable to delete message index.");
+        }
+    }
+
+    /** Returns the ids of all commits whose message is MESSAGE. */
+    static TreeSet<String> withMessage(String message) {
+        open();
+        TreeSet<String> ids = new TreeSet<>();
+        for (String sha1 : candidates(key(MESSAGE, message))) {
+            Commit commit = Commit.load(sha1);
+            if (commit != null && commit.getMessage().equals(message)) {
+                ids.add(sha1);
+            }
+        }
+        return ids;
+    }
+
+    /** Returns the ids of all commits whose message contains every word of
+     *  TEXT as a whole word, ignoring case. */
+    static TreeSet<String> containing(String text) {
+        open();
+        TreeSet<String> words = wordsOf(text);
+        TreeSet<String> ids = new TreeSet<>();
+        if (words.isEmpty()) {
+            return ids;
+        }
+        ids.addAll(candidates(key(WORD, words.first())));
+        for (String word : words.tailSet(words.first(), false)) {
+            ids.retainAll(candidates(key(WORD, word)));
+        }
+        ids.removeIf(sha1 -> {
+            Commit commit = Commit.load(sha1);
+            return commit == null || !wordsOf(commit.getMessage()).containsAll(words);
+        });
+        return ids;
+    }
+
+    /** Returns the ids of the postings with KEY. */
+    private static TreeSet<String> candidates(long key) {
+        TreeSet<String> ids = new TreeSet<>();
+        ByteBuffer posting = ByteBuffer.allocate(POSTING_SIZE);
+        byte[] id = new byte[Pack.ID_SIZE];
+        try {
+            for (int next = readHead(bucketOf(key)); next != 0; next = posting.getInt(0)) {
+                posting.clear();
+                readFully(posting, postingOffset(next - 1));
+                if (posting.getLong(KEY) == key) {
+                    posting.get(ID, id);
+                    ids.add(toHex(id));
+                }
+            }
+        } catch (IOException e) {
+            throw error("Unable to read message index.");
+        }
+        return ids;
+    }
+
+    /** Returns the keys of the postings for a commit with MESSAGE. */
+    private static long[] keysOf(String message) {
+        TreeSet<String> words = wordsOf(message);
+        long[] keys = new long[words.size() + 1];
+        keys[0] = key(MESSAGE, message);
+        int i = 1;
+        for (String word : words) {
+            keys[i] = key(WORD, word);
+            i += 1;
+        }
+        return keys;
+    }
+
+    /** Returns the distinct words of TEXT in lower case. */
+    private static TreeSet<String> wordsOf(String text) {
+        TreeSet<String> words = new TreeSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i += 1) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /** Returns the 64-bit FNV-1a hash of KIND followed by TEXT in UTF-8. */
+    private static long key(byte kind, String text) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ kind) * 0x100000001b3L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int bucketOf(long key) {
+        return (int) (key ^ (key >>> 32)) & (buckets - 1);
+    }
+
+    private static long postingOffset(long posting) {
+        return HEADER_SIZE + 4L * buckets + posting * POSTING_SIZE;
+    }
+
+    private static int readHead(int bucket) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(4);
+        readFully(head, HEADER_SIZE + 4L * bucket);
+        return head.getInt(0);
+    }
+
+    /** Opens the index file, rebuilding it if it is missing or in another
+     *  format. */
+    private static synchronized void open() {
+        if (channel != null || openExisting()) {
+            return;
+        }
+        FileLock lock = lock();
+        try {
+            if (!openExisting()) {
+                rebuild();
+            }
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /** Opens the index file and returns true, or returns false if it is
+     *  missing or in another format. */
+    private static boolean openExisting() {
+        try {
+            if (!INDEX_FILE.isFile()) {
+                return false;
+            }
+            channel = new RandomAccessFile(INDEX_FILE, "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() >= HEADER_SIZE) {
+                readFully(header, 0);
+            }
+            byte[] magic = new byte[MAGIC.length];
+            header.get(0, magic);
+            buckets = header.getInt(BUCKETS);
+            if (Arrays.equals(magic, MAGIC) && header.getInt(MAGIC.length) == VERSION
+                    && buckets >= MIN_BUCKETS && Integer.bitCount(buckets) == 1
+                    && channel.size() >= postingOffset(0)) {
+                postings = (channel.size() - postingOffset(0)) / POSTING_SIZE;
+                return true;
+            }
+            channel.close();
+            channel = null;
+            return false;
+        } catch (IOException e) {
+            throw error("Unable to open message index.");
+        }
+    }
+
+    /** Takes the lock that writers of the index share, waiting for a
+     *  command that holds it. The lock goes away with the process. */
+    private static FileLock lock() {
+        try {
+            FileChannel lockChannel = FileChannel.open(LOCK_FILE.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            return lockChannel.lock();
+        } catch (IOException e) {
+            throw error("Unable to lock message index.");
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            throw error("Unable to unlock message index.");
+        }
+    }
+
+    /** Writes a new index of every commit in the object store. */
+    private static void rebuild() {
+        Postings all = new Postings();
+        for (String sha1 : ObjectStore.list(ObjectStore.COMMIT)) {
+            Commit commit = Commit.load(sha1);
+            if (commit != null) {
+                all.add(keysOf(commit.getMessage()), fromHex(sha1));
+            }
+        }
+        write(all, Math.max(MIN_BUCKETS, Integer.highestOneBit(
+                Math.max(1, all.size / MAX_LOAD)) << 1));
+    }
+
+    /** Rewrites the index with NEWBUCKETS buckets. */
+    private static void rehash(int newBuckets) {
+        Postings all = new Postings();
+        ByteBuffer in = ByteBuffer.allocate(POSTING_SIZE * 1024);
+        byte[] id = new byte[Pack.ID_SIZE];
+        try {
+            for (long p = 0; p < postings; p += in.limit() / POSTING_SIZE) {
+                in.clear();
+                in.limit((int) Math.min(in.capacity(), (postings - p) * POSTING_SIZE));
+                readFully(in, postingOffset(p));
+                for (int at = 0; at < in.limit(); at += POSTING_SIZE) {
+                    in.get(at + ID, id);
+                    all.add(new long[]{in.getLong(at + KEY)}, id);
+                }
+            }
+        } catch (IOException e) {
+            throw error("Unable to read message index.");
+        }
+        write(all, newBuckets);
+    }
+
+    /** Replaces the index file with one of NEWBUCKETS buckets holding ALL,
+     *  and opens it. */
+    private static void write(Postings all, int newBuckets) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            buckets = newBuckets;
+            int[] heads = new int[buckets];
+            int[] next = new int[all.size];
+            for (int p = 0; p < all.size; p += 1) {
+                int bucket = bucketOf(all.keys[p]);
+                next[p] = heads[bucket];
+                heads[bucket] = p + 1;
+            }
+            File tmpFile = join(GITLET_DIR, "message-index.tmp");
+            try (FileChannel out = FileChannel.open(tmpFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                buffer.put(MAGIC).putInt(VERSION).putInt(buckets);
+                for (int head : heads) {
+                    drainIfFull(out, buffer, 4);
+                    buffer.putInt(head);
+                }
+                for (int p = 0; p < all.size; p += 1) {
+                    drainIfFull(out, buffer, POSTING_SIZE);
+                    buffer.putInt(next[p]).putLong(all.keys[p])
+                            .put(all.ids, p * Pack.ID_SIZE, Pack.ID_SIZE);
+                }
+                drainIfFull(out, buffer, buffer.capacity());
+                out.force(true);
+            }
+            Files.move(tmpFile.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = new RandomAccessFile(INDEX_FILE, "rw").getChannel();
+            postings = all.size;
+        } catch (IOException e) {
+            throw error("Unable to write message index.");
+        }
+    }
+
+    /** Writes out BUFFER unless it has room for NEEDED more bytes. */
+    private static void drainIfFull(FileChannel out, ByteBuffer buffer, int needed)
+            throws IOException {
+        if (buffer.remaining() >= needed && needed < buffer.capacity()) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of message index.");
+            }
+        }
+    }
+
+    private static void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /** Postings gathered in memory to write a new index. */
+    private static class Postings {
+        long[] keys = new long[1024];
+        byte[] ids = new byte[1024 * Pack.ID_SIZE];
+        int size;
+
+        void add(long[] newKeys, byte[] id) {
+            if (size + newKeys.length > keys.length) {
+                int capacity = Math.max(keys.length * 2, size + newKeys.length);
+                keys = Arrays.copyOf(keys, capacity);
+                ids = Arrays.copyOf(ids, capacity * Pack.ID_SIZE);
+            }
+            for (long key : newKeys) {
+                keys[size] = key;
+                System.arraycopy(id, 0, ids, size * Pack.ID_SIZE, Pack.ID_SIZE);
+                size += 1;
+            }
+        }
+    }
+}
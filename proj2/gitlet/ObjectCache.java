@@ -0,0 +1,95 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A least-recently-used cache of immutable objects keyed by id, bounded by
+ * the estimated memory its values take rather than by their number. It is
+ * safe to use from several threads.
+ *
+ * @author A_Words
+ */
+class ObjectCache<V> {
+    private final String name;
+    private final long capacity;
+    private final ToLongFunction<V> weigher;
+    /** Entries in access order, so the eldest is the least recently used. */
+    private final LinkedHashMap<String, Entry<V>> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /** A cache called NAME holding at most CAPACITY bytes, as estimated
+     *  for each value by WEIGHER. */
+    ObjectCache(String name, long capacity, ToLongFunction<V> weigher) {
+        this.name = name;
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /** Returns the value cached for ID, or null. */
+    synchronized V get(String id) {
+        Entry<V> entry = entries.get(id);
+        if (entry == null) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return entry.value;
+    }
+
+    /** Caches VALUE for ID, evicting the least recently used values until
+     *  the cache fits. Values larger than the whole cache are not kept. */
+    synchronized void put(String id, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > capacity) {
+            return;
+        }
+        Entry<V> old = entries.put(id, new Entry<>(value, valueWeight));
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += valueWeight;
+        Iterator<Map.Entry<String, Entry<V>>> eldest = entries.entrySet().iterator();
+        while (weight > capacity) {
+            weight -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictions += 1;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns a one-line summary of this cache's counters. */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s cache: %d hits, %d misses, %d evictions, %d/%d bytes",
+                name, hits, misses, evictions, weight, capacity);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
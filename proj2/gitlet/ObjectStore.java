@@ -0,0 +1,921 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static gitlet.Repository.*;
+import static gitlet.Utils.*;
+
+/**
+ * Stores commits, trees and blobs. New objects go into one pending pack per
+ * command; older objects may live in earlier packs or, for repositories
+ * created before packs existed, as loose files in the commit and blob
+ * directories.
+ * <p>
+ * Packed objects are deflated. A blob may instead be stored as a delta
+ * against the blob that had the same file name in the parent commit.
+ * Large blobs are streamed in from their files and streamed out to the
+ * working tree, so they never have to fit in memory.
+ * <p>
+ * In chunked mode a blob is instead stored as the list of its
+ * content-defined chunks (see {@link Chunker}), each chunk a separate
+ * object, so equal pieces of different files and versions are stored once.
+ * Such a list is a blob entry flagged as chunked; reading the blob joins
+ * its chunks and streaming it streams them one after another.
+ * <p>
+ * Objects may be read and written from several threads at once, so that
+ * blobs can be compressed in parallel; flushing and repacking may not run
+ * concurrently with anything else.
+ *
+ * @author A_Words
+ */
+class ObjectStore {
+    static final byte COMMIT = 1;
+    static final byte BLOB = 2;
+    static final byte TREE = 3;
+    /** A piece of a chunked blob, named by the hash of its bytes alone. */
+    static final byte CHUNK = 4;
+    /** Size of one entry of a chunk list: a chunk id and its length. */
+    private static final int CHUNK_ENTRY_SIZE = Pack.ID_SIZE + 4;
+    /** Number of packs above which a flush repacks everything into one. */
+    private static final int AUTO_PACK_LIMIT = 50;
+    /** Longest chain of deltas a reader may have to resolve. */
+    private static final int MAX_DELTA_DEPTH = 50;
+    /** Blobs larger than this are streamed into and out of packs instead
+     *  of being held in memory, and are never delta-encoded. */
+    static final long LARGE_BLOB_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Recently read blob contents, which also keeps the bases of delta
+     * chains at hand. Its size in bytes may be set with the
+     * gitlet.blobCacheSize system property.
+     */
+    static final ObjectCache<byte[]> BLOB_CACHE = new ObjectCache<>("blob",
+            Long.getLong("gitlet.blobCacheSize", 32L << 20), contents -> 16 + contents.length);
+
+    /** Inflaters reused across reads, which are many and small. */
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    private static List<Pack> packs;
+    private static volatile PackWriter pending;
+
+    /** Returns the contents of the object ID of TYPE, or null if there is
+     *  no such object. */
+    static byte[] read(byte type, String id) {
+        if (id == null) {
+            return null;
+        }
+        if (type == BLOB) {
+            byte[] contents = BLOB_CACHE.get(id);
+            if (contents != null) {
+                return contents;
+            }
+        }
+        byte[] contents = null;
+        Pack.Entry entry = findEntry(type, id);
+        if (entry != null) {
+            contents = materialize(entry);
+        } else {
+            File loose = looseFile(type, id);
+            if (loose != null && loose.isFile()) {
+                contents = readContents(loose);
+            }
+        }
+        if (contents != null && type == BLOB) {
+            BLOB_CACHE.put(id, contents);
+        }
+        return contents;
+    }
+
+    static boolean contains(byte type, String id) {
+        PackWriter pending = ObjectStore.pending;
+        if (pending != null && pending.contains(id)) {
+            return true;
+        }
+        for (Pack pack : getPacks()) {
+            int i = pack.indexOf(id);
+            if (i >= 0 && pack.typeAt(i) == type) {
+                return true;
+            }
+        }
+        File loose = looseFile(type, id);
+        return loose != null && loose.isFile();
+    }
+
+    /** Adds the object ID of TYPE with CONTENTS to the pending pack. */
+    static void write(byte type, String id, byte[] contents) {
+        write(type, id, contents, null);
+    }
+
+    /** Adds the object ID of TYPE with CONTENTS to the pending pack, as a
+     *  delta against the object BASEID if that saves enough space. BASEID
+     *  may be null. */
+    static void write(byte type, String id, byte[] contents, String baseId) {
+        if (contains(type, id)) {
+            return;
+        }
+        Pack.Entry entry = encode(type, contents, baseId);
+        pendingWriter().add(id, entry);
+    }
+
+    /** Adds the object ID of TYPE whose contents are those of FILE to the
+     *  pending pack, streaming the file rather than reading it into memory. */
+    static void writeFile(byte type, String id, File file) {
+        if (contains(type, id)) {
+            return;
+        }
+        pendingWriter().addFile(id, type, file);
+    }
+
+    /** Adds the blob ID whose contents are those of FILE to the pending
+     *  pack as a list of content-defined chunks, adding the chunks not yet
+     *  stored. The file is read through a fixed buffer. */
+    static void writeChunked(String id, File file) {
+        if (contains(BLOB, id)) {
+            return;
+        }
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        ByteBuffer listEntry = ByteBuffer.allocate(CHUNK_ENTRY_SIZE);
+        Chunker.split(file, (data, offset, length) -> {
+            byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
+            String chunkId = sha1((Object) chunk);
+            write(CHUNK, chunkId, chunk);
+            listEntry.clear();
+            listEntry.put(fromHex(chunkId)).putInt(length);
+            list.writeBytes(listEntry.array());
+        });
+        pendingWriter().add(id, store(BLOB | Pack.CHUNKED, null, list.toByteArray()));
+    }
+
+    /** Writes the contents of the object ID of TYPE to OUT and returns
+     *  true, or returns false if there is no such object. Packed objects
+     *  that are not deltas are streamed out of their pack, and raw ones
+     *  and loose ones go to OUT without passing through the heap, so even
+     *  the largest blob is written in constant memory. */
+    static boolean writeTo(byte type, String id, WritableByteChannel out) {
+        if (!contains(type, id)) {
+            return false;
+        }
+        byte[] contents = type == BLOB ? BLOB_CACHE.get(id) : null;
+        if (contents == null && !streamTo(type, id, out)) {
+            contents = read(type, id);
+        }
+        if (contents != null) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(contents);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            } catch (IOException e) {
+                throw error("Unable to write object %s.", id);
+            }
+        }
+        return true;
+    }
+
+    /** Streams the object ID of TYPE to OUT and returns true, or returns
+     *  false if it is a delta, which has to be materialized instead. */
+    private static boolean streamTo(byte type, String id, WritableByteChannel out) {
+        int header = headerOf(type, id);
+        if (header >= 0 && (header & Pack.CHUNKED) != 0) {
+            ByteBuffer list = ByteBuffer.wrap(chunkList(findEntry(type, id)));
+            byte[] chunkId = new byte[Pack.ID_SIZE];
+            while (list.hasRemaining()) {
+                list.get(chunkId).getInt();
+                if (!writeTo(CHUNK, toHex(chunkId), out)) {
+                    throw error("Missing chunk %s.", toHex(chunkId));
+                }
+            }
+            return true;
+        }
+        PackWriter pending = ObjectStore.pending;
+        if (pending != null && pending.contains(id)) {
+            return pending.writeContentsTo(type, id, out);
+        }
+        for (Pack pack : getPacks()) {
+            int i = pack.indexOf(id);
+            if (i >= 0 && pack.typeAt(i) == type) {
+                return pack.writeContentsTo(i, out);
+            }
+        }
+        File loose = looseFile(type, id);
+        if (loose == null || !loose.isFile()) {
+            return false;
+        }
+        try (FileChannel in = FileChannel.open(loose.toPath(), StandardOpenOption.READ)) {
+            Pack.Entry.transferFully(in, 0, in.size(), out);
+        } catch (IOException e) {
+            throw error("Unable to read object %s.", id);
+        }
+        return true;
+    }
+
+    /** Returns whether the object ID of TYPE was too large to keep in
+     *  memory or was chunked, so that it must not be used as a delta base. */
+    private static boolean isLarge(byte type, String id) {
+        int header = headerOf(type, id);
+        if (header >= 0) {
+            return (header & (Pack.STREAMED | Pack.CHUNKED)) != 0;
+        }
+        File loose = looseFile(type, id);
+        return loose != null && loose.length() > LARGE_BLOB_SIZE;
+    }
+
+    /** Returns whether the object ID of TYPE is small enough to be read
+     *  into memory whole, for the commands that have to. */
+    static boolean fitsInMemory(byte type, String id) {
+        int header = headerOf(type, id);
+        if (header >= 0 && (header & Pack.CHUNKED) != 0) {
+            byte[] list = chunkList(findEntry(type, id));
+            ByteBuffer in = ByteBuffer.wrap(list);
+            long size = 0;
+            for (int at = Pack.ID_SIZE; at < list.length; at += CHUNK_ENTRY_SIZE) {
+                size += in.getInt(at);
+            }
+            return size <= LARGE_BLOB_SIZE;
+        }
+        return !isLarge(type, id);
+    }
+
+    /** Returns the entry header of the packed object ID of TYPE, or -1 if
+     *  it is not packed. */
+    private static int headerOf(byte type, String id) {
+        PackWriter pending = ObjectStore.pending;
+        if (pending != null && pending.contains(id)) {
+            return pending.headerOf(id);
+        }
+        for (Pack pack : getPacks()) {
+            int i = pack.indexOf(id);
+            if (i >= 0 && pack.typeAt(i) == type) {
+                return pack.headerAt(i);
+            }
+        }
+        return -1;
+    }
+
+    private static synchronized PackWriter pendingWriter() {
+        if (pending == null) {
+            PACK_DIR.mkdir();
+            pending = new PackWriter(PACK_DIR);
+        }
+        return pending;
+    }
+
+    /** Finishes the pending pack so that its objects are visible to later
+     *  commands. Must be called before any ref points at the new objects. */
+    static void flush() {
+        if (pending == null) {
+            return;
+        }
+        Pack pack = pending.finish();
+        pending = null;
+        if (pack != null) {
+            getPacks().add(pack);
+        }
+        if (getPacks().size() > AUTO_PACK_LIMIT) {
+            repack();
+        }
+    }
+
+    /** Returns the ids of all objects of TYPE in sorted order. */
+    static TreeSet<String> list(byte type) {
+        TreeSet<String> ids = new TreeSet<>();
+        for (Pack pack : getPacks()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (pack.typeAt(i) == type) {
+                    ids.add(pack.idAt(i));
+                }
+            }
+        }
+        ids.addAll(looseIds(type));
+        return ids;
+    }
+
+    /** Returns up to LIMIT ids of objects of TYPE that start with the
+     *  lower-case hexadecimal PREFIX, so that a LIMIT of 2 tells a unique
+     *  abbreviation from an ambiguous one. Packed ids are found by binary
+     *  search in each pack index. */
+    static TreeSet<String> findByPrefix(byte type, String prefix, int limit) {
+        TreeSet<String> ids = new TreeSet<>();
+        if (prefix.length() > 2 * Pack.ID_SIZE || !prefix.matches("[0-9a-f]*")) {
+            return ids;
+        }
+        PackWriter pending = ObjectStore.pending;
+        if (pending != null) {
+            pending.findByPrefix(prefix, type, ids, limit);
+        }
+        byte[] low = fromHex(padRight(prefix, '0'));
+        byte[] high = fromHex(padRight(prefix, 'f'));
+        for (Pack pack : getPacks()) {
+            if (ids.size() >= limit) {
+                break;
+            }
+            pack.findRange(low, high, type, ids, limit);
+        }
+        for (String id : looseIds(type)) {
+            if (ids.size() >= limit) {
+                break;
+            }
+            if (id.startsWith(prefix)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static String padRight(String prefix, char c) {
+        StringBuilder padded = new StringBuilder(prefix);
+        while (padded.length() < 2 * Pack.ID_SIZE) {
+            padded.append(c);
+        }
+        return padded.toString();
+    }
+
+    /** Rewrites every loose and packed object into a single pack, then
+     *  removes the loose files and the old packs. Packed objects are
+     *  copied as stored; loose blobs are delta-encoded where possible. */
+    static void repack() {
+        flush();
+        List<Pack> oldPacks = new ArrayList<>(getPacks());
+        List<String> looseCommits = looseIds(COMMIT);
+        List<String> looseBlobs = looseIds(BLOB);
+        if (oldPacks.size() <= 1 && looseCommits.isEmpty() && looseBlobs.isEmpty()) {
+            return;
+        }
+
+        PACK_DIR.mkdir();
+        pending = new PackWriter(PACK_DIR);
+        for (Pack pack : oldPacks) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                pending.addEntry(pack.idAt(i), pack, i);
+            }
+        }
+        for (String id : looseCommits) {
+            pending.add(id, encode(COMMIT, readContents(looseFile(COMMIT, id)), null));
+        }
+        for (Map.Entry<String, String> blob : looseBlobBases(looseBlobs).entrySet()) {
+            String id = blob.getKey();
+            pending.add(id, encode(BLOB, readContents(looseFile(BLOB, id)), blob.getValue()));
+        }
+        Pack newPack = pending.finish();
+        pending = null;
+
+        try {
+            for (Pack pack : oldPacks) {
+                pack.close();
+                if (newPack != null && pack.getIndexFile().equals(newPack.getIndexFile())) {
+                    continue;
+                }
+                Files.delete(pack.getIndexFile().toPath());
+                Files.delete(pack.getPackFile().toPath());
+            }
+            for (String id : looseCommits) {
+                Files.delete(looseFile(COMMIT, id).toPath());
+            }
+            for (String id : looseBlobs) {
+                Files.delete(looseFile(BLOB, id).toPath());
+            }
+        } catch (IOException e) {
+            throw error("Unable to remove packed objects.");
+        }
+        packs = new ArrayList<>();
+        if (newPack != null) {
+            packs.add(newPack);
+        }
+    }
+
+    /**
+     * The objects found reachable by garbage collection: a bitmap over the
+     * entries of each pack, in index order, and the ids of loose objects.
+     * Marking an object also marks what reading it needs, the base of a
+     * delta and the chunks of a chunked blob, wherever they are stored.
+     */
+    static class Marks {
+        private final Map<Pack, BitSet> packed = new HashMap<>();
+        private final Set<String> loose = new HashSet<>();
+
+        /** Marks the object ID of TYPE and returns true, or returns false
+         *  if it was marked before or is not stored. */
+        boolean mark(byte type, String id) {
+            for (Pack pack : getPacks()) {
+                int i = pack.indexOf(id);
+                if (i >= 0 && pack.typeAt(i) == type) {
+                    return markEntry(pack, i);
+                }
+            }
+            File file = looseFile(type, id);
+            return file != null && file.isFile() && loose.add(type + id);
+        }
+
+        /** Marks the I-th entry of PACK and returns whether it was not
+         *  marked before. */
+        boolean markEntry(Pack pack, int i) {
+            BitSet marked = packed.computeIfAbsent(pack, p -> new BitSet(p.size()));
+            if (marked.get(i)) {
+                return false;
+            }
+            marked.set(i);
+            String base = pack.baseAt(i);
+            if (base != null) {
+                mark(pack.typeAt(i), base);
+            }
+            if ((pack.headerAt(i) & Pack.CHUNKED) != 0) {
+                ByteBuffer list = ByteBuffer.wrap(chunkList(pack.readEntry(i)));
+                byte[] chunkId = new byte[Pack.ID_SIZE];
+                while (list.hasRemaining()) {
+                    list.get(chunkId).getInt();
+                    mark(CHUNK, toHex(chunkId));
+                }
+            }
+            return true;
+        }
+
+        /** Returns whether the I-th entry of PACK is marked. */
+        private boolean isMarked(Pack pack, int i) {
+            BitSet marked = packed.get(pack);
+            return marked != null && marked.get(i);
+        }
+
+        /** Returns whether the packed object ID of TYPE is marked. */
+        private boolean isMarked(byte type, String id) {
+            for (Pack pack : getPacks()) {
+                int i = pack.indexOf(id);
+                if (i >= 0 && pack.typeAt(i) == type) {
+                    return isMarked(pack, i);
+                }
+            }
+            return false;
+        }
+
+        private boolean isMarkedLoose(byte type, String id) {
+            return loose.contains(type + id);
+        }
+    }
+
+    /** Receives objects by type and id. */
+    interface Visitor {
+        void visit(byte type, String id);
+    }
+
+    /** Calls VISITOR for every object in a pack or loose file modified
+     *  after CUTOFF, in epoch milliseconds. */
+    static void forEachRecent(long cutoff, Visitor visitor) {
+        for (Pack pack : new ArrayList<>(getPacks())) {
+            if (pack.getPackFile().lastModified() > cutoff) {
+                for (int i = 0; i < pack.size(); i += 1) {
+                    visitor.visit(pack.typeAt(i), pack.idAt(i));
+                }
+            }
+        }
+        for (byte type : new byte[]{COMMIT, BLOB}) {
+            for (String id : looseIds(type)) {
+                if (looseFile(type, id).lastModified() > cutoff) {
+                    visitor.visit(type, id);
+                }
+            }
+        }
+    }
+
+    /** What garbage collection removed: the number of objects and the
+     *  bytes on disk they and the files they were rewritten from took,
+     *  less what the rewritten pack takes. */
+    static class Pruned {
+        int objects;
+        long bytes;
+    }
+
+    /**
+     * Removes the objects MARKS did not mark, unless they may still be in
+     * use by a command that is writing them: packs, loose objects and
+     * leftover temporary files modified after CUTOFF, in epoch
+     * milliseconds, are kept as they are, along with the bases and chunks
+     * their objects need. The caller marks what recent objects refer to;
+     * see {@link #forEachRecent}. The marked objects of the older packs and the
+     * marked loose objects are written into one new pack, and the older
+     * packs, the packed loose files and the unmarked ones are deleted.
+     * Takes time in proportion to the objects in the older packs.
+     */
+    static Pruned prune(Marks marks, long cutoff) {
+        flush();
+        Pruned pruned = new Pruned();
+        List<Pack> oldPacks = new ArrayList<>();
+        List<Pack> recentPacks = new ArrayList<>();
+        for (Pack pack : getPacks()) {
+            (pack.getPackFile().lastModified() > cutoff ? recentPacks : oldPacks).add(pack);
+        }
+        for (Pack pack : recentPacks) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                marks.markEntry(pack, i);
+            }
+        }
+
+        List<File> removed = new ArrayList<>();
+        List<String> looseCommits = new ArrayList<>();
+        List<String> looseBlobs = new ArrayList<>();
+        for (byte type : new byte[]{COMMIT, BLOB}) {
+            for (String id : looseIds(type)) {
+                File file = looseFile(type, id);
+                if (marks.isMarkedLoose(type, id)) {
+                    (type == COMMIT ? looseCommits : looseBlobs).add(id);
+                } else if (file.lastModified() > cutoff) {
+                    continue;
+                } else {
+                    pruned.objects += 1;
+                }
+                removed.add(file);
+            }
+        }
+        File[] tmpFiles = PACK_DIR.listFiles((dir, name) -> name.startsWith("tmp-"));
+        if (tmpFiles != null) {
+            for (File file : tmpFiles) {
+                if (file.lastModified() <= cutoff) {
+                    removed.add(file);
+                }
+            }
+        }
+        int kept = 0;
+        for (Pack pack : oldPacks) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                kept += marks.isMarked(pack, i) ? 1 : 0;
+            }
+            pruned.objects += pack.size();
+            removed.add(pack.getIndexFile());
+            removed.add(pack.getPackFile());
+        }
+        pruned.objects -= kept;
+        if (pruned.objects == 0 && oldPacks.size() <= 1 && removed.size() == 2 * oldPacks.size()) {
+            return pruned;
+        }
+
+        PackWriter writer = new PackWriter(PACK_DIR);
+        for (Pack pack : oldPacks) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (marks.isMarked(pack, i)) {
+                    writer.addEntry(pack.idAt(i), pack, i);
+                }
+            }
+        }
+        for (String id : looseCommits) {
+            writer.add(id, encode(COMMIT, readContents(looseFile(COMMIT, id)), null));
+        }
+        Set<String> packedLooseBlobs = new HashSet<>(looseBlobs);
+        for (Map.Entry<String, String> blob : looseBlobBases(looseBlobs).entrySet()) {
+            String id = blob.getKey();
+            String base = blob.getValue();
+            if (base != null && !packedLooseBlobs.contains(base) && !marks.isMarked(BLOB, base)) {
+                base = null;
+            }
+            writer.add(id, encode(BLOB, readContents(looseFile(BLOB, id)), base));
+        }
+        Pack newPack = writer.finish();
+
+        for (File file : removed) {
+            pruned.bytes += file.length();
+        }
+        try {
+            for (Pack pack : oldPacks) {
+                pack.close();
+            }
+            for (File file : removed) {
+                if (newPack == null || !file.equals(newPack.getIndexFile())
+                        && !file.equals(newPack.getPackFile())) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        } catch (IOException e) {
+            throw error("Unable to remove unreachable objects.");
+        }
+        packs = new ArrayList<>(recentPacks);
+        if (newPack != null) {
+            packs.add(newPack);
+            pruned.bytes -= newPack.getIndexFile().length() + newPack.getPackFile().length();
+        }
+        BLOB_CACHE.clear();
+        Commit.CACHE.clear();
+        Tree.CACHE.clear();
+        return pruned;
+    }
+
+    /** Orders the loose blobs LOOSEBLOBS by the first commit that uses
+     *  them and maps each to a delta base: the blob with the same file name
+     *  in that commit's parent, provided the base is already packed or
+     *  comes earlier in the order. Blobs without a base map to null. */
+    private static LinkedHashMap<String, String> looseBlobBases(List<String> looseBlobs) {
+        LinkedHashMap<String, String> bases = new LinkedHashMap<>();
+        if (looseBlobs.isEmpty()) {
+            return bases;
+        }
+        Set<String> loose = new HashSet<>(looseBlobs);
+        List<Commit> commits = new ArrayList<>();
+        for (String commitSha1 : list(COMMIT)) {
+            commits.add(Commit.load(commitSha1));
+        }
+        commits.sort(Comparator.comparing(Commit::getTimestamp));
+
+        for (Commit commit : commits) {
+            Commit parent = commit.parent();
+            for (String fileName : commit.getTrackedFiles()) {
+                String blobSha1 = commit.findFileSha1(fileName);
+                if (!loose.contains(blobSha1) || bases.containsKey(blobSha1)) {
+                    continue;
+                }
+                String baseSha1 = parent == null ? null : parent.findFileSha1(fileName);
+                if (baseSha1 != null && loose.contains(baseSha1) && !bases.containsKey(baseSha1)) {
+                    baseSha1 = null;
+                }
+                bases.put(blobSha1, baseSha1);
+            }
+        }
+        for (String blobSha1 : looseBlobs) {
+            bases.putIfAbsent(blobSha1, null);
+        }
+        return bases;
+    }
+
+    /** Returns the stored entry for CONTENTS, delta-encoded against BASEID
+     *  when the base exists, its chain is short enough and the delta is
+     *  less than half the size of CONTENTS. */
+    private static Pack.Entry encode(byte type, byte[] contents, String baseId) {
+        if (baseId != null && contents.length <= LARGE_BLOB_SIZE && !isLarge(type, baseId)
+                && deltaDepth(type, baseId) < MAX_DELTA_DEPTH) {
+            byte[] base = read(type, baseId);
+            if (base != null && base.length <= LARGE_BLOB_SIZE) {
+                byte[] delta = Delta.create(base, contents);
+                if (delta.length < contents.length / 2) {
+                    return store(type | Pack.DELTA, baseId, delta);
+                }
+            }
+        }
+        return store(type, null, contents);
+    }
+
+    /** Returns an entry holding DATA, deflated unless that does not help. */
+    private static Pack.Entry store(int header, String baseId, byte[] data) {
+        byte[] deflated = deflate(data);
+        if (deflated.length < data.length) {
+            return new Pack.Entry(header | Pack.DEFLATED, baseId, deflated);
+        }
+        return new Pack.Entry(header, baseId, data);
+    }
+
+    private static byte[] materialize(Pack.Entry entry) {
+        if (entry.isChunked()) {
+            return joinChunks(chunkList(entry));
+        }
+        byte[] data = entry.isDeflated() ? inflate(entry.data) : entry.data;
+        if (!entry.isDelta()) {
+            return data;
+        }
+        byte[] base = read(entry.type(), entry.base);
+        if (base == null) {
+            throw error("Missing delta base %s.", entry.base);
+        }
+        return Delta.apply(base, data);
+    }
+
+    /** Returns the chunk list stored in the chunked blob ENTRY. */
+    private static byte[] chunkList(Pack.Entry entry) {
+        return entry.isDeflated() ? inflate(entry.data) : entry.data;
+    }
+
+    /** Returns the concatenated contents of the chunks in LIST. */
+    private static byte[] joinChunks(byte[] list) {
+        ByteBuffer in = ByteBuffer.wrap(list);
+        long size = 0;
+        for (int at = Pack.ID_SIZE; at < list.length; at += CHUNK_ENTRY_SIZE) {
+            size += in.getInt(at);
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            throw error("Blob is too large to read into memory.");
+        }
+        byte[] contents = new byte[(int) size];
+        byte[] chunkId = new byte[Pack.ID_SIZE];
+        int position = 0;
+        while (in.hasRemaining()) {
+            in.get(chunkId).getInt();
+            byte[] chunk = read(CHUNK, toHex(chunkId));
+            if (chunk == null) {
+                throw error("Missing chunk %s.", toHex(chunkId));
+            }
+            System.arraycopy(chunk, 0, contents, position, chunk.length);
+            position += chunk.length;
+        }
+        return contents;
+    }
+
+    /** Returns totals over every chunked blob in the repository. */
+    static Chunker.Stats chunkStats() {
+        flush();
+        Chunker.Stats stats = new Chunker.Stats();
+        Set<String> chunks = new HashSet<>();
+        byte[] chunkId = new byte[Pack.ID_SIZE];
+        for (Pack pack : getPacks()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (pack.typeAt(i) != BLOB || (pack.headerAt(i) & Pack.CHUNKED) == 0) {
+                    continue;
+                }
+                stats.blobs += 1;
+                ByteBuffer list = ByteBuffer.wrap(chunkList(pack.readEntry(i)));
+                while (list.hasRemaining()) {
+                    list.get(chunkId);
+                    int length = list.getInt();
+                    stats.size += length;
+                    if (chunks.add(toHex(chunkId))) {
+                        stats.chunks += 1;
+                        stats.chunkSize += length;
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    /** Returns the number of deltas that must be applied to read ID. */
+    private static int deltaDepth(byte type, String id) {
+        int depth = 0;
+        String base = findBase(type, id);
+        while (base != null) {
+            depth += 1;
+            base = findBase(type, base);
+        }
+        return depth;
+    }
+
+    private static Pack.Entry findEntry(byte type, String id) {
+        PackWriter pending = ObjectStore.pending;
+        if (pending != null) {
+            Pack.Entry entry = pending.read(type, id);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        for (Pack pack : getPacks()) {
+            int i = pack.indexOf(id);
+            if (i >= 0 && pack.typeAt(i) == type) {
+                return pack.readEntry(i);
+            }
+        }
+        return null;
+    }
+
+    private static String findBase(byte type, String id) {
+        PackWriter pending = ObjectStore.pending;
+        if (pending != null && pending.contains(id)) {
+            return pending.baseOf(id);
+        }
+        for (Pack pack : getPacks()) {
+            int i = pack.indexOf(id);
+            if (i >= 0 && pack.typeAt(i) == type) {
+                return pack.baseAt(i);
+            }
+        }
+        return null;
+    }
+
+    /** Returns DATA deflated with this thread's deflater. Deflaters hold
+     *  native memory until they are ended, so they are reused rather than
+     *  made per object. */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[Math.max(256, data.length / 2)];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    /** Returns DATA inflated with this thread's inflater, into an array
+     *  sized from the compressed length rather than grown in small steps. */
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] out = new byte[Math.max(256, data.length * 4)];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int n = inflater.inflate(out, size, out.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw error("Unable to decompress object.");
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw error("Unable to decompress object.");
+        }
+        return size == out.length ? out : Arrays.copyOf(out, size);
+    }
+
+    /**
+     * Brings this process's view of the object store up to date, for a
+     * daemon starting its next command. An unfinished pending pack is
+     * abandoned, packs other commands added are picked up, and packs that
+     * are still there stay open. If a pack went away, as repacking does
+     * to its old packs, the caches of objects are emptied as well, since
+     * they may hold objects that are gone.
+     */
+    static synchronized void refresh() {
+        if (pending != null) {
+            pending.abandon();
+            pending = null;
+        }
+        if (packs == null) {
+            return;
+        }
+        boolean removed = false;
+        Map<File, Pack> open = new LinkedHashMap<>();
+        for (Pack pack : packs) {
+            if (pack.getIndexFile().isFile()) {
+                open.put(pack.getIndexFile(), pack);
+            } else {
+                pack.close();
+                removed = true;
+            }
+        }
+        File[] indexFiles = PACK_DIR.listFiles(
+                (dir, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+        packs = new ArrayList<>();
+        if (indexFiles != null) {
+            for (File indexFile : indexFiles) {
+                Pack pack = open.get(indexFile);
+                packs.add(pack != null ? pack : Pack.open(indexFile));
+            }
+        }
+        if (removed) {
+            BLOB_CACHE.clear();
+            Commit.CACHE.clear();
+            Tree.CACHE.clear();
+        }
+    }
+
+    private static synchronized List<Pack> getPacks() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            File[] indexFiles = PACK_DIR.listFiles(
+                    (dir, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+            if (indexFiles != null) {
+                for (File indexFile : indexFiles) {
+                    packs.add(Pack.open(indexFile));
+                }
+            }
+        }
+        return packs;
+    }
+
+    private static List<String> looseIds(byte type) {
+        File dir = looseDir(type);
+        List<String> ids = dir == null ? null : plainFilenamesIn(dir);
+        return ids == null ? new ArrayList<>() : ids;
+    }
+
+    /** Returns the directory of loose objects of TYPE, or null for trees,
+     *  which are always packed. */
+    private static File looseDir(byte type) {
+        switch (type) {
+            case COMMIT:
+                return COMMIT_DIR;
+            case BLOB:
+                return BLOB_DIR;
+            default:
+                return null;
+        }
+    }
+
+    private static File looseFile(byte type, String id) {
+        File dir = looseDir(type);
+        return dir == null ? null : join(dir, Objects.requireNonNull(id));
+    }
+}
@@ -0,0 +1,430 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents a read-only pack: an append-only data file holding many
+ * objects plus a sorted index that maps object ids to offsets.
+ * <p>
+ * Data file: "GPAK", version, then per object a header byte, the 8-byte
+ * length of its stored data, the 20-byte id of its delta base if it is a
+ * delta, and the stored data. The low bits of the header byte hold the
+ * object type and the high bits say whether the data is deflated, whether
+ * it is a delta against another object, whether it was streamed in
+ * because it is too large to hold in memory and whether it is the chunk
+ * list of a chunked blob rather than the blob's contents.
+ * <p>
+ * Index file: "GIDX", version, a 256-entry fanout table (entry b counts the
+ * ids whose first byte is at most b), the sorted 20-byte ids, one type byte
+ * per id and one 8-byte data file offset per id.
+ *
+ * @author A_Words
+ */
+class Pack {
+    static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    static final byte[] INDEX_MAGIC = {'G', 'I', 'D', 'X'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int FANOUT_SIZE = 256;
+    static final int ID_SIZE = 20;
+    static final int ENTRY_HEADER_SIZE = 9;
+    static final int TYPE_MASK = 0x0f;
+    static final int DEFLATED = 0x10;
+    static final int DELTA = 0x20;
+    static final int STREAMED = 0x40;
+    static final int CHUNKED = 0x80;
+    /** Size of the buffer used to stream objects out of a pack. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    /** Size of the mapped windows that deflated data is read through. */
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final File packFile;
+    private final File indexFile;
+    private final MappedByteBuffer index;
+    private final int count;
+    private final int idsStart;
+    private final int typesStart;
+    private final int offsetsStart;
+    private RandomAccessFile data;
+
+    private Pack(File indexFile, File packFile, MappedByteBuffer index) {
+        this.indexFile = indexFile;
+        this.packFile = packFile;
+        this.index = index;
+        int fanoutStart = HEADER_SIZE;
+        count = index.getInt(fanoutStart + (FANOUT_SIZE - 1) * 4);
+        idsStart = fanoutStart + FANOUT_SIZE * 4;
+        typesStart = idsStart + count * ID_SIZE;
+        offsetsStart = typesStart + count;
+    }
+
+    /** Opens the pack whose index file is INDEXFILE. */
+    static Pack open(File indexFile) {
+        File packFile = packFileFor(indexFile);
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            MappedByteBuffer index = file.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            index.get(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC) || index.getInt() != VERSION) {
+                throw error("Corrupt pack index %s.", indexFile.getName());
+            }
+            return new Pack(indexFile, packFile, index);
+        } catch (IOException e) {
+            throw error("Unable to open pack index %s.", indexFile.getName());
+        }
+    }
+
+    /** Returns the data file that belongs to the index file INDEXFILE. */
+    static File packFileFor(File indexFile) {
+        String name = indexFile.getName();
+        return join(indexFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    /** Returns the number of objects in this pack. */
+    int size() {
+        return count;
+    }
+
+    String idAt(int i) {
+        byte[] id = new byte[ID_SIZE];
+        index.get(idsStart + i * ID_SIZE, id);
+        return toHex(id);
+    }
+
+    byte typeAt(int i) {
+        return index.get(typesStart + i);
+    }
+
+    long offsetAt(int i) {
+        return index.getLong(offsetsStart + i * 8);
+    }
+
+    /** Returns the position of ID in this pack, or -1 if it is absent. */
+    int indexOf(String id) {
+        byte[] key = fromHex(id);
+        if (key == null || key.length != ID_SIZE) {
+            return -1;
+        }
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout(first - 1);
+        int hi = fanout(first) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareIdAt(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Adds to IDS the ids of objects of TYPE in this pack that lie
+     *  between the 20-byte keys LOW and HIGH inclusive, in order, until IDS
+     *  holds LIMIT ids. The fanout table narrows the search to the ids
+     *  starting with the first bytes of LOW to HIGH, and a binary search
+     *  finds the first id in range, so this takes O(log n) steps plus one
+     *  per id in range that is of another type. */
+    void findRange(byte[] low, byte[] high, byte type, Collection<String> ids, int limit) {
+        int lo = (low[0] & 0xff) == 0 ? 0 : fanout((low[0] & 0xff) - 1);
+        int hi = fanout(high[0] & 0xff);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareIdAt(mid, low) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < count && ids.size() < limit && compareIdAt(i, high) <= 0; i += 1) {
+            if (typeAt(i) == type) {
+                ids.add(idAt(i));
+            }
+        }
+    }
+
+    private int fanout(int b) {
+        return index.getInt(HEADER_SIZE + b * 4);
+    }
+
+    private int compareIdAt(int i, byte[] key) {
+        int base = idsStart + i * ID_SIZE;
+        for (int k = 0; k < ID_SIZE; k += 1) {
+            int cmp = Integer.compare(index.get(base + k) & 0xff, key[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the stored entry of the I-th object of this pack. */
+    synchronized Entry readEntry(int i) {
+        try {
+            return Entry.read(data(), offsetAt(i));
+        } catch (IOException e) {
+            throw error("Unable to read pack %s.", packFile.getName());
+        }
+    }
+
+    /** Returns the id of the delta base of the I-th object, or null if it
+     *  is not a delta. */
+    synchronized String baseAt(int i) {
+        try {
+            return Entry.readBase(data(), offsetAt(i));
+        } catch (IOException e) {
+            throw error("Unable to read pack %s.", packFile.getName());
+        }
+    }
+
+    /** Returns the header byte of the I-th object's entry. */
+    synchronized int headerAt(int i) {
+        try {
+            RandomAccessFile in = data();
+            in.seek(offsetAt(i));
+            return in.readByte() & 0xff;
+        } catch (IOException e) {
+            throw error("Unable to read pack %s.", packFile.getName());
+        }
+    }
+
+    /** Writes the contents of the I-th object to OUT without holding them
+     *  in memory and returns true, or returns false, writing nothing, if
+     *  the object is a delta and has to be materialized instead. */
+    synchronized boolean writeContentsTo(int i, WritableByteChannel out) {
+        try {
+            return Entry.transferContents(data().getChannel(), offsetAt(i), out);
+        } catch (IOException e) {
+            throw error("Unable to read pack %s.", packFile.getName());
+        }
+    }
+
+    /** Writes the entry of the I-th object, as stored, to OUT. */
+    synchronized void copyEntryTo(int i, WritableByteChannel out) {
+        try {
+            Entry.transferEntry(data().getChannel(), offsetAt(i), out);
+        } catch (IOException e) {
+            throw error("Unable to read pack %s.", packFile.getName());
+        }
+    }
+
+    private RandomAccessFile data() throws IOException {
+        if (data == null) {
+            data = new RandomAccessFile(packFile, "r");
+        }
+        return data;
+    }
+
+    synchronized void close() {
+        if (data == null) {
+            return;
+        }
+        try {
+            data.close();
+        } catch (IOException e) {
+            throw error("Unable to close pack %s.", packFile.getName());
+        }
+        data = null;
+    }
+
+    /** Writes the index for the sorted IDS with their TYPES and OFFSETS
+     *  into INDEXFILE. */
+    static void writeIndex(File indexFile, String[] ids, byte[] types, long[] offsets) {
+        int count = ids.length;
+        ByteBuffer buf = ByteBuffer.allocate(
+                HEADER_SIZE + FANOUT_SIZE * 4 + count * (ID_SIZE + 1 + 8));
+        buf.put(INDEX_MAGIC).putInt(VERSION);
+        int[] fanout = new int[FANOUT_SIZE];
+        for (String id : ids) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int b = 0; b < FANOUT_SIZE; b += 1) {
+            total += fanout[b];
+            buf.putInt(total);
+        }
+        for (String id : ids) {
+            buf.put(fromHex(id));
+        }
+        buf.put(types);
+        for (long offset : offsets) {
+            buf.putLong(offset);
+        }
+        writeContents(indexFile, buf.array());
+    }
+
+    /** An object as it is stored in a pack. */
+    static class Entry {
+        final int header;
+        final String base;
+        final byte[] data;
+
+        Entry(int header, String base, byte[] data) {
+            this.header = header;
+            this.base = base;
+            this.data = data;
+        }
+
+        byte type() {
+            return (byte) (header & TYPE_MASK);
+        }
+
+        boolean isDeflated() {
+            return (header & DEFLATED) != 0;
+        }
+
+        boolean isDelta() {
+            return (header & DELTA) != 0;
+        }
+
+        boolean isChunked() {
+            return (header & CHUNKED) != 0;
+        }
+
+        /** Writes this entry at the current position of OUT. */
+        void write(RandomAccessFile out) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(
+                    ENTRY_HEADER_SIZE + (isDelta() ? ID_SIZE : 0));
+            buf.put((byte) header).putLong(data.length);
+            if (isDelta()) {
+                buf.put(fromHex(base));
+            }
+            out.write(buf.array());
+            out.write(data);
+        }
+
+        /** Reads the entry at OFFSET of IN. */
+        static Entry read(RandomAccessFile in, long offset) throws IOException {
+            in.seek(offset);
+            byte[] head = new byte[ENTRY_HEADER_SIZE];
+            in.readFully(head);
+            int header = head[0] & 0xff;
+            byte[] data = new byte[(int) ByteBuffer.wrap(head).getLong(1)];
+            String base = null;
+            if ((header & DELTA) != 0) {
+                byte[] id = new byte[ID_SIZE];
+                in.readFully(id);
+                base = toHex(id);
+            }
+            in.readFully(data);
+            return new Entry(header, base, data);
+        }
+
+        /** Writes the contents of the entry at OFFSET of IN to OUT and
+         *  returns true, or returns false if the entry is a delta or a
+         *  chunk list. Raw data goes from IN to OUT without passing through
+         *  the heap; deflated data is inflated from mapped windows of IN
+         *  through a small buffer. */
+        static boolean transferContents(FileChannel in, long offset, WritableByteChannel out)
+                throws IOException {
+            ByteBuffer head = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+            readFully(in, head, offset);
+            int header = head.get(0) & 0xff;
+            long length = head.getLong(1);
+            long start = offset + ENTRY_HEADER_SIZE;
+            if ((header & (DELTA | CHUNKED)) != 0) {
+                return false;
+            }
+            if ((header & DEFLATED) == 0) {
+                transferFully(in, start, length, out);
+                return true;
+            }
+            Inflater inflater = new Inflater();
+            ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            try {
+                for (long pos = start; pos < start + length && !inflater.finished();
+                        pos += MAP_WINDOW_SIZE) {
+                    long window = Math.min(MAP_WINDOW_SIZE, start + length - pos);
+                    inflater.setInput(in.map(FileChannel.MapMode.READ_ONLY, pos, window));
+                    while (!inflater.finished() && !inflater.needsInput()) {
+                        buffer.clear();
+                        inflater.inflate(buffer);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                    }
+                }
+                if (!inflater.finished()) {
+                    throw new IOException("Truncated object.");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+            return true;
+        }
+
+        /** Writes the whole entry at OFFSET of IN, as stored, to OUT. */
+        static void transferEntry(FileChannel in, long offset, WritableByteChannel out)
+                throws IOException {
+            ByteBuffer head = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+            readFully(in, head, offset);
+            int header = head.get(0) & 0xff;
+            long size = ENTRY_HEADER_SIZE + ((header & DELTA) != 0 ? ID_SIZE : 0)
+                    + head.getLong(1);
+            transferFully(in, offset, size, out);
+        }
+
+        private static void readFully(FileChannel in, ByteBuffer buffer, long offset)
+                throws IOException {
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Truncated pack.");
+                }
+            }
+        }
+
+        /** Copies LENGTH bytes from POSITION of IN to OUT. */
+        static void transferFully(FileChannel in, long position, long length,
+                                  WritableByteChannel out) throws IOException {
+            while (length > 0) {
+                long n = in.transferTo(position, length, out);
+                if (n <= 0) {
+                    throw new IOException("Truncated pack.");
+                }
+                position += n;
+                length -= n;
+            }
+        }
+
+        /** Reads only the delta base id of the entry at OFFSET of IN. */
+        static String readBase(RandomAccessFile in, long offset) throws IOException {
+            in.seek(offset);
+            int header = in.readByte() & 0xff;
+            if ((header & DELTA) == 0) {
+                return null;
+            }
+            in.readLong();
+            byte[] id = new byte[ID_SIZE];
+            in.readFully(id);
+            return toHex(id);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+import static gitlet.Utils.*;
+
+/**
+ * Builds a new pack by appending objects to a temporary data file. The
+ * index is only written, and both files only renamed into place, by
+ * {@link #finish()}, so readers never see a half-written pack. Both files
+ * are synced to disk before they are renamed, so a ref written after
+ * {@code finish} returns never points at objects a crash could lose.
+ * Objects may be added from several threads.
+ *
+ * @author A_Words
+ */
+class PackWriter {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final File tmpFile;
+    private final RandomAccessFile out;
+    /** Maps each object id written so far to its type and offset. */
+    private final TreeMap<String, long[]> entries = new TreeMap<>();
+
+    PackWriter(File dir) {
+        this.dir = dir;
+        try {
+            tmpFile = File.createTempFile("tmp-", ".pack", dir);
+            out = new RandomAccessFile(tmpFile, "rw");
+            out.write(Pack.PACK_MAGIC);
+            out.writeInt(Pack.VERSION);
+        } catch (IOException e) {
+            throw error("Unable to create pack file.");
+        }
+    }
+
+    synchronized boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    /** Adds to IDS the ids of pending objects of TYPE that start with
+     *  PREFIX, until IDS holds LIMIT ids. */
+    synchronized void findByPrefix(String prefix, byte type, Collection<String> ids, int limit) {
+        for (Map.Entry<String, long[]> entry : entries.tailMap(prefix).entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || ids.size() >= limit) {
+                break;
+            }
+            if (entry.getValue()[0] == type) {
+                ids.add(entry.getKey());
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** Appends ENTRY as the object ID, unless ID is already present. */
+    synchronized void add(String id, Pack.Entry entry) {
+        if (entries.containsKey(id)) {
+            return;
+        }
+        try {
+            long offset = out.length();
+            out.seek(offset);
+            entry.write(out);
+            entries.put(id, new long[]{entry.type(), offset});
+        } catch (IOException e) {
+            throw error("Unable to write pack file.");
+        }
+    }
+
+    /** Appends the contents of FILE as the object ID of TYPE, deflated
+     *  unless that does not help. The file is streamed through small
+     *  buffers, so it need not fit in memory. */
+    synchronized void addFile(String id, byte type, File file) {
+        if (entries.containsKey(id)) {
+            return;
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            FileChannel channel = out.getChannel();
+            long offset = channel.size();
+            long start = offset + Pack.ENTRY_HEADER_SIZE;
+            long size = in.size();
+            channel.position(start);
+            long stored = deflate(in, channel);
+            int header = type | Pack.STREAMED | Pack.DEFLATED;
+            if (stored >= size) {
+                channel.truncate(start);
+                Pack.Entry.transferFully(in, 0, size, channel);
+                stored = size;
+                header = type | Pack.STREAMED;
+            }
+            ByteBuffer head = ByteBuffer.allocate(Pack.ENTRY_HEADER_SIZE);
+            head.put((byte) header).putLong(stored).flip();
+            channel.write(head, offset);
+            entries.put(id, new long[]{type, offset});
+        } catch (IOException e) {
+            throw error("Unable to write pack file.");
+        }
+    }
+
+    /** Appends the I-th entry of PACK, as stored, as the object ID. */
+    synchronized void addEntry(String id, Pack pack, int i) {
+        if (entries.containsKey(id)) {
+            return;
+        }
+        try {
+            FileChannel channel = out.getChannel();
+            long offset = channel.size();
+            channel.position(offset);
+            pack.copyEntryTo(i, channel);
+            entries.put(id, new long[]{pack.typeAt(i), offset});
+        } catch (IOException e) {
+            throw error("Unable to write pack file.");
+        }
+    }
+
+    /** Deflates all of IN into OUT and returns the number of bytes written. */
+    private static long deflate(FileChannel in, FileChannel out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteBuffer input = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        ByteBuffer output = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        long written = 0;
+        try {
+            while (in.read(input) >= 0) {
+                input.flip();
+                deflater.setInput(input);
+                while (!deflater.needsInput()) {
+                    written += drain(deflater, output, out);
+                }
+                input.clear();
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                written += drain(deflater, output, out);
+            }
+        } finally {
+            deflater.end();
+        }
+        return written;
+    }
+
+    private static int drain(Deflater deflater, ByteBuffer output, FileChannel out)
+            throws IOException {
+        output.clear();
+        deflater.deflate(output);
+        output.flip();
+        int n = output.remaining();
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+        return n;
+    }
+
+    /** Returns the header byte of the pending object ID, or -1 if absent. */
+    synchronized int headerOf(String id) {
+        long[] entry = entries.get(id);
+        if (entry == null) {
+            return -1;
+        }
+        try {
+            out.seek(entry[1]);
+            return out.readByte() & 0xff;
+        } catch (IOException e) {
+            throw error("Unable to read pack file.");
+        }
+    }
+
+    /** Writes the contents of the pending object ID of TYPE to OUT as
+     *  {@link Pack#writeContentsTo} does. Returns false if there is no such
+     *  object or it is a delta. */
+    synchronized boolean writeContentsTo(byte type, String id, WritableByteChannel target) {
+        long[] entry = entries.get(id);
+        if (entry == null || entry[0] != type) {
+            return false;
+        }
+        try {
+            return Pack.Entry.transferContents(out.getChannel(), entry[1], target);
+        } catch (IOException e) {
+            throw error("Unable to read pack file.");
+        }
+    }
+
+    /** Returns the stored entry of the pending object ID of TYPE, or null. */
+    synchronized Pack.Entry read(byte type, String id) {
+        long[] entry = entries.get(id);
+        if (entry == null || entry[0] != type) {
+            return null;
+        }
+        try {
+            return Pack.Entry.read(out, entry[1]);
+        } catch (IOException e) {
+            throw error("Unable to read pack file.");
+        }
+    }
+
+    /** Returns the delta base of the pending object ID, or null. */
+    synchronized String baseOf(String id) {
+        long[] entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return Pack.Entry.readBase(out, entry[1]);
+        } catch (IOException e) {
+            throw error("Unable to read pack file.");
+        }
+    }
+
+    /** Discards the objects added so far and the pack file. */
+    synchronized void abandon() {
+        try {
+            out.close();
+            Files.deleteIfExists(tmpFile.toPath());
+        } catch (IOException e) {
+            throw error("Unable to delete pack file.");
+        }
+    }
+
+    /** Writes the index and moves the pack into place. Returns the
+     *  finished pack, or null if nothing was added. */
+    synchronized Pack finish() {
+        try {
+            out.getFD().sync();
+            out.close();
+            if (entries.isEmpty()) {
+                Files.delete(tmpFile.toPath());
+                return null;
+            }
+            String[] ids = new String[entries.size()];
+            byte[] types = new byte[ids.length];
+            long[] offsets = new long[ids.length];
+            int i = 0;
+            for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                ids[i] = entry.getKey();
+                types[i] = (byte) entry.getValue()[0];
+                offsets[i] = entry.getValue()[1];
+                i += 1;
+            }
+            String name = "pack-" + sha1((Object[]) ids);
+            File indexFile = join(dir, name + ".idx");
+            File packFile = join(dir, name + ".pack");
+            if (indexFile.exists()) {
+                Files.delete(tmpFile.toPath());
+                return Pack.open(indexFile);
+            }
+            Files.move(tmpFile.toPath(), packFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            File tmpIndexFile = join(dir, "tmp-" + name + ".idx");
+            Pack.writeIndex(tmpIndexFile, ids, types, offsets);
+            try (FileChannel channel = FileChannel.open(tmpIndexFile.toPath(),
+                                                        StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmpIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return Pack.open(indexFile);
+        } catch (IOException e) {
+            throw error("Unable to finish pack file.");
+        }
+    }
+}
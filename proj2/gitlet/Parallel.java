@@ -0,0 +1,77 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static gitlet.Utils.*;
+
+/**
+ * Runs independent per-file work, such as hashing and compressing blobs,
+ * on a bounded pool of worker threads. The number of threads defaults to
+ * the number of processors and may be set with the gitlet.threads system
+ * property; with one thread, or one item, everything runs on the caller's
+ * thread.
+ *
+ * @author A_Words
+ */
+class Parallel {
+    private static int threads = Math.max(1, Integer.getInteger("gitlet.threads",
+            Runtime.getRuntime().availableProcessors()));
+    private static ForkJoinPool pool;
+
+    /** Calls ACTION on every one of ITEMS and returns when all are done.
+     *  If any call fails, the exception of the first failed item in
+     *  iteration order is thrown once the others have finished. */
+    static <T> void forEach(Collection<T> items, Consumer<T> action) {
+        if (threads == 1 || items.size() <= 1) {
+            items.forEach(action);
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(items.size());
+        for (T item : items) {
+            tasks.add(() -> {
+                action.accept(item);
+                return null;
+            });
+        }
+        for (Future<Void> future : getPool().invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw error("Interrupted.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    static int getThreads() {
+        return threads;
+    }
+
+    /** Uses THREADS worker threads from now on. */
+    static synchronized void setThreads(int threads) {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        Parallel.threads = Math.max(1, threads);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,96 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Repository.PACK_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Packs many synthetic commit objects and compares resolving abbreviated
+ * commit ids through the pack index with scanning every commit id, as
+ * checkout and reset used to. Must be run in an empty directory:
+ *
+ *     java gitlet.PrefixBenchmark [COMMITS]
+ *
+ * @author A_Words
+ */
+public class PrefixBenchmark {
+    private static final int QUERIES = 10000;
+    private static final int SCAN_QUERIES = 5;
+    private static final int PREFIX_LENGTH = 8;
+
+    public static void main(String[] args) {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        GITLET_DIR.mkdir();
+        PACK_DIR.mkdir();
+
+        long start = System.nanoTime();
+        List<String> ids = new ArrayList<>(commits);
+        PackWriter writer = new PackWriter(PACK_DIR);
+        for (int i = 0; i < commits; i += 1) {
+            String id = sha1("commit", Integer.toString(i));
+            writer.add(id, new Pack.Entry(ObjectStore.COMMIT, null, new byte[]{(byte) i}));
+            ids.add(id);
+        }
+        writer.finish();
+        System.out.printf("%d commits%n", commits);
+        System.out.printf("%-24s %12.3f s%n", "build pack", (System.nanoTime() - start) / 1e9);
+
+        Random random = new Random(61);
+        List<String> prefixes = new ArrayList<>();
+        for (int i = 0; i < QUERIES; i += 1) {
+            prefixes.add(ids.get(random.nextInt(commits)).substring(0, PREFIX_LENGTH));
+        }
+
+        start = System.nanoTime();
+        int ambiguous = 0;
+        for (String prefix : prefixes) {
+            if (ObjectStore.findByPrefix(ObjectStore.COMMIT, prefix, 2).size() != 1) {
+                ambiguous += 1;
+            }
+        }
+        System.out.printf("%-24s %12.3f us/query (%d ambiguous)%n", "pack index",
+                (System.nanoTime() - start) / 1e3 / QUERIES, ambiguous);
+
+        start = System.nanoTime();
+        ambiguous = 0;
+        for (int i = 0; i < QUERIES; i += 1) {
+            String prefix = prefixes.get(i).substring(0, 4);
+            if (ObjectStore.findByPrefix(ObjectStore.COMMIT, prefix, 2).size() != 1) {
+                ambiguous += 1;
+            }
+        }
+        System.out.printf("%-24s %12.3f us/query (%d ambiguous)%n", "pack index, 4 digits",
+                (System.nanoTime() - start) / 1e3 / QUERIES, ambiguous);
+
+        start = System.nanoTime();
+        for (String prefix : prefixes.subList(0, SCAN_QUERIES)) {
+            scan(prefix);
+        }
+        System.out.printf("%-24s %12.3f us/query%n", "scan all ids",
+                (System.nanoTime() - start) / 1e3 / SCAN_QUERIES);
+    }
+
+    /** Resolves PREFIX as findCommitByPrefix used to. */
+    private static String scan(String prefix) {
+        String commitSha1 = null;
+        TreeSet<String> all = ObjectStore.list(ObjectStore.COMMIT);
+        for (String sha1 : all) {
+            if (sha1.startsWith(prefix)) {
+                if (commitSha1 != null) {
+                    return null;
+                }
+                commitSha1 = sha1;
+            }
+        }
+        return commitSha1;
+    }
+}
@@ -0,0 +1,288 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * The branches of the repository, the name of the current branch and the
+ * branch, if any, that each branch tracks.
+ * <p>
+ * All refs live in one text file: a line "HEAD " and the current branch
+ * name, then a line for each branch with its 40-digit commit id, a space
+ * and its name, in name order, then a line "UPSTREAM ", the branch name,
+ * a tab and the name of the branch it tracks for each branch that tracks
+ * one. Reads see the file as it was when the
+ * command first needed it. Updates are gathered into a
+ * {@link Transaction}, which takes the lock file refs.lock, checks that
+ * every ref it changes still has the value this command read, writes the
+ * whole new file into the lock file, syncs it and renames it over the
+ * refs file, so each command writes its refs once and atomically, and two
+ * commands cannot silently overwrite each other's updates.
+ * <p>
+ * Repositories made before the refs file existed keep their branches in
+ * a serialized map and the current branch in a file of its own; those are
+ * read until the first update replaces them.
+ *
+ * @author A_Words
+ */
+class RefStore {
+    private static final File REFS_FILE = join(GITLET_DIR, "refs");
+    private static final File LOCK_FILE = join(GITLET_DIR, "refs.lock");
+    private static final File LEGACY_BRANCHES_FILE = join(GITLET_DIR, "branches");
+    private static final File LEGACY_CURRENT_BRANCH_FILE = join(GITLET_DIR, "currentBranch");
+    private static final String HEAD = "HEAD ";
+    private static final String UPSTREAM = "UPSTREAM ";
+    private static final int ID_LENGTH = 2 * Pack.ID_SIZE;
+    /** How long to wait for another command to release the lock. */
+    private static final long LOCK_TIMEOUT_MILLIS = 2000;
+
+    /** The branches as this command read them, or null before the first read. */
+    private static TreeMap<String, String> branches;
+    private static String currentBranch;
+    /** The branch each branch tracks, by name. */
+    private static TreeMap<String, String> upstreams;
+
+    /** Returns the commit id of the branch NAME, or null if there is none. */
+    static String branch(String name) {
+        load();
+        return branches.get(name);
+    }
+
+    /** Returns the names of all branches in order. */
+    static SortedSet<String> branchNames() {
+        load();
+        return Collections.unmodifiableSortedSet(branches.navigableKeySet());
+    }
+
+    static String currentBranch() {
+        load();
+        return currentBranch;
+    }
+
+    /** Returns the name of the branch that the branch NAME tracks, which
+     *  may since have been removed, or null if it tracks none. */
+    static String upstream(String name) {
+        load();
+        return upstreams.get(name);
+    }
+
+    /** Forgets the refs read so far, so that the next read sees the refs
+     *  file as it is now. */
+    static void reset() {
+        branches = null;
+        currentBranch = null;
+        upstreams = null;
+    }
+
+    /** Starts a new set of updates, written together by {@link Transaction#commit()}. */
+    static Transaction update() {
+        load();
+        return new Transaction();
+    }
+
+    private static void load() {
+        if (branches != null) {
+            return;
+        }
+        branches = new TreeMap<>();
+        upstreams = new TreeMap<>();
+        if (REFS_FILE.isFile()) {
+            currentBranch = parse(readContentsAsString(REFS_FILE), branches, upstreams);
+        } else if (LEGACY_BRANCHES_FILE.isFile()) {
+            @SuppressWarnings("unchecked")
+            TreeMap<String, String> legacy = readObject(LEGACY_BRANCHES_FILE, TreeMap.class);
+            branches.putAll(legacy);
+            currentBranch = LEGACY_CURRENT_BRANCH_FILE.isFile()
+                    ? readContentsAsString(LEGACY_CURRENT_BRANCH_FILE) : null;
+        }
+    }
+
+    /** Reads the refs in TEXT into BRANCHES and UPSTREAMS and returns the
+     *  current branch. */
+    private static String parse(String text, Map<String, String> branches,
+                                Map<String, String> upstreams) {
+        String head = null;
+        for (String line : text.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (line.startsWith(HEAD)) {
+                head = line.substring(HEAD.length());
+            } else if (line.startsWith(UPSTREAM) && tab > 0) {
+                upstreams.put(line.substring(UPSTREAM.length(), tab), line.substring(tab + 1));
+            } else if (line.length() > ID_LENGTH && line.charAt(ID_LENGTH) == ' ') {
+                branches.put(line.substring(ID_LENGTH + 1), line.substring(0, ID_LENGTH));
+            } else if (!line.isEmpty()) {
+                throw error("Corrupt refs file.");
+            }
+        }
+        return head;
+    }
+
+    private static String format(String head, Map<String, String> branches,
+                                 Map<String, String> upstreams) {
+        StringBuilder text = new StringBuilder();
+        if (head != null) {
+            text.append(HEAD).append(head).append('\n');
+        }
+        for (Map.Entry<String, String> branch : branches.entrySet()) {
+            text.append(branch.getValue()).append(' ').append(branch.getKey()).append('\n');
+        }
+        for (Map.Entry<String, String> upstream : upstreams.entrySet()) {
+            text.append(UPSTREAM).append(upstream.getKey()).append('\t')
+                    .append(upstream.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Updates to the refs, applied together or not at all. */
+    static class Transaction {
+        /** New commit ids by branch name; null deletes the branch. */
+        private final Map<String, String> updates = new LinkedHashMap<>();
+        /** New upstreams by branch name; null stops tracking. */
+        private final Map<String, String> upstreamUpdates = new LinkedHashMap<>();
+        private String newCurrentBranch;
+
+        private Transaction() {
+        }
+
+        Transaction setBranch(String name, String commitSha1) {
+            updates.put(name, commitSha1);
+            return this;
+        }
+
+        /** Deletes the branch NAME and what it tracks. */
+        Transaction deleteBranch(String name) {
+            updates.put(name, null);
+            upstreamUpdates.put(name, null);
+            return this;
+        }
+
+        /** Makes the branch NAME track the branch UPSTREAM, or no branch if
+         *  UPSTREAM is null. */
+        Transaction setUpstream(String name, String upstream) {
+            upstreamUpdates.put(name, upstream);
+            return this;
+        }
+
+        Transaction setCurrentBranch(String name) {
+            newCurrentBranch = name;
+            return this;
+        }
+
+        /** Writes all updates at once. Fails, changing nothing, if another
+         *  command has changed any of the refs involved since this command
+         *  read them. */
+        void commit() {
+            if (updates.isEmpty() && upstreamUpdates.isEmpty() && newCurrentBranch == null) {
+                return;
+            }
+            FileChannel lock = lock();
+            boolean renamed = false;
+            try {
+                TreeMap<String, String> latest = new TreeMap<>();
+                TreeMap<String, String> latestUpstreams = new TreeMap<>();
+                String latestHead;
+                if (REFS_FILE.isFile()) {
+                    latestHead = parse(readContentsAsString(REFS_FILE), latest, latestUpstreams);
+                } else {
+                    latest.putAll(branches);
+                    latestHead = currentBranch;
+                }
+                for (String name : updates.keySet()) {
+                    if (!Objects.equals(latest.get(name), branches.get(name))) {
+                        throw error("Branch %s was changed by another command.", name);
+                    }
+                }
+                if (newCurrentBranch != null && !Objects.equals(latestHead, currentBranch)) {
+                    throw error("The current branch was changed by another command.");
+                }
+                for (Map.Entry<String, String> update : updates.entrySet()) {
+                    if (update.getValue() == null) {
+                        latest.remove(update.getKey());
+                    } else {
+                        latest.put(update.getKey(), update.getValue());
+                    }
+                }
+                for (Map.Entry<String, String> update : upstreamUpdates.entrySet()) {
+                    if (update.getValue() == null) {
+                        latestUpstreams.remove(update.getKey());
+                    } else {
+                        latestUpstreams.put(update.getKey(), update.getValue());
+                    }
+                }
+                if (newCurrentBranch != null) {
+                    latestHead = newCurrentBranch;
+                }
+                ByteBuffer text = StandardCharsets.UTF_8.encode(
+                        format(latestHead, latest, latestUpstreams));
+                while (text.hasRemaining()) {
+                    lock.write(text);
+                }
+                lock.force(true);
+                lock.close();
+                Files.move(LOCK_FILE.toPath(), REFS_FILE.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                renamed = true;
+                branches = latest;
+                currentBranch = latestHead;
+                upstreams = latestUpstreams;
+                LEGACY_BRANCHES_FILE.delete();
+                LEGACY_CURRENT_BRANCH_FILE.delete();
+            } catch (IOException e) {
+                throw error("Unable to write refs.");
+            } finally {
+                if (lock.isOpen()) {
+                    try {
+                        lock.close();
+                    } catch (IOException e) {
+                        // The lock file is removed below either way.
+                    }
+                }
+                // 改名后的 refs.lock 已是另一命令新建的锁, 不能删
+                if (!renamed) {
+                    LOCK_FILE.delete();
+                }
+            }
+        }
+
+        /** Creates the lock file, waiting a while for another command that
+         *  holds it. */
+        private static FileChannel lock() {
+            long deadline = System.currentTimeMillis() + LOCK_TIMEOUT_MILLIS;
+            while (true) {
+                try {
+                    return FileChannel.open(LOCK_FILE.toPath(),
+                            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (FileAlreadyExistsException e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw error("Unable to lock refs: %s exists. If no other gitlet "
+                                + "command is running, remove it.", LOCK_FILE.getPath());
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw error("Interrupted while waiting for the refs lock.");
+                    }
+                } catch (IOException e) {
+                    throw error("Unable to lock refs.");
+                }
+            }
+        }
+    }
+}
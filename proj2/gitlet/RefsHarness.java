@@ -0,0 +1,99 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Creates branches from many commands at once and checks that the refs
+ * survive: every branch whose command succeeded is listed, master is
+ * still there and still current. Each of ROUNDS rounds starts WRITERS
+ * branch commands together, each in a new JVM, and waits for them all.
+ * Must be run in an empty directory:
+ *
+ *     java gitlet.RefsHarness [ROUNDS] [WRITERS]
+ *
+ * @author A_Words
+ */
+public class RefsHarness {
+    private static final File LOCK_FILE = join(GITLET_DIR, "refs.lock");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the harness in an empty directory.");
+            return;
+        }
+        output(start("init"));
+        List<String> created = new ArrayList<>();
+        int timedOut = 0;
+        for (int round = 0; round < rounds; round += 1) {
+            List<Process> processes = new ArrayList<>();
+            for (int i = 0; i < writers; i += 1) {
+                processes.add(start("branch", branchName(round, i)));
+            }
+            for (int i = 0; i < writers; i += 1) {
+                String output = output(processes.get(i));
+                if (output.isEmpty()) {
+                    created.add(branchName(round, i));
+                } else {
+                    // A command that waited too long for the lock gives up
+                    // without touching the refs.
+                    check(output.contains("Unable to lock refs"),
+                            "branch %s printed \"%s\"", branchName(round, i), output);
+                    timedOut += 1;
+                }
+            }
+            check(!LOCK_FILE.exists(), "round %d left %s behind", round, LOCK_FILE.getPath());
+            String status = output(start("status"));
+            check(status.contains("=== Branches ===\n*master\n"),
+                    "master is missing or not current after round %d:%n%s", round, status);
+            for (String name : created) {
+                check(status.contains("\n" + name + "\n"),
+                        "branch %s is missing after round %d", name, round);
+            }
+        }
+        System.out.printf("%d branches created by %d commands in %d rounds, "
+                + "%d timed out on the lock%n", created.size(), rounds * writers, rounds, timedOut);
+    }
+
+    private static String branchName(int round, int i) {
+        return "r" + round + "b" + i;
+    }
+
+    /** Starts gitlet with ARGS in a new JVM, its output and error together
+     *  on one pipe. */
+    private static Process start(String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(join(new File(System.getProperty("java.home")), "bin", "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("gitlet.Main");
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    /** Waits for PROCESS and returns its output. */
+    private static String output(Process process) throws IOException, InterruptedException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            in.transferTo(output);
+        }
+        process.waitFor();
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String msg, Object... args) {
+        if (!condition) {
+            throw error(msg, args);
+        }
+    }
+}
@@ -1,13 +1,28 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static gitlet.Utils.*;
 import static java.time.ZoneOffset.UTC;
@@ -30,33 +45,33 @@ public class Repository {
      * The commit directory.
      */
     public static final File COMMIT_DIR = join(GITLET_DIR, "commits");
-    /**
-     * The staging directory.
-     */
-    public static final File STAGING_DIR = join(GITLET_DIR, "staging");
     /**
      * The blob directory.
      */
     public static final File BLOB_DIR = join(GITLET_DIR, "blobs");
-    private static final File BRANCHES_FILE = join(GITLET_DIR, "branches");
-    private static final File CURRENT_BRANCH_FILE = join(GITLET_DIR, "currentBranch");
+    /**
+     * The pack directory.
+     */
+    public static final File PACK_DIR = join(GITLET_DIR, "packs");
     /**
      * List all instance variables of the Repository class here with a useful
      * comment above them describing what that variable represents and how that
      * variable is used. We've provided two examples for you.
      */
 
-    private static final String COMMIT_DATE_PATTERN = "E MMM d HH:mm:ss yyyy Z";
+    private static final DateTimeFormatter COMMIT_DATE_FORMATTER = DateTimeFormatter
+            .ofPattern("E MMM d HH:mm:ss yyyy Z", Locale.ENGLISH)
+            .withZone(ZoneId.systemDefault());
     private static final String UNTRACKED_FILE_WARNING =
             "There is an untracked file in the way; delete it, or add and commit it first.";
 
     public static void init() {
         if (isRepositoryExists()) {
             message("A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
+            exit(0);
         }
 
-        List<File> dirs = List.of(GITLET_DIR, COMMIT_DIR, STAGING_DIR, BLOB_DIR);
+        List<File> dirs = List.of(GITLET_DIR, COMMIT_DIR, BLOB_DIR, PACK_DIR);
         for (File dir : dirs) {
             try {
                 Files.createDirectory(dir.toPath());
@@ -64,15 +79,15 @@ public class Repository {
                 throw error("Unable to create directory.");
             }
         }
-        TreeMap<String, String> branchMappingCommit = new TreeMap<>();
-        writeObject(BRANCHES_FILE, branchMappingCommit);
 
         Commit initial = new Commit(
                 "initial commit",
                 ZonedDateTime.of(1970, 1, 1, 0, 0, 0, 0, UTC));
-        initial.save();
-        setBranch("master", initial.getSha1());
-        switchBranch("master");
+        saveCommit(initial);
+        RefStore.update()
+                .setBranch("master", initial.getSha1())
+                .setCurrentBranch("master")
+                .commit();
     }
 
     private static boolean isRepositoryExists() {
@@ -82,8 +97,9 @@ public class Repository {
     private static void checkDir() {
         if (!isRepositoryExists()) {
             message("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            exit(0);
         }
+        Journal.recover();
     }
 
     public static void stagingFileByName(String fileName) {
@@ -91,125 +107,178 @@ public class Repository {
         stagingFile(file);
     }
 
-    public static void stagingFile(File file) {
+    /**
+     * Stages every file in FILENAMES. A directory stands for all the files
+     * below it. Nothing is staged unless all of them exist; the files are
+     * then hashed and their blobs stored in parallel.
+     */
+    public static void stagingFilesByName(List<String> fileNames) {
         checkDir();
-        if (!file.exists()) {
-            message("File does not exist.");
-            System.exit(0);
-        }
-
-        String fileSha1 = sha1(readContentsAsString(file));
-        File fileInCurrentCommit = getCurrentCommit().findFile(file.getName());
-        File stagingDirFile = join(STAGING_DIR, file.getName());
-        if (fileInCurrentCommit != null) {
-            String fileInCurrentCommitSha1 = sha1(readContentsAsString(fileInCurrentCommit));
-            if (fileSha1.equals(fileInCurrentCommitSha1)) {
-                if (stagingDirFile.exists()) {
-                    try {
-                        Files.delete(stagingDirFile.toPath());
-                    } catch (IOException e) {
-                        throw error("Unable to delete staging file.");
-                    }
+        Set<File> files = new LinkedHashSet<>();
+        for (String fileName : fileNames) {
+            File file = join(CWD, fileName);
+            if (relativePath(file) == null) {
+                message("File does not exist.");
+                exit(0);
+            } else if (file.isDirectory()) {
+                for (String path : filesUnder(file)) {
+                    files.add(join(CWD, relativePath(join(file, path))));
                 }
-                return;
+            } else if (file.exists()) {
+                files.add(join(CWD, relativePath(file)));
+            } else {
+                message("File does not exist.");
+                exit(0);
             }
         }
-        try {
-            Files.copy(file.toPath(), stagingDirFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            throw error("Unable to copy staging file.");
-        }
+        Commit currentCommit = getCurrentCommit();
+        Parallel.forEach(files, file -> stagingFile(file, currentCommit));
+        StagingArea.save();
     }
 
-    private static TreeMap<String, String> getFilesMappingBlobs() {
-        Commit parentCommit = getCurrentCommit();
-        TreeMap<String, String> filesMappingBlobs = new TreeMap<>();
-        if (parentCommit != null) {
-            for (String fileName : parentCommit.getTrackedFiles()) {
-                String blobSha1 = parentCommit.findFileSha1(fileName);
-                if (blobSha1 != null) {
-                    filesMappingBlobs.put(fileName, blobSha1);
-                }
-            }
+    public static void stagingFile(File file) {
+        checkDir();
+        if (!file.exists() || relativePath(file) == null) {
+            message("File does not exist.");
+            exit(0);
         }
+        stagingFile(file, getCurrentCommit());
+        StagingArea.save();
+    }
 
-        // 处理暂存区的文件（添加/修改/删除）
-        for (File file : Objects.requireNonNull(STAGING_DIR.listFiles())) {
-            try {
-                if (Files.size(file.toPath()) == 0) {
-                    // 空文件表示删除标记
-                    filesMappingBlobs.remove(file.getName());
-                } else {
-                    // 添加或修改文件
-                    Blob blob = new Blob(file);
-                    blob.save();
-                    filesMappingBlobs.put(file.getName(), blob.getSha1());
-                }
-            } catch (IOException e) {
-                throw error("Unable to read staging file.");
-            }
+    /** Stages FILE, storing its blob, unless it is unchanged from
+     *  CURRENTCOMMIT. Safe to call for different files from several
+     *  threads. */
+    private static void stagingFile(File file, Commit currentCommit) {
+        // Blob ids hash the file name too, so equal ids mean equal contents.
+        Blob blob = new Blob(file);
+        String path = relativePath(file);
+        String committedSha1 = currentCommit.findFileSha1(path);
+        if (blob.getSha1().equals(committedSha1)) {
+            StagingArea.unstage(path);
+            return;
         }
-        return filesMappingBlobs;
+        // 暂存时即写入对象库, 以已提交的版本为 delta 基础; 提交时不再读文件
+        blob.save(committedSha1);
+        StagingArea.add(path, blob.getSha1());
+    }
+
+    /**
+     * Saves the trees of the current commit's tree with the staged changes
+     * applied, and returns the id of the new root tree. The staged blobs
+     * are already stored, and only directories with staged changes get new
+     * trees.
+     */
+    private static String saveStagedTree() {
+        Tree parentTree = getCurrentCommit().getTree();
+        // 先确保暂存的 blob 都已写入, 再让树引用它们
+        StagingArea.save();
+        // 删除标记的 blob id 为 null
+        TreeMap<String, String> changes = new TreeMap<>(StagingArea.entries());
+        return parentTree.update(changes).save();
     }
 
     public static void stagingToCommit(String message) {
         checkDir();
-        if (Objects.requireNonNull(STAGING_DIR.list()).length == 0) {
+        if (StagingArea.isEmpty()) {
             message("No changes added to the commit.");
-            System.exit(0);
+            exit(0);
         }
         if (message == null || message.isEmpty()) {
             message("Please enter a commit message.");
-            System.exit(0);
+            exit(0);
         }
 
-        TreeMap<String, String> filesMappingBlobs = getFilesMappingBlobs();
-        Commit commit = new Commit(message, filesMappingBlobs, getCurrentCommitSha1());
-        commit.save();
-        setCurrentCommitSha1(commit.getSha1());
+        Commit commit = new Commit(message, saveStagedTree(), getCurrentCommitSha1());
+        advanceCurrentBranch(commit);
+    }
+
+    /**
+     * Saves COMMIT, makes it the current branch's commit and clears the
+     * staging area. The journal records the move before it is made, so a
+     * command killed at any step leaves either the old commit with the
+     * staging area intact or, once the next command completes the move,
+     * the new commit with the staging area cleared. The journal also
+     * covers the commit's graph row and message postings, so of the
+     * files a commit writes only the pack, the journal and the refs are
+     * synced.
+     */
+    private static void advanceCurrentBranch(Commit commit) {
+        String branchName = getCurrentBranchName();
+        Journal.cover();
+        saveCommit(commit);
+        Journal.crashPoint("saved");
+        Journal.begin(branchName, commit.getParentSha1(), commit.getSha1());
+        Journal.sync();
+        Journal.crashPoint("journaled");
+        setBranch(branchName, commit.getSha1());
+        Journal.crashPoint("ref-updated");
         clearStagingArea();
+        Journal.crashPoint("staging-cleared");
+        Journal.end(commit.getSha1());
     }
 
-    public static void log() {
-        checkDir();
-        helperLog(getCurrentCommit());
+    /** Saves COMMIT and its blobs for good and records it in the commit
+     *  graph and the message index. Must be called before any ref points
+     *  at COMMIT. */
+    private static void saveCommit(Commit commit) {
+        commit.save();
+        MessageIndex.add(commit);
+        ObjectStore.flush();
+        CommitGraph.add(commit);
     }
 
-    private static void helperLog(Commit commit) {
-        if (commit == null) {
-            return;
+    /**
+     * Prints the first-parent history of the current commit, newest first,
+     * stopping after MAXCOUNT commits or at the first commit made before
+     * SINCE, in epoch milliseconds. The walk reads the commit graph and
+     * loads only the commits it prints, so it stops as soon as either limit
+     * is reached and needs the same memory however long the history is.
+     */
+    public static void log(int maxCount, long since) {
+        checkDir();
+        PrintWriter out = logWriter();
+        int row = CommitGraph.indexOf(getCurrentCommitSha1());
+        for (int printed = 0; row != CommitGraph.NONE && printed < maxCount; printed += 1) {
+            if (CommitGraph.timestamp(row) < since) {
+                break;
+            }
+            commitLog(Commit.load(CommitGraph.sha1(row)), out);
+            row = CommitGraph.parent(row);
         }
-        commitLog(commit);
-        helperLog(commit.parent());
+        out.flush();
     }
 
     public static void globalLog() {
         checkDir();
-        for (File file : Objects.requireNonNull(COMMIT_DIR.listFiles())) {
-            Commit commit = Commit.load(file.getName());
+        PrintWriter out = logWriter();
+        for (String commitSha1 : ObjectStore.list(ObjectStore.COMMIT)) {
+            Commit commit = Commit.load(commitSha1);
             if (commit == null) {
-                return;
+                break;
             }
-            commitLog(commit);
+            commitLog(commit, out);
         }
+        out.flush();
+    }
+
+    /** Returns a writer that buffers standard output, which must be
+     *  flushed when done. */
+    private static PrintWriter logWriter() {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
     }
 
-    private static void commitLog(Commit commit) {
-        message("===");
-        message("commit " + commit.getSha1());
-        if (commit.secondParent() != null) {
-            message("Merge: " + commit.getParentSha1().substring(0, 7)
+    private static void commitLog(Commit commit, PrintWriter out) {
+        out.println("===");
+        out.println("commit " + commit.getSha1());
+        if (commit.getSecondParentSha1() != null) {
+            out.println("Merge: " + commit.getParentSha1().substring(0, 7)
                     + " "
                     + commit.getSecondParentSha1().substring(0, 7));
         }
-        DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern(
-                COMMIT_DATE_PATTERN,
-                Locale.ENGLISH);
-        message("Date: " + commit.getTimestamp()
-                .withZoneSameInstant(ZoneId.systemDefault())
-                .format(dateTimeFormatter));
-        message(commit.getMessage());
-        message("");
+        out.println("Date: " + COMMIT_DATE_FORMATTER.format(commit.getTimestamp()));
+        out.println(commit.getMessage());
+        out.println();
     }
 
     private static Commit getCurrentCommit() {
@@ -224,8 +293,74 @@ public class Repository {
         setBranch(getCurrentBranchName(), sha1);
     }
 
+    /** Returns the files in the working directory, listed once per
+     *  command. The set is shared and must not be modified. */
     private static TreeSet<String> getCurrentFileSet() {
-        return new TreeSet<>(Objects.requireNonNull(plainFilenamesIn(CWD)));
+        return WorkingTree.files();
+    }
+
+    /** Returns the paths, relative to DIR, of all plain files below DIR,
+     *  leaving out the .gitlet directory. Paths are separated by '/'. */
+    private static TreeSet<String> filesUnder(File dir) {
+        TreeSet<String> paths = new TreeSet<>();
+        Path root = dir.toPath().normalize();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) {
+                    return subdir.equals(GITLET_DIR.toPath())
+                            ? FileVisitResult.SKIP_SUBTREE
+                            : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        paths.add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw error("Unable to list files.");
+        }
+        return paths;
+    }
+
+    /** Returns the path of FILE relative to the working directory, with
+     *  '/' between its parts, or null if FILE is outside the working
+     *  directory or inside the .gitlet directory. */
+    private static String relativePath(File file) {
+        Path path = CWD.toPath().relativize(file.toPath().normalize());
+        if (path.startsWith("..") || path.startsWith(GITLET_DIR.getName())) {
+            return null;
+        }
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    /** Deletes FILE if it exists, then every directory above it, up to but
+     *  not including ROOT, that is left empty. */
+    private static void deleteFile(File file, File root) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        if (root.equals(CWD)) {
+            WorkingTree.changed();
+        }
+        File dir = file.getParentFile();
+        while (dir != null && !dir.equals(root) && dir.isDirectory()
+                && Objects.requireNonNull(dir.list()).length == 0) {
+            try {
+                Files.delete(dir.toPath());
+            } catch (DirectoryNotEmptyException | NoSuchFileException e) {
+                // 另一个线程刚在其中写入了文件, 或已删除了它
+                return;
+            }
+            dir = dir.getParentFile();
+        }
     }
 
     public static void checkout(String fileName) {
@@ -235,40 +370,33 @@ public class Repository {
     public static void checkout(String commitSha1, String fileName) {
         checkDir();
         if (commitSha1.length() < 40) {
-            if (findFileByPrefix(COMMIT_DIR, commitSha1) != null) {
-                commitSha1 = findFileByPrefix(COMMIT_DIR, commitSha1);
+            String fullSha1 = findCommitByPrefix(commitSha1);
+            if (fullSha1 != null) {
+                commitSha1 = fullSha1;
             }
         }
         Commit commit = Commit.load(commitSha1);
         if (commit == null) {
             message("No commit with that id exists.");
-            System.exit(0);
+            exit(0);
         }
-        File commitFile = commit.findFile(fileName);
-        if (commitFile == null) {
+        String blobSha1 = commit.findFileSha1(fileName);
+        if (blobSha1 == null) {
             message("File does not exist in that commit.");
-            System.exit(0);
-        }
-        File workingFile = join(CWD, fileName);
-        try {
-            Files.copy(
-                    commitFile.toPath(),
-                    workingFile.toPath(),
-                    StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            throw error("Unable to copy commit file.");
+            exit(0);
         }
+        writeWorkingFile(fileName, blobSha1);
     }
 
     public static void checkoutBranch(String branchName) {
         checkDir();
         if (!getBranchSet().contains(branchName)) {
             message("No such branch exists.");
-            System.exit(0);
+            exit(0);
         }
         if (branchName.equals(getCurrentBranchName())) {
             message("No need to checkout the current branch.");
-            System.exit(0);
+            exit(0);
         }
 
         checkoutCommit(getBranch(branchName));
@@ -278,13 +406,14 @@ public class Repository {
     public static void reset(String commitSha1) {
         checkDir();
         if (commitSha1.length() < 40) {
-            if (findFileByPrefix(COMMIT_DIR, commitSha1) != null) {
-                commitSha1 = findFileByPrefix(COMMIT_DIR, commitSha1);
+            String fullSha1 = findCommitByPrefix(commitSha1);
+            if (fullSha1 != null) {
+                commitSha1 = fullSha1;
             }
         }
         if (Commit.load(commitSha1) == null) {
             message("No commit with that id exists.");
-            System.exit(0);
+            exit(0);
         }
 
         checkoutCommit(commitSha1);
@@ -295,87 +424,90 @@ public class Repository {
         Commit commit = Commit.load(commitSha1);
         if (commit == null) {
             message("No commit with that id exists.");
-            System.exit(0);
+            exit(0);
         }
 
-        TreeSet<String> currentFileSet = getCurrentFileSet();
-        TreeSet<String> currentTrackedFiles = getCurrentCommit().getTrackedFiles();
-        TreeSet<String> targetTrackedFiles = commit.getTrackedFiles();
-
-        for (String fileName : targetTrackedFiles) {
-            if (currentFileSet.contains(fileName) && !currentTrackedFiles.contains(fileName)) {
+        // Only files that differ between the two trees can be added or
+        // removed; identical subtrees are skipped without being read.
+        Tree currentTree = getCurrentCommit().getTree();
+        Tree targetTree = commit.getTree();
+        TreeMap<String, String> changedFiles = new TreeMap<>();
+        Tree.diff(currentTree, targetTree, "", (path, currentSha1, targetSha1) -> {
+            if (currentSha1 == null && join(CWD, path).isFile()) {
                 message(UNTRACKED_FILE_WARNING);
-                System.exit(0);
+                exit(0);
             }
-            checkout(commitSha1, fileName);
-        }
+            changedFiles.put(path, targetSha1);
+        });
 
-        for (String fileName : currentTrackedFiles) {
-            if (!targetTrackedFiles.contains(fileName)) {
-                File file = join(CWD, fileName);
+        for (Map.Entry<String, String> changed : changedFiles.entrySet()) {
+            if (changed.getValue() == null) {
                 try {
-                    Files.deleteIfExists(file.toPath());
+                    deleteFile(join(CWD, changed.getKey()), CWD);
                 } catch (IOException e) {
                     throw error("Unable to delete file.");
                 }
             }
         }
+        // Every tracked file is restored, but one the index knows to be
+        // unchanged is left alone.
+        for (Map.Entry<String, String> tracked : targetTree.files().entrySet()) {
+            File file = join(CWD, tracked.getKey());
+            if (changedFiles.containsKey(tracked.getKey()) || !file.isFile()
+                    || !Index.blobSha1(file).equals(tracked.getValue())) {
+                writeWorkingFile(tracked.getKey(), tracked.getValue());
+            }
+        }
 
         clearStagingArea();
     }
 
-    private static void clearStagingArea() {
-        for (File file : Objects.requireNonNull(STAGING_DIR.listFiles())) {
-            try {
-                Files.delete(file.toPath());
-            } catch (IOException e) {
-                throw error("Unable to delete staging file.");
-            }
-        }
+    /** Writes the blob BLOBSHA1 to the file at PATH in the working
+     *  directory, streaming it from the object store. */
+    private static void writeWorkingFile(String path, String blobSha1) {
+        File workingFile = join(CWD, path);
+        workingFile.getParentFile().mkdirs();
+        Blob.writeTo(blobSha1, workingFile);
+        Index.record(workingFile, blobSha1);
+        WorkingTree.changed();
     }
 
-    private static String findFileByPrefix(File dir, String prefix) {
-        String fileName = null;
-        for (File file : Objects.requireNonNull(dir.listFiles())) {
-            if (file.getName().startsWith(prefix)) {
-                if (fileName != null) {
-                    return null;
-                }
-                fileName = file.getName();
-            }
-        }
-        return fileName;
+    static void clearStagingArea() {
+        StagingArea.clear();
+        StagingArea.save();
+    }
+
+    /** Returns the commit id that PREFIX abbreviates, or null if no
+     *  commit id or more than one starts with PREFIX. */
+    private static String findCommitByPrefix(String prefix) {
+        TreeSet<String> matches = ObjectStore.findByPrefix(ObjectStore.COMMIT, prefix, 2);
+        return matches.size() == 1 ? matches.first() : null;
     }
 
     public static void rmFileByName(String fileName) {
         checkDir();
         File file = join(CWD, fileName);
         rmFile(file);
+        StagingArea.save();
     }
 
     private static void rmFile(File file) {
-        File stagingDirFile = join(STAGING_DIR, file.getName());
-        Commit currentCommit = getCurrentCommit();
-        File fileInCurrentCommit = currentCommit.findFile(file.getName());
-        if (!stagingDirFile.exists() && fileInCurrentCommit == null) {
+        String path = relativePath(file);
+        if (path == null) {
             message("No reason to remove the file.");
-            System.exit(0);
+            exit(0);
         }
-        if (stagingDirFile.exists()) {
-            try {
-                Files.delete(stagingDirFile.toPath());
-            } catch (IOException e) {
-                throw error("Unable to delete staging file.");
-            }
+        Commit currentCommit = getCurrentCommit();
+        String fileInCurrentCommit = currentCommit.findFileSha1(path);
+        if (!StagingArea.contains(path) && fileInCurrentCommit == null) {
+            message("No reason to remove the file.");
+            exit(0);
         }
+        StagingArea.unstage(path);
         if (fileInCurrentCommit != null) {
+            StagingArea.remove(path);
             try {
-                stagingDirFile.createNewFile();
-            } catch (IOException e) {
-                throw error("Unable to create staging file.");
-            }
-            try {
-                Files.deleteIfExists(file.toPath());
+                deleteFile(file, CWD);
             } catch (IOException e) {
                 throw error("Unable to delete file from the working directory.");
             }
@@ -386,81 +518,115 @@ public class Repository {
         checkDir();
         if (getBranchSet().contains(branchName)) {
             message("A branch with that name already exists.");
-            System.exit(0);
+            exit(0);
         }
         setBranch(branchName, getCurrentCommitSha1());
     }
 
+    /** Makes the current branch track the branch UPSTREAM, or no branch
+     *  if UPSTREAM is null, so that status reports how they differ. */
+    public static void setUpstream(String upstream) {
+        checkDir();
+        if (upstream != null && !getBranchSet().contains(upstream)) {
+            message("A branch with that name does not exist.");
+            exit(0);
+        }
+        if (getCurrentBranchName().equals(upstream)) {
+            message("A branch cannot track itself.");
+            exit(0);
+        }
+        RefStore.update().setUpstream(getCurrentBranchName(), upstream).commit();
+    }
+
     public static void removeBranch(String branchName) {
         checkDir();
         if (!getBranchSet().contains(branchName)) {
             message("A branch with that name does not exist.");
-            System.exit(0);
+            exit(0);
         }
         if (getCurrentBranchName().equals(branchName)) {
             message("Cannot remove the current branch.");
-            System.exit(0);
+            exit(0);
         }
-        TreeMap<String, String> branchMappingCommit = getBranchMappingCommit();
-        branchMappingCommit.remove(branchName);
-        setBranchMappingCommit(branchMappingCommit);
+        RefStore.update().deleteBranch(branchName).commit();
     }
 
     private static void setBranch(String branchName, String commitSha1) {
-        TreeMap<String, String> branchMappingCommit = getBranchMappingCommit();
-        branchMappingCommit.put(branchName, commitSha1);
-        setBranchMappingCommit(branchMappingCommit);
+        RefStore.update().setBranch(branchName, commitSha1).commit();
     }
 
     private static void switchBranch(String branchName) {
         if (getBranchSet().contains(branchName)) {
-            writeContents(CURRENT_BRANCH_FILE, branchName);
+            RefStore.update().setCurrentBranch(branchName).commit();
         } else {
             message("No such branch exists.");
-            System.exit(0);
+            exit(0);
         }
     }
 
     private static String getCurrentBranchName() {
-        return readContentsAsString(CURRENT_BRANCH_FILE);
+        return RefStore.currentBranch();
     }
 
     private static String getBranch(String branchName) {
-        return getBranchMappingCommit().get(branchName);
+        return RefStore.branch(branchName);
     }
 
     private static Set<String> getBranchSet() {
-        return getBranchMappingCommit().keySet();
+        return RefStore.branchNames();
     }
 
-    private static TreeMap<String, String> getBranchMappingCommit() {
-        return readObject(BRANCHES_FILE, TreeMap.class);
+    /** Loads the history in the fast-import stream on standard input, see
+     *  {@link FastImport}, and reports what it added. */
+    public static void fastImport() {
+        checkDir();
+        FastImport.Stats stats = FastImport.run(System.in);
+        message("Imported %d commits and %d blobs.", stats.commits, stats.blobs);
+    }
+
+    /** Removes the objects no branch reaches that were written more than
+     *  GRACESECONDS ago and packs the rest, then reports what it freed. */
+    public static void gc(long graceSeconds) {
+        checkDir();
+        ObjectStore.Pruned pruned = GarbageCollector.collect(
+                System.currentTimeMillis() - graceSeconds * 1000);
+        message("Removed %d unreachable objects, reclaimed %d bytes.",
+                pruned.objects, pruned.bytes);
     }
 
-    private static void setBranchMappingCommit(TreeMap<String, String> branchMappingCommit) {
-        writeObject(BRANCHES_FILE, branchMappingCommit);
+    /** Prints how much storing blobs as chunks saves. */
+    public static void chunkStats() {
+        checkDir();
+        Chunker.Stats stats = ObjectStore.chunkStats();
+        message("Chunked blobs: %d (%d bytes)", stats.blobs, stats.size);
+        message("Distinct chunks: %d (%d bytes)", stats.chunks, stats.chunkSize);
+        message("Dedup ratio: %.2f", stats.dedupRatio());
     }
 
     public static void find(String commitMessage) {
         checkDir();
-        boolean isOutput = false;
-        for (File file : Objects.requireNonNull(COMMIT_DIR.listFiles())) {
-            Commit commit = Commit.load(file.getName());
-            if (commit == null) {
-                return;
-            }
-            if (commit.getMessage().equals(commitMessage)) {
-                message(commit.getSha1());
-                isOutput = true;
-            }
-        }
-        if (!isOutput) {
+        printCommitIds(MessageIndex.withMessage(commitMessage));
+    }
+
+    /** Prints the ids of all commits whose message contains WORD as a
+     *  whole word, ignoring case. */
+    public static void findContaining(String word) {
+        checkDir();
+        printCommitIds(MessageIndex.containing(word));
+    }
+
+    private static void printCommitIds(Set<String> commitSha1s) {
+        if (commitSha1s.isEmpty()) {
             message("Found no commit with that message.");
         }
+        for (String commitSha1 : commitSha1s) {
+            message(commitSha1);
+        }
     }
 
     public static void status() {
         checkDir();
+        printUpstreamStatus();
         printBranches();
 
         List<String> stagedFilesList = new ArrayList<>();
@@ -470,8 +636,48 @@ public class Repository {
         printSection("Staged Files", stagedFilesList);
         printSection("Removed Files", removedFilesList);
 
-        printModificationsNotStaged(stagedFilesList, removedFilesList);
-        printUntrackedFiles(stagedFilesList);
+        // 工作区只列一次, 当前提交只读一次, 两部分共用
+        Commit currentCommit = getCurrentCommit();
+        TreeSet<String> fileSet = getCurrentFileSet();
+        TreeSet<String> trackedFiles = currentCommit.getTrackedFiles();
+        printModificationsNotStaged(stagedFilesList, removedFilesList,
+                currentCommit, fileSet, trackedFiles);
+        printUntrackedFiles(stagedFilesList, fileSet, trackedFiles);
+    }
+
+    /** Prints how the current branch and the branch it tracks, if any,
+     *  differ, in the words Git uses. */
+    private static void printUpstreamStatus() {
+        String upstream = RefStore.upstream(getCurrentBranchName());
+        if (upstream == null) {
+            return;
+        }
+        if (!getBranchSet().contains(upstream)) {
+            message("Your branch is based on '%s', but the upstream is gone.", upstream);
+            message("");
+            return;
+        }
+        int[] counts = CommitBitmaps.aheadBehind(
+                CommitGraph.indexOf(getCurrentCommitSha1()),
+                CommitGraph.indexOf(getBranch(upstream)));
+        int ahead = counts[0];
+        int behind = counts[1];
+        if (ahead == 0 && behind == 0) {
+            message("Your branch is up to date with '%s'.", upstream);
+        } else if (behind == 0) {
+            message("Your branch is ahead of '%s' by %d %s.", upstream, ahead, commits(ahead));
+        } else if (ahead == 0) {
+            message("Your branch is behind '%s' by %d %s, and can be fast-forwarded.",
+                    upstream, behind, commits(behind));
+        } else {
+            message("Your branch and '%s' have diverged,", upstream);
+            message("and have %d and %d different commits each, respectively.", ahead, behind);
+        }
+        message("");
+    }
+
+    private static String commits(int count) {
+        return count == 1 ? "commit" : "commits";
     }
 
     private static void printBranches() {
@@ -491,15 +697,11 @@ public class Repository {
     private static void collectStagedAndRemovedFiles(
             List<String> stagedFilesList,
             List<String> removedFilesList) {
-        for (File file : Objects.requireNonNull(STAGING_DIR.listFiles())) {
-            try {
-                if (Files.size(file.toPath()) == 0) {
-                    removedFilesList.add(file.getName());
-                } else {
-                    stagedFilesList.add(file.getName());
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        for (Map.Entry<String, String> staged : StagingArea.entries().entrySet()) {
+            if (staged.getValue() == null) {
+                removedFilesList.add(staged.getKey());
+            } else {
+                stagedFilesList.add(staged.getKey());
             }
         }
         Collections.sort(stagedFilesList);
@@ -516,11 +718,12 @@ public class Repository {
 
     private static void printModificationsNotStaged(
             List<String> stagedFilesList,
-            List<String> removedFilesList) {
+            List<String> removedFilesList,
+            Commit currentCommit,
+            TreeSet<String> fileSet,
+            TreeSet<String> trackedFiles) {
         TreeSet<String> stagedFilesSet = new TreeSet<>(stagedFilesList);
         TreeSet<String> removedFilesSet = new TreeSet<>(removedFilesList);
-        TreeSet<String> fileSet = getCurrentFileSet();
-        TreeSet<String> trackedFiles = getCurrentCommit().getTrackedFiles();
 
         TreeSet<String> delNotStageFilesSet = new TreeSet<>(trackedFiles);
         delNotStageFilesSet.removeAll(fileSet);
@@ -528,22 +731,23 @@ public class Repository {
         delNotStageFilesSet.removeAll(removedFilesSet);
 
         TreeSet<String> modNotStageFilesSet = new TreeSet<>();
-        Commit currentCommit = getCurrentCommit();
         for (String fileName : fileSet) {
-            File file = join(CWD, fileName);
-            String fileSha1 = sha1(readContentsAsString(file));
-            File fileInCurrentCommit = currentCommit.findFile(fileName);
+            String fileInCurrentCommitSha1 = currentCommit.findFileSha1(fileName);
+            if (fileInCurrentCommitSha1 == null && !stagedFilesSet.contains(fileName)) {
+                // 未跟踪的文件不必哈希
+                continue;
+            }
+            // Blob ids of files with the same name are equal iff their contents are
+            String fileSha1 = new Blob(join(CWD, fileName)).getSha1();
             // Case 1: Tracked in current commit, changed but not staged
-            if (fileInCurrentCommit != null && !stagedFilesSet.contains(fileName)) {
-                String fileInCurrentCommitSha1 = sha1(readContentsAsString(fileInCurrentCommit));
+            if (fileInCurrentCommitSha1 != null && !stagedFilesSet.contains(fileName)) {
                 if (!fileSha1.equals(fileInCurrentCommitSha1)) {
                     modNotStageFilesSet.add(fileName);
                 }
             }
             // Case 2: Staged for addition, but with different contents than in working directory
             if (stagedFilesSet.contains(fileName)) {
-                File stagedFile = join(STAGING_DIR, fileName);
-                String stagedFileSha1 = sha1(readContentsAsString(stagedFile));
+                String stagedFileSha1 = StagingArea.entries().get(fileName);
                 if (!fileSha1.equals(stagedFileSha1)) {
                     modNotStageFilesSet.add(fileName);
                 }
@@ -568,10 +772,10 @@ public class Repository {
         printSection("Modifications Not Staged For Commit", modNotStagedList);
     }
 
-    private static void printUntrackedFiles(List<String> stagedFilesList) {
+    private static void printUntrackedFiles(List<String> stagedFilesList,
+                                            TreeSet<String> fileSet,
+                                            TreeSet<String> trackedFiles) {
         TreeSet<String> stagedFilesSet = new TreeSet<>(stagedFilesList);
-        TreeSet<String> fileSet = getCurrentFileSet();
-        TreeSet<String> trackedFiles = getCurrentCommit().getTrackedFiles();
 
         TreeSet<String> untrackedFilesSet = new TreeSet<>(fileSet);
         untrackedFilesSet.removeAll(trackedFiles);
@@ -586,106 +790,177 @@ public class Repository {
     public static void merge(String branchName) {
         checkDir();
         // 检查暂存区是否有未提交的更改
-        if (Objects.requireNonNull(STAGING_DIR.listFiles()).length > 0) {
+        if (!StagingArea.isEmpty()) {
             message("You have uncommitted changes.");
-            System.exit(0);
+            exit(0);
         }
         String currentBranch = getCurrentBranchName();
         String givenBranch = branchName;
-        TreeMap<String, String> branchMappingCommit = getBranchMappingCommit();
-        if (!branchMappingCommit.containsKey(givenBranch)) {
+        if (!getBranchSet().contains(givenBranch)) {
             message("A branch with that name does not exist.");
-            System.exit(0);
+            exit(0);
         }
         if (currentBranch.equals(givenBranch)) {
             message("Cannot merge a branch with itself.");
-            System.exit(0);
+            exit(0);
         }
 
-        // 检查是否有 untracked files 会被覆盖
+        // 检查是否有 untracked files 会被覆盖: 只需比较两棵树中不同的文件
         String givenCommitSha1ForCheck = getBranch(givenBranch);
         Commit givenCommitForCheck = Commit.load(givenCommitSha1ForCheck);
-        TreeSet<String> currentFileSet = getCurrentFileSet();
-        TreeSet<String> currentTrackedFiles = getCurrentCommit().getTrackedFiles();
         if (givenCommitForCheck != null) {
-            for (String fileName : givenCommitForCheck.getTrackedFiles()) {
-                if (currentFileSet.contains(fileName) && !currentTrackedFiles.contains(fileName)) {
-                    message(UNTRACKED_FILE_WARNING);
-                    System.exit(0);
-                }
-            }
+            Tree.diff(getCurrentCommit().getTree(), givenCommitForCheck.getTree(), "",
+                    (path, currentSha1, givenSha1) -> {
+                        if (currentSha1 == null && join(CWD, path).isFile()) {
+                            message(UNTRACKED_FILE_WARNING);
+                            exit(0);
+                        }
+                    });
         }
 
         String currentCommitSha1 = getBranch(currentBranch);
         String givenCommitSha1 = getBranch(givenBranch);
-        String splitPointSha1 = findSplitPoint(currentCommitSha1, givenCommitSha1);
-        if (splitPointSha1.equals(givenCommitSha1)) {
+        int currentRow = CommitGraph.indexOf(currentCommitSha1);
+        int givenRow = CommitGraph.indexOf(givenCommitSha1);
+        if (CommitBitmaps.isAncestor(givenRow, currentRow)) {
             message("Given branch is an ancestor of the current branch.");
             return;
         }
-        if (splitPointSha1.equals(currentCommitSha1)) {
+        if (CommitBitmaps.isAncestor(currentRow, givenRow)) {
             checkoutBranch(givenBranch);
             message("Current branch fast-forwarded.");
             return;
         }
+        String splitPointSha1 = findSplitPoint(currentCommitSha1, givenCommitSha1);
         processMergeFiles(splitPointSha1, currentCommitSha1, givenCommitSha1);
 
-        TreeMap<String, String> filesMappingBlobs = getFilesMappingBlobs();
-
-        clearStagingArea();
+        String treeSha1 = saveStagedTree();
 
         Commit newCommit = new Commit("Merged " + givenBranch + " into " + currentBranch + ".",
-                filesMappingBlobs, currentCommitSha1, givenCommitSha1);
-        newCommit.save();
-        setCurrentCommitSha1(newCommit.getSha1());
+                treeSha1, currentCommitSha1, givenCommitSha1);
+        advanceCurrentBranch(newCommit);
     }
 
     private static String findSplitPoint(String currentCommitSha1, String givenCommitSha1) {
-        // 获取当前分支的所有祖先
-        TreeSet<String> currentAncestors = getAllAncestors(currentCommitSha1);
-        // BFS 查找 given 分支中最近的共同祖先
-        Queue<String> queue = new LinkedList<>();
-        queue.add(givenCommitSha1);
-        while (!queue.isEmpty()) {
-            String sha1 = queue.poll();
-            if (sha1 == null) {
-                continue;
-            }
-            if (currentAncestors.contains(sha1)) {
-                return sha1;
-            }
-            addParentsToQueue(queue, sha1);
+        int splitPoint = CommitGraph.mergeBase(
+                CommitGraph.indexOf(currentCommitSha1),
+                CommitGraph.indexOf(givenCommitSha1));
+        if (splitPoint == CommitGraph.NONE) {
+            return null;
         }
-        return null;
+        return CommitGraph.sha1(splitPoint);
     }
 
-    private static TreeSet<String> getAllAncestors(String commitSha1) {
-        TreeSet<String> ancestors = new TreeSet<>();
-        Queue<String> queue = new LinkedList<>();
-        queue.add(commitSha1);
-        while (!queue.isEmpty()) {
-            String sha1 = queue.poll();
-            if (sha1 == null || ancestors.contains(sha1)) {
-                continue;
-            }
-            ancestors.add(sha1);
-            addParentsToQueue(queue, sha1);
+    public static void mergeBase(String first, String second) {
+        checkDir();
+        int firstRow = CommitGraph.indexOf(resolveCommit(first));
+        int secondRow = CommitGraph.indexOf(resolveCommit(second));
+        if (firstRow == CommitGraph.NONE || secondRow == CommitGraph.NONE) {
+            message("No commit with that id exists.");
+            exit(0);
+        }
+        int mergeBase = CommitGraph.mergeBase(firstRow, secondRow);
+        if (mergeBase != CommitGraph.NONE) {
+            message(CommitGraph.sha1(mergeBase));
         }
-        return ancestors;
     }
 
-    private static void addParentsToQueue(Queue<String> queue, String sha1) {
-        Commit commit = Commit.load(sha1);
-        if (commit != null) {
-            if (commit.getParentSha1() != null) {
-                queue.add(commit.getParentSha1());
+    /** Returns the commit id named by NAME, which may be a branch name, a
+     *  commit id or an unambiguous prefix of one. */
+    private static String resolveCommit(String name) {
+        if (getBranchSet().contains(name)) {
+            return getBranch(name);
+        }
+        String fullSha1 = name.length() < 40 ? findCommitByPrefix(name) : null;
+        if (fullSha1 != null) {
+            return fullSha1;
+        }
+        return name;
+    }
+
+    /**
+     * Prints a unified diff of every file that differs between the commit
+     * FIRST, or the current commit if FIRST is null, and the commit SECOND,
+     * or the working directory if SECOND is null. Commits may be named by
+     * branch, id or unambiguous id prefix. In the working directory only
+     * the files tracked by the commit or staged for addition are compared.
+     */
+    public static void diff(String first, String second) {
+        checkDir();
+        Commit from = first == null ? getCurrentCommit() : namedCommit(first);
+        TreeMap<String, String[]> changed = new TreeMap<>();
+        if (second != null) {
+            Tree.diff(from.getTree(), namedCommit(second).getTree(), "",
+                    (path, fromSha1, toSha1) -> changed.put(path, new String[]{fromSha1, toSha1}));
+        } else {
+            TreeMap<String, String> tracked = from.getTree().files();
+            TreeSet<String> paths = new TreeSet<>(tracked.keySet());
+            for (Map.Entry<String, String> staged : StagingArea.entries().entrySet()) {
+                if (staged.getValue() != null) {
+                    paths.add(staged.getKey());
+                }
             }
-            if (commit.getSecondParentSha1() != null) {
-                queue.add(commit.getSecondParentSha1());
+            for (String path : paths) {
+                File file = join(CWD, path);
+                String workingSha1 = file.isFile() ? Index.blobSha1(file) : null;
+                if (!Objects.equals(tracked.get(path), workingSha1)) {
+                    changed.put(path, new String[]{tracked.get(path), workingSha1});
+                }
             }
         }
+
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        try {
+            for (Map.Entry<String, String[]> change : changed.entrySet()) {
+                String path = change.getKey();
+                String fromSha1 = change.getValue()[0];
+                String toSha1 = change.getValue()[1];
+                Diff.Text to;
+                if (second != null || toSha1 == null) {
+                    to = blobText(toSha1);
+                } else {
+                    File file = join(CWD, path);
+                    to = file.length() <= ObjectStore.LARGE_BLOB_SIZE
+                            ? new Diff.Text(readContents(file)) : null;
+                }
+                Diff.writeUnified(out, fromSha1 == null ? null : path,
+                        toSha1 == null ? null : path, blobText(fromSha1), to);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw error("Unable to write the diff.");
+        }
+    }
+
+    /** Returns the commit named by NAME, or exits if there is none. */
+    private static Commit namedCommit(String name) {
+        Commit commit = Commit.load(resolveCommit(name));
+        if (commit == null) {
+            message("No commit with that id exists.");
+            exit(0);
+        }
+        return commit;
     }
 
+    /** Returns the lines of the blob SHA1, no lines if SHA1 is null, or
+     *  null if the blob is too large to read. */
+    private static Diff.Text blobText(String sha1) {
+        if (sha1 == null) {
+            return new Diff.Text(new byte[0]);
+        }
+        if (!ObjectStore.fitsInMemory(ObjectStore.BLOB, sha1)) {
+            return null;
+        }
+        return new Diff.Text(Blob.load(sha1));
+    }
+
+    /**
+     * Merges the files of the three commits into the working directory and
+     * the staging area. The trees are walked once to decide what each path
+     * needs; then the files the given branch removed are removed, and the
+     * files to take from it and the conflicts to write, which are
+     * independent of each other, are written and staged in parallel.
+     */
     private static void processMergeFiles(
             String splitPointSha1,
             String currentCommitSha1,
@@ -694,121 +969,164 @@ public class Repository {
         Commit currentCommit = Commit.load(currentCommitSha1);
         Commit givenCommit = Commit.load(givenCommitSha1);
 
-        // 收集所有涉及的文件名
-        TreeSet<String> allFiles = new TreeSet<>();
-        if (splitCommit != null) {
-            allFiles.addAll(splitCommit.getTrackedFiles());
-        }
-        if (currentCommit != null) {
-            allFiles.addAll(currentCommit.getTrackedFiles());
+        List<MergeChange> changes = new ArrayList<>();
+        mergeTrees("", treeOf(splitCommit), treeOf(currentCommit), treeOf(givenCommit), changes);
+
+        AtomicBoolean hasConflict = new AtomicBoolean();
+        List<MergeChange> writes = new ArrayList<>();
+        for (MergeChange change : changes) {
+            if (!change.conflict && change.givenSha1 == null) {
+                // 删除文件; 删除会清理空目录, 所以不与写入并行
+                rmFile(join(CWD, change.path));
+            } else {
+                writes.add(change);
+            }
         }
-        if (givenCommit != null) {
-            allFiles.addAll(givenCommit.getTrackedFiles());
+        Parallel.forEach(writes, change -> {
+            if (change.conflict) {
+                if (mergeFile(change)) {
+                    hasConflict.set(true);
+                }
+                stagingFile(join(CWD, change.path), currentCommit);
+            } else {
+                // 已知 blob id, 不必重新哈希
+                writeWorkingFile(change.path, change.givenSha1);
+                StagingArea.add(change.path, change.givenSha1);
+            }
+        });
+
+        if (hasConflict.get()) {
+            message("Encountered a merge conflict.");
         }
+    }
 
-        boolean hasConflict = false;
+    private static Tree treeOf(Commit commit) {
+        return commit == null ? Tree.EMPTY : commit.getTree();
+    }
 
-        for (String fileName : allFiles) {
-            boolean modifiedInCurrent = isFileModified(fileName, splitPointSha1, currentCommitSha1);
-            boolean modifiedInGiven = isFileModified(fileName, splitPointSha1, givenCommitSha1);
-            boolean deletedInCurrent = isFileDeleted(fileName, splitPointSha1, currentCommitSha1);
-            boolean deletedInGiven = isFileDeleted(fileName, splitPointSha1, givenCommitSha1);
+    /** What a merge does to one path: take the given branch's blob, or
+     *  remove the file if that is null, or merge the changes of both. */
+    private static class MergeChange {
+        final String path;
+        final String splitSha1;
+        final String currentSha1;
+        final String givenSha1;
+        final boolean conflict;
+
+        MergeChange(String path, String splitSha1, String currentSha1, String givenSha1,
+                    boolean conflict) {
+            this.path = path;
+            this.splitSha1 = splitSha1;
+            this.currentSha1 = currentSha1;
+            this.givenSha1 = givenSha1;
+            this.conflict = conflict;
+        }
+    }
 
-            String splitSha1 = splitCommit != null
-                    ? splitCommit.findFileSha1(fileName)
-                    : null;
-            String currentSha1 = currentCommit != null
-                    ? currentCommit.findFileSha1(fileName)
-                    : null;
-            String givenSha1 = givenCommit != null
-                    ? givenCommit.findFileSha1(fileName)
-                    : null;
+    /**
+     * Adds to CHANGES what merging the files below PREFIX needs, whose
+     * trees are SPLIT at the split point, CURRENT on the current branch
+     * and GIVEN on the given branch. A directory the given branch did not
+     * change, or changed just as the current branch did, is skipped without
+     * being read.
+     */
+    private static void mergeTrees(String prefix, Tree split, Tree current, Tree given,
+                                   List<MergeChange> changes) {
+        String givenTreeSha1 = given.getSha1();
+        if (givenTreeSha1.equals(split.getSha1()) || givenTreeSha1.equals(current.getSha1())) {
+            return;
+        }
+        if (current.getSha1().equals(split.getSha1())) {
+            // 仅 given 修改了这个目录 -> 其中所有不同的文件都使用 given 版本
+            Tree.diff(current, given, prefix, (path, currentSha1, givenSha1) ->
+                    changes.add(new MergeChange(path, currentSha1, currentSha1, givenSha1, false)));
+            return;
+        }
+
+        TreeSet<String> names = split.names();
+        names.addAll(current.names());
+        names.addAll(given.names());
+        for (String name : names) {
+            String path = prefix + name;
+            String splitSha1 = split.fileSha1(name);
+            String currentSha1 = current.fileSha1(name);
+            String givenSha1 = given.fileSha1(name);
+            boolean modifiedInCurrent = !Objects.equals(splitSha1, currentSha1);
+            boolean modifiedInGiven = !Objects.equals(splitSha1, givenSha1);
 
             if (!modifiedInCurrent && modifiedInGiven) {
                 // 规则1: 仅 given 修改 -> 使用 given 版本
-                if (deletedInGiven) {
-                    // 删除文件
-                    rmFileByName(fileName);
-                } else {
-                    checkout(givenCommitSha1, fileName);
-                    stagingFileByName(fileName);
-                }
+                changes.add(new MergeChange(path, splitSha1, currentSha1, givenSha1, false));
                 // 规则2: 仅 current 修改 -> 保持不变
             } else if (modifiedInCurrent && modifiedInGiven) {
                 // 规则3: 两边同样修改 -> 保持不变
                 if (!Objects.equals(currentSha1, givenSha1)) {
-                    // 规则4: 两边不同修改 -> 冲突
-                    if (currentCommit != null) {
-                        handleConflict(fileName, currentCommit, givenCommit);
-                    }
-                    hasConflict = true;
+                    // 规则4: 两边不同修改 -> 逐行合并, 重叠的修改才冲突
+                    changes.add(new MergeChange(path, splitSha1, currentSha1, givenSha1, true));
                 }
             }
-        }
 
-        if (hasConflict) {
-            message("Encountered a merge conflict.");
+            Tree splitSubtree = split.subtree(name);
+            Tree currentSubtree = current.subtree(name);
+            Tree givenSubtree = given.subtree(name);
+            if (!splitSubtree.isEmpty() || !currentSubtree.isEmpty() || !givenSubtree.isEmpty()) {
+                mergeTrees(path + "/", splitSubtree, currentSubtree, givenSubtree, changes);
+            }
         }
     }
 
-    private static boolean isFileModified(
-            String fileName,
-            String fromCommitSha1,
-            String toCommitSha1) {
-        Commit fromCommit = Commit.load(fromCommitSha1);
-        Commit toCommit = Commit.load(toCommitSha1);
-
-        String blobSha1InFrom = (fromCommit != null) ? fromCommit.findFileSha1(fileName) : null;
-        String blobSha1InTo = (toCommit != null) ? toCommit.findFileSha1(fileName) : null;
-
-        // 两者都为 null 表示未修改（都不存在）
-        if (blobSha1InFrom == null && blobSha1InTo == null) {
-            return false;
-        }
-        // 其中一个为 null 表示文件被添加或删除
-        if (blobSha1InFrom == null || blobSha1InTo == null) {
-            return true;
+    /**
+     * Writes the file of CHANGE, which both branches changed, merged line
+     * by line from the three versions, and returns whether it has
+     * conflicts. A file that one branch removed or that is binary or too
+     * large to read is a conflict as a whole.
+     */
+    private static boolean mergeFile(MergeChange change) {
+        if (change.splitSha1 != null && change.currentSha1 != null && change.givenSha1 != null
+                && ObjectStore.fitsInMemory(ObjectStore.BLOB, change.splitSha1)
+                && ObjectStore.fitsInMemory(ObjectStore.BLOB, change.currentSha1)
+                && ObjectStore.fitsInMemory(ObjectStore.BLOB, change.givenSha1)) {
+            Diff.Text split = new Diff.Text(Blob.load(change.splitSha1));
+            Diff.Text current = new Diff.Text(Blob.load(change.currentSha1));
+            Diff.Text given = new Diff.Text(Blob.load(change.givenSha1));
+            if (!split.isBinary() && !current.isBinary() && !given.isBinary()) {
+                Diff.MergeResult merged = Diff.merge(split, current, given);
+                writeContents(join(CWD, change.path), (Object) merged.contents);
+                return merged.conflict;
+            }
         }
-        // 比较 blob 的 SHA1 判断内容是否改变
-        return !blobSha1InFrom.equals(blobSha1InTo);
-    }
-
-    private static boolean isFileDeleted(
-            String fileName,
-            String fromCommitSha1,
-            String toCommitSha1) {
-        Commit fromCommit = Commit.load(fromCommitSha1);
-        Commit toCommit = Commit.load(toCommitSha1);
-
-        // 文件在 from 中存在，但在 to 中不存在
-        boolean existsInFrom = fromCommit != null && fromCommit.findFileSha1(fileName) != null;
-        boolean existsInTo = toCommit != null && toCommit.findFileSha1(fileName) != null;
-
-        return existsInFrom && !existsInTo;
+        writeConflict(change.path, change.currentSha1, change.givenSha1);
+        return true;
     }
 
-    private static void handleConflict(String fileName, Commit currentCommit, Commit givenCommit) {
-        File workingFile = join(CWD, fileName);
-        String currentContent = "";
-        String givenContent = "";
-
-        File currentBlobFile = currentCommit.findFile(fileName);
-        if (currentBlobFile != null) {
-            currentContent = readContentsAsString(currentBlobFile);
+    /** Writes the file at PATH as a conflict between the blobs CURRENTSHA1
+     *  and GIVENSHA1, either of which may be null. */
+    private static void writeConflict(String path, String currentSha1, String givenSha1) {
+        File workingFile = join(CWD, path);
+
+        // 两边的内容直接从对象库流式写入, 不读入内存
+        workingFile.getParentFile().mkdirs();
+        WorkingTree.changed();
+        try (FileChannel out = FileChannel.open(workingFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeString(out, Diff.CONFLICT_START);
+            if (currentSha1 != null) {
+                Blob.writeTo(currentSha1, out);
+            }
+            writeString(out, Diff.CONFLICT_SEPARATOR);
+            if (givenSha1 != null) {
+                Blob.writeTo(givenSha1, out);
+            }
+            writeString(out, Diff.CONFLICT_END);
+        } catch (IOException e) {
+            throw error("Unable to write %s.", path);
         }
+    }
 
-        File givenBlobFile = givenCommit.findFile(fileName);
-        if (givenBlobFile != null) {
-            givenContent = readContentsAsString(givenBlobFile);
+    private static void writeString(FileChannel out, String s) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
         }
-
-        String conflictContent = "<<<<<<< HEAD\n"
-                + currentContent
-                + "=======\n"
-                + givenContent
-                + ">>>>>>>\n";
-
-        writeContents(workingFile, conflictContent);
-        stagingFileByName(fileName);
     }
 }
@@ -0,0 +1,240 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * The changes staged for the next commit: for each staged path, the blob
+ * id of the version staged for addition, or a mark that the path is
+ * staged for removal. Staging a file writes its blob into the object
+ * store once, so committing only builds trees from the staged ids.
+ * <p>
+ * The file is "GSTG", a version, the number of entries, then for each
+ * entry, in path order, its path relative to the working directory, a
+ * flags byte and, unless the entry is a removal, the 20-byte blob id.
+ * Changes are kept in memory until {@link #save()}, which first makes
+ * the staged blobs durable and then replaces the file atomically, so the
+ * file never names a blob that was not written.
+ * <p>
+ * Repositories made before the file existed keep a copy of every staged
+ * file in the staging directory, an empty copy marking a removal. Those
+ * are read until the first save stores their blobs and replaces them.
+ * <p>
+ * Paths may be staged from several threads.
+ *
+ * @author A_Words
+ */
+class StagingArea {
+    private static final File STAGE_FILE = join(GITLET_DIR, "stage");
+    private static final File LEGACY_STAGING_DIR = join(GITLET_DIR, "staging");
+    private static final byte[] MAGIC = {'G', 'S', 'T', 'G'};
+    private static final int VERSION = 1;
+    /** Flag of an entry that stages its path for removal. */
+    private static final byte REMOVED = 1;
+
+    /** The staged blob ids by path, null for a removal, or null before
+     *  they are read. */
+    private static TreeMap<String, String> entries;
+    private static boolean dirty;
+    /** The copies in the old staging directory by path, to store when
+     *  the staging area is first saved. */
+    private static final Map<String, File> LEGACY_COPIES = new HashMap<>();
+
+    /** Returns the staged blob ids by path, null for a path staged for
+     *  removal. The map must not be modified. */
+    static synchronized Map<String, String> entries() {
+        load();
+        return Collections.unmodifiableMap(entries);
+    }
+
+    static synchronized boolean isEmpty() {
+        load();
+        return entries.isEmpty();
+    }
+
+    /** Returns whether PATH is staged for addition or removal. */
+    static synchronized boolean contains(String path) {
+        load();
+        return entries.containsKey(path);
+    }
+
+    /** Stages the blob BLOBSHA1, which must be in the object store, as the
+     *  new version of PATH. */
+    static synchronized void add(String path, String blobSha1) {
+        load();
+        entries.put(path, blobSha1);
+        dirty = true;
+    }
+
+    /** Stages PATH for removal. */
+    static synchronized void remove(String path) {
+        load();
+        entries.put(path, null);
+        dirty = true;
+    }
+
+    /** Unstages PATH. */
+    static synchronized void unstage(String path) {
+        load();
+        if (entries.containsKey(path)) {
+            entries.remove(path);
+            dirty = true;
+        }
+    }
+
+    /** Unstages every path. */
+    static synchronized void clear() {
+        load();
+        entries.clear();
+        dirty = true;
+    }
+
+    /** Writes the staging area if it changed, after the blobs it names. */
+    static synchronized void save() {
+        if (!dirty || !GITLET_DIR.isDirectory()) {
+            return;
+        }
+        for (Map.Entry<String, File> copy : LEGACY_COPIES.entrySet()) {
+            Blob blob = new Blob(copy.getValue());
+            if (blob.getSha1().equals(entries.get(copy.getKey()))) {
+                blob.save(null);
+            }
+        }
+        ObjectStore.flush();
+        File tmpFile = join(GITLET_DIR, "stage.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmpFile.toPath())))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, String> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                if (e.getValue() == null) {
+                    out.writeByte(REMOVED);
+                } else {
+                    out.writeByte(0);
+                    out.write(fromHex(e.getValue()));
+                }
+            }
+        } catch (IOException e) {
+            throw error("Unable to write staging area.");
+        }
+        try {
+            Files.move(tmpFile.toPath(), STAGE_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw error("Unable to write staging area.");
+        }
+        dirty = false;
+        if (LEGACY_STAGING_DIR.exists()) {
+            deleteLegacy();
+        }
+        LEGACY_COPIES.clear();
+    }
+
+    /** Forgets the staging area read so far and any unsaved changes to it. */
+    static synchronized void reset() {
+        entries = null;
+        dirty = false;
+        LEGACY_COPIES.clear();
+    }
+
+    private static void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new TreeMap<>();
+        if (!STAGE_FILE.isFile()) {
+            if (LEGACY_STAGING_DIR.isDirectory()) {
+                loadLegacy();
+            }
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(STAGE_FILE.toPath())))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                throw error("Unknown staging area format.");
+            }
+            int count = in.readInt();
+            byte[] id = new byte[Pack.ID_SIZE];
+            for (int i = 0; i < count; i += 1) {
+                String path = in.readUTF();
+                if ((in.readByte() & REMOVED) != 0) {
+                    entries.put(path, null);
+                } else {
+                    in.readFully(id);
+                    entries.put(path, toHex(id));
+                }
+            }
+        } catch (IOException e) {
+            throw error("Unable to read staging area.");
+        }
+    }
+
+    /** Reads the staged copies of a repository made before the staging
+     *  file existed. */
+    private static void loadLegacy() {
+        Path root = LEGACY_STAGING_DIR.toPath();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (attrs.size() == 0) {
+                        entries.put(path, null);
+                    } else {
+                        // Blob ids hash the file name, which the copy shares.
+                        entries.put(path, Index.blobSha1(file.toFile()));
+                        LEGACY_COPIES.put(path, file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw error("Unable to read staging area.");
+        }
+        dirty = true;
+    }
+
+    private static void deleteLegacy() {
+        try {
+            Files.walkFileTree(LEGACY_STAGING_DIR.toPath(), new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                        throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                        throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw error("Unable to delete the old staging directory.");
+        }
+    }
+}
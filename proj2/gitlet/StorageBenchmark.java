@@ -0,0 +1,93 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static gitlet.Repository.*;
+import static gitlet.Utils.*;
+
+/**
+ * Builds a synthetic history of a growing log file in the current
+ * directory and reports how much disk the repository uses and how long
+ * checking out old versions takes. Must be run in an empty directory:
+ *
+ *     java gitlet.StorageBenchmark [COMMITS] [FILE_SIZE]
+ *
+ * @author A_Words
+ */
+public class StorageBenchmark {
+    private static final String LOG_FILE = "app.log";
+
+    public static void main(String[] args) {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024 * 1024;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        Repository.init();
+
+        Random random = new Random(61);
+        StringBuilder log = new StringBuilder();
+        while (log.length() < fileSize) {
+            appendLine(log, random);
+        }
+        long rawBytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < commits; i += 1) {
+            appendLine(log, random);
+            File file = join(CWD, LOG_FILE);
+            writeContents(file, log.toString());
+            rawBytes += file.length();
+            Repository.stagingFileByName(LOG_FILE);
+            Repository.stagingToCommit("commit " + i);
+        }
+        double commitTime = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d commits of a %d byte file%n", commits, fileSize);
+        System.out.printf("%-28s %12d bytes%n", "uncompressed blobs", rawBytes);
+        System.out.printf("%-28s %12d bytes%n", "repository", diskUsage());
+        System.out.printf("%-28s %12.3f ms%n", "commit latency", commitTime * 1e3 / commits);
+        System.out.printf("%-28s %12.3f ms%n", "checkout latency", checkoutTime());
+
+        Repository.gc(0);
+        System.out.printf("%-28s %12d bytes%n", "repository after gc", diskUsage());
+        System.out.printf("%-28s %12.3f ms%n", "checkout latency after gc", checkoutTime());
+    }
+
+    private static void appendLine(StringBuilder log, Random random) {
+        log.append("2021-04-01 12:00:").append(random.nextInt(60))
+                .append(" INFO request ").append(random.nextLong())
+                .append(" served in ").append(random.nextInt(1000)).append("ms\n");
+    }
+
+    /** Returns the average time in milliseconds to check out LOG_FILE from
+     *  every commit that has it. */
+    private static double checkoutTime() {
+        List<String> commitIds = new ArrayList<>();
+        for (String commitSha1 : ObjectStore.list(ObjectStore.COMMIT)) {
+            if (Commit.load(commitSha1).findFileSha1(LOG_FILE) != null) {
+                commitIds.add(commitSha1);
+            }
+        }
+        long start = System.nanoTime();
+        for (String commitSha1 : commitIds) {
+            Repository.checkout(commitSha1, LOG_FILE);
+        }
+        return (System.nanoTime() - start) / 1e6 / commitIds.size();
+    }
+
+    private static long diskUsage() {
+        try (Stream<Path> paths = Files.walk(GITLET_DIR.toPath())) {
+            return paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        } catch (IOException e) {
+            throw error("Unable to measure repository size.");
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * An immutable directory listing: the files of one directory, each with
+ * its blob id, and its subdirectories, each with the id of its own tree.
+ * A tree's id hashes its contents, so two commits that agree on a whole
+ * directory share its tree, and comparing two trees can skip every
+ * subdirectory whose ids match without looking inside.
+ * <p>
+ * Stored, a tree is its entries in name order, each a kind byte, the
+ * name in UTF-8, a zero byte and the 20-byte id.
+ *
+ * @author A_Words
+ */
+class Tree {
+    private static final byte FILE = 1;
+    private static final byte DIR = 2;
+
+    /** The tree of no files. */
+    static final Tree EMPTY = new Tree(new TreeMap<>());
+
+    /**
+     * Recently loaded trees. Its size in bytes may be set with the
+     * gitlet.treeCacheSize system property.
+     */
+    static final ObjectCache<Tree> CACHE = new ObjectCache<>("tree",
+            Long.getLong("gitlet.treeCacheSize", 8L << 20), Tree::estimatedSize);
+
+    private final TreeMap<String, Entry> entries;
+    private final String sha1;
+
+    private Tree(TreeMap<String, Entry> entries) {
+        this.entries = entries;
+        sha1 = sha1("tree ", toBytes());
+    }
+
+    /** Returns the tree SHA1, or null if there is no such tree. */
+    static Tree load(String sha1) {
+        Tree tree = CACHE.get(sha1);
+        if (tree != null) {
+            return tree;
+        }
+        byte[] contents = ObjectStore.read(ObjectStore.TREE, sha1);
+        if (contents == null) {
+            return null;
+        }
+        tree = parse(contents);
+        CACHE.put(sha1, tree);
+        return tree;
+    }
+
+    String getSha1() {
+        return sha1;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** Returns the names of the files and subdirectories of this tree. */
+    TreeSet<String> names() {
+        return new TreeSet<>(entries.keySet());
+    }
+
+    /** Returns the blob id of the file NAME directly in this tree, or null. */
+    String fileSha1(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.kind == FILE ? entry.sha1 : null;
+    }
+
+    /** Returns the tree of the subdirectory NAME, or EMPTY if there is no
+     *  such subdirectory. */
+    Tree subtree(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.kind == DIR ? entry.tree() : EMPTY;
+    }
+
+    /** Returns the blob id of the file at PATH, whose parts are separated
+     *  by '/', or null if there is no such file. */
+    String findFile(String path) {
+        Tree tree = this;
+        int start = 0;
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', start)) {
+            tree = tree.subtree(path.substring(start, slash));
+            start = slash + 1;
+        }
+        return tree.fileSha1(path.substring(start));
+    }
+
+    /** Returns the blob id of every file under this tree by path. */
+    TreeMap<String, String> files() {
+        TreeMap<String, String> files = new TreeMap<>();
+        collectFiles("", files);
+        return files;
+    }
+
+    private void collectFiles(String prefix, Map<String, String> files) {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.kind == FILE) {
+                files.put(prefix + e.getKey(), entry.sha1);
+            } else {
+                entry.tree().collectFiles(prefix + e.getKey() + "/", files);
+            }
+        }
+    }
+
+    /** Marks the stored subtrees and blobs under this tree, skipping the
+     *  subtrees MARKS has marked before along with everything under them. */
+    void mark(ObjectStore.Marks marks) {
+        for (Entry entry : entries.values()) {
+            if (entry.kind == FILE) {
+                marks.mark(ObjectStore.BLOB, entry.sha1);
+            } else if (marks.mark(ObjectStore.TREE, entry.sha1) || entry.tree != null) {
+                entry.tree().mark(marks);
+            }
+        }
+    }
+
+    /** Returns this tree with CHANGES applied. CHANGES maps paths to their
+     *  new blob ids, or to null for files to remove. Subdirectories no
+     *  change touches keep their trees, and directories left without files
+     *  are dropped. */
+    Tree update(SortedMap<String, String> changes) {
+        if (changes.isEmpty()) {
+            return this;
+        }
+        TreeMap<String, Entry> result = new TreeMap<>(entries);
+        TreeMap<String, TreeMap<String, String>> nested = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                nested.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            } else if (change.getValue() != null) {
+                result.put(path, new Entry(FILE, change.getValue(), null));
+            } else if (fileSha1(path) != null) {
+                result.remove(path);
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> dir : nested.entrySet()) {
+            Tree updated = subtree(dir.getKey()).update(dir.getValue());
+            if (updated.isEmpty()) {
+                // 目录可能已被同名文件取代, 只删除目录项
+                Entry entry = result.get(dir.getKey());
+                if (entry != null && entry.kind == DIR) {
+                    result.remove(dir.getKey());
+                }
+            } else {
+                result.put(dir.getKey(), new Entry(DIR, updated.sha1, updated));
+            }
+        }
+        return new Tree(result);
+    }
+
+    /** Adds this tree and every subtree not yet stored to the object store,
+     *  and returns the id of this tree. */
+    String save() {
+        if (!ObjectStore.contains(ObjectStore.TREE, sha1)) {
+            for (Entry entry : entries.values()) {
+                if (entry.tree != null) {
+                    entry.tree.save();
+                }
+            }
+            ObjectStore.write(ObjectStore.TREE, sha1, toBytes());
+            CACHE.put(sha1, this);
+        }
+        return sha1;
+    }
+
+    /** Receives the files that differ between two trees. */
+    interface Visitor {
+        /** Called for the file at PATH, whose blob id is FROMSHA1 in one
+         *  tree and TOSHA1 in the other; either may be null. */
+        void visit(String path, String fromSha1, String toSha1);
+    }
+
+    /** Calls VISITOR, in path order, for every file that differs between
+     *  FROM and TO, prefixing paths with PREFIX. Subdirectories with the
+     *  same tree on both sides are skipped without being read. */
+    static void diff(Tree from, Tree to, String prefix, Visitor visitor) {
+        if (from.sha1.equals(to.sha1)) {
+            return;
+        }
+        TreeSet<String> names = from.names();
+        names.addAll(to.entries.keySet());
+        for (String name : names) {
+            String fromSha1 = from.fileSha1(name);
+            String toSha1 = to.fileSha1(name);
+            if (!Objects.equals(fromSha1, toSha1)) {
+                visitor.visit(prefix + name, fromSha1, toSha1);
+            }
+            diff(from.subtree(name), to.subtree(name), prefix + name + "/", visitor);
+        }
+    }
+
+    private byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            out.write(e.getValue().kind);
+            out.writeBytes(e.getKey().getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+            out.writeBytes(fromHex(e.getValue().sha1));
+        }
+        return out.toByteArray();
+    }
+
+    private static Tree parse(byte[] contents) {
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        ByteBuffer in = ByteBuffer.wrap(contents);
+        while (in.hasRemaining()) {
+            byte kind = in.get();
+            int start = in.position();
+            while (in.get() != 0) {
+                continue;
+            }
+            String name = new String(contents, start, in.position() - 1 - start,
+                    StandardCharsets.UTF_8);
+            byte[] id = new byte[Pack.ID_SIZE];
+            in.get(id);
+            entries.put(name, new Entry(kind, toHex(id), null));
+        }
+        return new Tree(entries);
+    }
+
+    /** Returns a rough estimate of the memory this tree takes. */
+    private long estimatedSize() {
+        long size = 128;
+        for (String name : entries.keySet()) {
+            size += 200 + 2L * name.length();
+        }
+        return size;
+    }
+
+    private static class Entry {
+        final byte kind;
+        final String sha1;
+        /** The subtree itself, if it was built in memory rather than loaded. */
+        final Tree tree;
+
+        Entry(byte kind, String sha1, Tree tree) {
+            this.kind = kind;
+            this.sha1 = sha1;
+            this.tree = tree;
+        }
+
+        Tree tree() {
+            if (tree != null) {
+                return tree;
+            }
+            Tree loaded = load(sha1);
+            if (loaded == null) {
+                throw error("Missing tree %s.", sha1);
+            }
+            return loaded;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * The paths of the files in the working directory, listed once per
+ * command and shared by every check in it.
+ * <p>
+ * Listing reads each directory only if it changed: creating, removing or
+ * renaming an entry updates a directory's modification time, so the
+ * untracked cache remembers the files and subdirectories of each
+ * directory along with its modification time, and a directory whose time
+ * is unchanged is not read again. Every directory is still checked, since
+ * a change below a directory does not touch its own time. As in the
+ * {@link Index}, an entry whose time is not older than the cache file is
+ * racily clean, the directory may have changed again within the file
+ * system's timestamp granularity, and is never trusted.
+ * <p>
+ * The file is "GUNT", a version, the number of directories, then for each
+ * its path relative to the working directory, modification time in
+ * nanoseconds, and the number and names of its files and of its
+ * subdirectories.
+ *
+ * @author A_Words
+ */
+class WorkingTree {
+    private static final File CACHE_FILE = join(GITLET_DIR, "untracked-cache");
+    private static final byte[] MAGIC = {'G', 'U', 'N', 'T'};
+    private static final int VERSION = 1;
+
+    /** The cached directories by path, or null before the cache is read. */
+    private static Map<String, Directory> cache;
+    /** Modification time of the cache file when it was read. */
+    private static long cacheTime;
+    private static boolean dirty;
+    /** This command's listing, or null before it lists or after it
+     *  changes the working directory. */
+    private static TreeSet<String> snapshot;
+
+    /** Returns the paths, with '/' between parts, of every file in the
+     *  working directory outside .gitlet. The set is shared and must not
+     *  be modified. */
+    static synchronized TreeSet<String> files() {
+        if (snapshot == null) {
+            load();
+            Map<String, Directory> listed = new HashMap<>();
+            TreeSet<String> paths = new TreeSet<>();
+            list(CWD.toPath(), "", listed, paths);
+            if (!listed.keySet().equals(cache.keySet())) {
+                dirty = true;
+            }
+            cache = listed;
+            snapshot = paths;
+        }
+        return snapshot;
+    }
+
+    /** Notes that this command changed the working directory, so that the
+     *  next listing looks again. */
+    static synchronized void changed() {
+        snapshot = null;
+    }
+
+    /** Writes the cache if it changed. */
+    static synchronized void save() {
+        if (!dirty || !GITLET_DIR.isDirectory()) {
+            return;
+        }
+        File tmpFile = join(GITLET_DIR, "untracked-cache.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmpFile.toPath())))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cache.size());
+            for (Map.Entry<String, Directory> e : cache.entrySet()) {
+                Directory dir = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(dir.mtime);
+                writeNames(out, dir.files);
+                writeNames(out, dir.subdirs);
+            }
+        } catch (IOException e) {
+            throw error("Unable to write untracked cache.");
+        }
+        try {
+            Files.move(tmpFile.toPath(), CACHE_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw error("Unable to write untracked cache.");
+        }
+        dirty = false;
+    }
+
+    /** Forgets the cache and listing read so far, for a daemon. */
+    static synchronized void reset() {
+        cache = null;
+        snapshot = null;
+        dirty = false;
+    }
+
+    /** Adds the files under DIR, whose path is PATH, to PATHS and its
+     *  directories to LISTED, reading only the directories that changed. */
+    private static void list(Path dir, String path, Map<String, Directory> listed,
+                             TreeSet<String> paths) {
+        long mtime;
+        try {
+            mtime = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS)
+                    .to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            return;
+        }
+        Directory cached = cache.get(path);
+        Directory current = cached != null && cached.mtime == mtime && mtime < cacheTime
+                ? cached : read(dir, path, mtime);
+        listed.put(path, current);
+        String prefix = path.isEmpty() ? "" : path + "/";
+        for (String name : current.files) {
+            paths.add(prefix + name);
+        }
+        for (String name : current.subdirs) {
+            list(dir.resolve(name), prefix + name, listed, paths);
+        }
+    }
+
+    /** Reads the files and subdirectories of DIR, whose path is PATH. */
+    private static Directory read(Path dir, String path, long mtime) {
+        dirty = true;
+        List<String> files = new ArrayList<>();
+        List<String> subdirs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue;
+                }
+                String name = entry.getFileName().toString();
+                if (attrs.isRegularFile()) {
+                    files.add(name);
+                } else if (attrs.isDirectory()
+                        && !(path.isEmpty() && name.equals(GITLET_DIR.getName()))) {
+                    subdirs.add(name);
+                }
+            }
+        } catch (IOException e) {
+            // Gone or unreadable since it was found; list it as empty.
+        }
+        return new Directory(mtime, files.toArray(new String[0]), subdirs.toArray(new String[0]));
+    }
+
+    private static void load() {
+        if (cache != null) {
+            return;
+        }
+        cache = new HashMap<>();
+        if (!CACHE_FILE.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(CACHE_FILE.toPath())))) {
+            cacheTime = Files.getLastModifiedTime(CACHE_FILE.toPath()).to(TimeUnit.NANOSECONDS);
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                cache.put(path, new Directory(mtime, readNames(in), readNames(in)));
+            }
+        } catch (IOException e) {
+            cache.clear();
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static String[] readNames(DataInputStream in) throws IOException {
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i += 1) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    private static class Directory {
+        final long mtime;
+        final String[] files;
+        final String[] subdirs;
+
+        Directory(long mtime, String[] files, String[] subdirs) {
+            this.mtime = mtime;
+            this.files = files;
+            this.subdirs = subdirs;
+        }
+    }
+}
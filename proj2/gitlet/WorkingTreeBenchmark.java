@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static gitlet.Repository.CWD;
+import static gitlet.Repository.GITLET_DIR;
+import static gitlet.Utils.*;
+
+/**
+ * Compares listing the working directory by walking every file, as status
+ * used to, with listing it through the untracked cache, first with no
+ * cache and then with a cache of unchanged directories, each time as a
+ * fresh command would. Must be run in an empty directory:
+ *
+ *     java gitlet.WorkingTreeBenchmark [DIRECTORIES] [FILES_PER_DIRECTORY]
+ *
+ * @author A_Words
+ */
+public class WorkingTreeBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int dirs = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int filesPerDir = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run the benchmark in an empty directory.");
+            return;
+        }
+        GITLET_DIR.mkdir();
+        for (int d = 0; d < dirs; d += 1) {
+            File dir = join(CWD, "dir" + d / 20, "sub" + d);
+            dir.mkdirs();
+            for (int f = 0; f < filesPerDir; f += 1) {
+                writeContents(join(dir, "file" + f + ".txt"), "file " + f + "\n");
+            }
+        }
+        System.out.printf("%d directories, %d files%n", dirs, dirs * filesPerDir);
+
+        long walk = 0;
+        long cold = 0;
+        long warm = 0;
+        for (int round = 0; round < ROUNDS; round += 1) {
+            long start = System.nanoTime();
+            TreeSet<String> walked = walk();
+            walk += System.nanoTime() - start;
+
+            join(GITLET_DIR, "untracked-cache").delete();
+            WorkingTree.reset();
+            start = System.nanoTime();
+            TreeSet<String> listed = WorkingTree.files();
+            cold += System.nanoTime() - start;
+            WorkingTree.save();
+
+            WorkingTree.reset();
+            start = System.nanoTime();
+            TreeSet<String> cached = WorkingTree.files();
+            warm += System.nanoTime() - start;
+            if (!walked.equals(listed) || !walked.equals(cached)) {
+                throw error("The untracked cache disagrees with the walk.");
+            }
+        }
+        report("walk every file", walk);
+        report("cache, cold", cold);
+        report("cache, warm", warm);
+    }
+
+    private static void report(String label, long nanos) {
+        System.out.printf("%-20s %10.2f ms/listing%n", label, nanos / 1e6 / ROUNDS);
+    }
+
+    private static TreeSet<String> walk() throws IOException {
+        TreeSet<String> paths = new TreeSet<>();
+        Path root = CWD.toPath();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(p -> !p.startsWith(GITLET_DIR.toPath()) && Files.isRegularFile(p))
+                    .forEach(p -> paths.add(root.relativize(p).toString()
+                            .replace(File.separatorChar, '/')));
+        }
+        return paths;
+    }
+}